@@ -3,6 +3,7 @@ import org.jetbrains.kotlin.gradle.tasks.KotlinCompile
 plugins {
     kotlin("jvm")
     id("com.google.devtools.ksp")
+    id("me.champeau.jmh") version "0.6.6"
 }
 
 apply<kotlinx.atomicfu.plugin.gradle.AtomicFUGradlePlugin>()
@@ -40,6 +41,28 @@ kotlin.sourceSets.main {
     kotlin.srcDir("build/generated/ksp/main/kotlin")
 }
 
+// benchmarks access internal members of main
+kotlin.target.compilations.named("jmh") {
+    associateWith(kotlin.target.compilations.getByName("main"))
+}
+
+jmh {
+    jmhVersion.set("1.33")
+    warmupIterations.set(3)
+    iterations.set(5)
+    fork.set(1)
+    // run with -Pjmh.includes=<regex> to run some of benchmarks
+    findProperty("jmh.includes")?.let { includes.set(listOf(it.toString())) }
+}
+
+// run with -Pcorpus.args="classCount=100000 build/corpus.jar" to generate a synthetic corpus
+tasks.register<JavaExec>("generateCorpus") {
+    classpath = sourceSets["jmh"].runtimeClasspath
+    mainClass.set("com.anatawa12.relocator.benchmarks.CorpusGeneratorKt")
+    args = findProperty("corpus.args")?.toString()?.split(' ')?.filter(String::isNotEmpty)
+        ?: listOf("$buildDir/corpus.jar")
+}
+
 tasks.test {
     useJUnitPlatform()
     testLogging {
@@ -0,0 +1,52 @@
+
+package com.anatawa12.relocator.benchmarks
+
+import com.anatawa12.relocator.classes.ClassPath
+import com.anatawa12.relocator.classes.CombinedClassPath
+import com.anatawa12.relocator.classes.MethodInsn
+import com.anatawa12.relocator.internal.EmbeddableClassPath
+import com.anatawa12.relocator.internal.ReferencesClassPath
+import com.anatawa12.relocator.reference.MethodReference
+import kotlinx.coroutines.runBlocking
+import org.openjdk.jmh.annotations.*
+import org.openjdk.jmh.infra.Blackhole
+import java.util.concurrent.TimeUnit
+
+/**
+ * Resolves the methods called in the fixture with the fixture and JDK classes.
+ * Classes are loaded in setup so this measures lookup through super classes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+open class CombinedClassPathBenchmark {
+    private lateinit var paths: List<ClassPath>
+    private lateinit var classpath: CombinedClassPath
+    private lateinit var methods: List<MethodReference>
+
+    @Setup
+    fun setup() = runBlocking {
+        val embeds = EmbeddableClassPath(listOf(Fixture.jar), false)
+        val refers = ReferencesClassPath(listOf(Fixture.jdkClasses), false) {}
+        embeds.init()
+        refers.init()
+        paths = listOf(embeds, refers)
+        classpath = CombinedClassPath(paths)
+        methods = embeds.classes.asSequence()
+            .flatMap { it.methods }
+            .flatMap { it.classCode?.instructions.orEmpty() }
+            .mapNotNull { (it as? MethodInsn)?.method }
+            .toList()
+        for (method in methods) classpath.findMethod(method)
+    }
+
+    @TearDown
+    fun tearDown() {
+        paths.forEach { it.close() }
+    }
+
+    @Benchmark
+    fun findMethod(blackhole: Blackhole) = runBlocking {
+        for (method in methods) blackhole.consume(classpath.findMethod(method))
+    }
+}
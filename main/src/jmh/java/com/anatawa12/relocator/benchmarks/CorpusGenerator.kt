@@ -0,0 +1,361 @@
+package com.anatawa12.relocator.benchmarks
+
+import kotlinx.metadata.*
+import kotlinx.metadata.jvm.JvmMethodSignature
+import kotlinx.metadata.jvm.KotlinClassMetadata
+import kotlinx.metadata.jvm.signature
+import org.objectweb.asm.ClassVisitor
+import org.objectweb.asm.ClassWriter
+import org.objectweb.asm.MethodVisitor
+import org.objectweb.asm.Opcodes.*
+import org.objectweb.asm.Type
+import java.io.BufferedOutputStream
+import java.io.File
+import java.util.*
+import java.util.jar.Attributes
+import java.util.jar.JarFile
+import java.util.jar.Manifest
+import java.util.zip.ZipEntry
+import java.util.zip.ZipOutputStream
+
+/**
+ * Generates a jar of synthetic classes to measure relocation of large inputs.
+ * The jar is determined by the properties, including [seed], so the same jar is generated on any machine.
+ *
+ * The classes are in packages `corpus/pN` with [CLASSES_PER_PACKAGE] classes.
+ * Each class refers some other classes with method calls and reflection calls with constant arguments,
+ * which are resolved by the default [com.anatawa12.relocator.reflect.ReflectionMappingContainer].
+ * The generated classes refer only JDK classes and `kotlin/Metadata`.
+ * They pass the verifier but are not meant to be run: method calls may recurse infinitely.
+ */
+class CorpusGenerator {
+    /**
+     * The number of classes, including interfaces.
+     */
+    var classCount: Int = 10_000
+        set(value) {
+            require(value > 0) { "classCount must be positive" }
+            field = value
+        }
+
+    /**
+     * The depth of chains of super classes. If 1, all classes extend Object.
+     */
+    var hierarchyDepth: Int = 4
+        set(value) {
+            require(value > 0) { "hierarchyDepth must be positive" }
+            field = value
+        }
+
+    /**
+     * The number of interfaces implemented by each class.
+     * If 0, no interfaces are generated.
+     */
+    var interfaceFanOut: Int = 2
+        set(value) {
+            require(value >= 0) { "interfaceFanOut must not be negative" }
+            field = value
+        }
+
+    /**
+     * The average number of reflection calls in each class.
+     */
+    var reflectionDensity: Double = 0.5
+        set(value) {
+            require(value >= 0) { "reflectionDensity must not be negative" }
+            field = value
+        }
+
+    /**
+     * The ratio of classes with Kotlin metadata.
+     */
+    var kotlinRatio: Double = 0.5
+        set(value) {
+            require(value in 0.0..1.0) { "kotlinRatio must be in 0..1" }
+            field = value
+        }
+
+    /**
+     * The versions of multi release entries. If empty, the jar is not a multi release jar.
+     */
+    var multiReleaseVersions: List<Int> = listOf(9, 11)
+        set(value) {
+            require(value.all { it >= 9 }) { "multi release versions must be 9 or later" }
+            field = value.distinct().sorted()
+        }
+
+    /**
+     * The ratio of classes which have entries for each of [multiReleaseVersions].
+     */
+    var multiReleaseRatio: Double = 0.05
+        set(value) {
+            require(value in 0.0..1.0) { "multiReleaseRatio must be in 0..1" }
+            field = value
+        }
+
+    /**
+     * The number of resource files, including service files.
+     */
+    var resourceCount: Int = 1_000
+        set(value) {
+            require(value >= 0) { "resourceCount must not be negative" }
+            field = value
+        }
+
+    var seed: Long = 0
+
+    private val interfaceCount get() = if (interfaceFanOut == 0) 0 else maxOf(interfaceFanOut, classCount / 10)
+    private val concreteCount get() = classCount - interfaceCount
+
+    fun generate(output: File) {
+        require(concreteCount > 0) { "classCount is too small for interfaceFanOut" }
+        ZipOutputStream(BufferedOutputStream(output.outputStream())).use { zip ->
+            val generation = Generation(zip)
+            generation.writeManifest()
+            for (i in 0 until interfaceCount) generation.writeInterface(i)
+            for (i in 0 until concreteCount) generation.writeClass(i)
+            generation.writeResources()
+        }
+    }
+
+    private inner class Generation(private val zip: ZipOutputStream) {
+        private val random = Random(seed)
+        private val serviceCount = minOf(interfaceCount, resourceCount / 10)
+        // implementations of interfaces which have service files
+        private val services = Array(serviceCount) { mutableListOf<String>() }
+
+        fun writeManifest() {
+            val manifest = Manifest()
+            manifest.mainAttributes[Attributes.Name.MANIFEST_VERSION] = "1.0"
+            if (multiReleaseVersions.isNotEmpty()) manifest.mainAttributes[Attributes.Name("Multi-Release")] = "true"
+            write(JarFile.MANIFEST_NAME) { manifest.write(it) }
+        }
+
+        fun writeInterface(index: Int) {
+            val name = interfaceName(index)
+            val writer = ClassWriter(0)
+            writer.visit(V1_8, ACC_PUBLIC or ACC_ABSTRACT or ACC_INTERFACE, name, null, OBJECT, null)
+            writer.visitMethod(ACC_PUBLIC or ACC_ABSTRACT, "i$index", "()V", null, null).visitEnd()
+            writer.visitEnd()
+            writeClassFile(name, writer.toByteArray())
+        }
+
+        fun writeClass(index: Int) {
+            val name = className(index)
+            val interfaces = IntArray(interfaceFanOut) { random.nextInt(interfaceCount) }.distinct()
+            val reflectionCalls = reflectionDensity.toInt() +
+                    if (random.nextDouble() < reflectionDensity % 1) 1 else 0
+            val kotlin = random.nextDouble() < kotlinRatio
+            val multiRelease = random.nextDouble() < multiReleaseRatio
+            // the arguments of calls are decided here so that all releases refer the same classes
+            val callees = IntArray(3) { random.nextInt(concreteCount) }
+            val reflectionTargets = IntArray(reflectionCalls) { random.nextInt(concreteCount) }
+            val reflectionKinds = IntArray(reflectionCalls) { random.nextInt(REFLECTION_KINDS) }
+
+            for (i in interfaces) if (i < serviceCount) services[i] += name.replace('/', '.')
+
+            fun generate(release: Int): ByteArray {
+                val writer = ClassWriter(ClassWriter.COMPUTE_MAXS)
+                val superName = if (index % hierarchyDepth == 0) OBJECT else className(index - 1)
+                val version = if (release == 0) V1_8 else V1_8 + release - 8
+                writer.visit(version, ACC_PUBLIC or ACC_SUPER, name, null, superName,
+                    interfaces.map(::interfaceName).toTypedArray())
+                if (kotlin) writeKotlinMetadata(writer, name, superName, interfaces)
+                writer.visitField(ACC_PUBLIC, "value", "I", null, null).visitEnd()
+
+                writer.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null).apply {
+                    visitCode()
+                    visitVarInsn(ALOAD, 0)
+                    visitMethodInsn(INVOKESPECIAL, superName, "<init>", "()V", false)
+                    visitInsn(RETURN)
+                    visitMaxs(0, 0)
+                    visitEnd()
+                }
+
+                writer.visitMethod(ACC_PUBLIC or ACC_STATIC, "compute", "(I)I", null, null).apply {
+                    visitCode()
+                    visitVarInsn(ILOAD, 0)
+                    for (callee in callees) {
+                        visitMethodInsn(INVOKESTATIC, className(callee), "compute", "(I)I", false)
+                        visitLdcInsn(release + callee)
+                        visitInsn(IADD)
+                    }
+                    visitInsn(IRETURN)
+                    visitMaxs(0, 0)
+                    visitEnd()
+                }
+
+                writer.visitMethod(ACC_PUBLIC, "run", "()V", null, null).apply {
+                    visitCode()
+                    visitVarInsn(ALOAD, 0)
+                    visitVarInsn(ALOAD, 0)
+                    visitFieldInsn(GETFIELD, name, "value", "I")
+                    visitMethodInsn(INVOKESTATIC, name, "compute", "(I)I", false)
+                    visitFieldInsn(PUTFIELD, name, "value", "I")
+                    for (i in reflectionTargets.indices)
+                        visitReflectionCall(name, reflectionKinds[i], className(reflectionTargets[i]))
+                    visitInsn(RETURN)
+                    visitMaxs(0, 0)
+                    visitEnd()
+                }
+
+                for (i in interfaces) {
+                    writer.visitMethod(ACC_PUBLIC, "i$i", "()V", null, null).apply {
+                        visitCode()
+                        visitVarInsn(ALOAD, 0)
+                        visitMethodInsn(INVOKEVIRTUAL, name, "run", "()V", false)
+                        visitInsn(RETURN)
+                        visitMaxs(0, 0)
+                        visitEnd()
+                    }
+                }
+                writer.visitEnd()
+                return writer.toByteArray()
+            }
+
+            writeClassFile(name, generate(0))
+            if (multiRelease) {
+                for (release in multiReleaseVersions)
+                    writeClassFile("META-INF/versions/$release/$name", generate(release))
+            }
+        }
+
+        /**
+         * Writes one of the reflection calls mapped by the default ReflectionMappingContainer.
+         * The result is discarded.
+         */
+        private fun MethodVisitor.visitReflectionCall(owner: String, kind: Int, target: String) {
+            val dotted = target.replace('/', '.')
+            when (kind) {
+                0 -> {
+                    visitLdcInsn(dotted)
+                    visitMethodInsn(INVOKESTATIC, CLASS, "forName", "(L$STRING;)L$CLASS;", false)
+                }
+                1 -> {
+                    visitLdcInsn(Type.getObjectType(owner))
+                    visitMethodInsn(INVOKEVIRTUAL, CLASS, "getClassLoader", "()L$CLASS_LOADER;", false)
+                    visitLdcInsn(dotted)
+                    visitMethodInsn(INVOKEVIRTUAL, CLASS_LOADER, "loadClass", "(L$STRING;)L$CLASS;", false)
+                }
+                2 -> {
+                    visitLdcInsn(Type.getObjectType(target))
+                    visitLdcInsn("compute")
+                    visitInsn(ICONST_1)
+                    visitTypeInsn(ANEWARRAY, CLASS)
+                    visitInsn(DUP)
+                    visitInsn(ICONST_0)
+                    visitFieldInsn(GETSTATIC, "java/lang/Integer", "TYPE", "L$CLASS;")
+                    visitInsn(AASTORE)
+                    visitMethodInsn(INVOKEVIRTUAL, CLASS, "getMethod",
+                        "(L$STRING;[L$CLASS;)Ljava/lang/reflect/Method;", false)
+                }
+                3 -> {
+                    visitLdcInsn(Type.getObjectType(target))
+                    visitLdcInsn("value")
+                    visitMethodInsn(INVOKEVIRTUAL, CLASS, "getDeclaredField",
+                        "(L$STRING;)Ljava/lang/reflect/Field;", false)
+                }
+                else -> {
+                    visitLdcInsn(Type.getObjectType(target))
+                    visitInsn(ICONST_0)
+                    visitTypeInsn(ANEWARRAY, CLASS)
+                    visitMethodInsn(INVOKEVIRTUAL, CLASS, "getDeclaredConstructor",
+                        "([L$CLASS;)Ljava/lang/reflect/Constructor;", false)
+                }
+            }
+            visitInsn(POP)
+        }
+
+        private fun writeKotlinMetadata(writer: ClassVisitor, name: String, superName: String, interfaces: List<Int>) {
+            val kmClass = KmClass()
+            kmClass.flags = flagsOf(Flag.IS_PUBLIC, Flag.IS_OPEN)
+            kmClass.name = name
+            kmClass.supertypes += classType(if (superName == OBJECT) "kotlin/Any" else superName)
+            for (i in interfaces) kmClass.supertypes += classType(interfaceName(i))
+            kmClass.constructors += KmConstructor(flagsOf(Flag.IS_PUBLIC)).apply {
+                signature = JvmMethodSignature("<init>", "()V")
+            }
+            kmClass.functions += KmFunction(flagsOf(Flag.IS_PUBLIC, Flag.IS_OPEN), "run").apply {
+                returnType = classType("kotlin/Unit")
+                signature = JvmMethodSignature("run", "()V")
+            }
+            val header = KotlinClassMetadata.Class.Writer().also(kmClass::accept).write().header
+
+            val annotation = writer.visitAnnotation("Lkotlin/Metadata;", true)
+            annotation.visit("k", header.kind)
+            annotation.visit("mv", header.metadataVersion)
+            annotation.visitArray("d1").apply { header.data1.forEach { visit(null, it) }; visitEnd() }
+            annotation.visitArray("d2").apply { header.data2.forEach { visit(null, it) }; visitEnd() }
+            annotation.visit("xi", header.extraInt)
+            annotation.visitEnd()
+        }
+
+        private fun classType(name: String) = KmType(0).apply { classifier = KmClassifier.Class(name) }
+
+        fun writeResources() {
+            for (i in 0 until serviceCount) {
+                write("META-INF/services/${interfaceName(i).replace('/', '.')}") { out ->
+                    out.write(services[i].joinToString("\n", postfix = "\n").toByteArray())
+                }
+            }
+            for (i in serviceCount until resourceCount) {
+                val target = className(random.nextInt(concreteCount))
+                write("${target.substringBeforeLast('/')}/resource$i.properties") { out ->
+                    out.write(("class=${target.replace('/', '.')}\n" +
+                            "path=$target.class\n" +
+                            "message=resource $i of the synthetic corpus\n").toByteArray())
+                }
+            }
+        }
+
+        private fun writeClassFile(name: String, bytes: ByteArray) = write("$name.class") { it.write(bytes) }
+
+        private inline fun write(path: String, writer: (ZipOutputStream) -> Unit) {
+            val entry = ZipEntry(path)
+            // fixed time to make the jar reproducible. this is local time since ZipEntry stores local time
+            entry.time = GregorianCalendar(1980, Calendar.FEBRUARY, 1, 0, 0, 0).timeInMillis
+            zip.putNextEntry(entry)
+            writer(zip)
+            zip.closeEntry()
+        }
+    }
+
+    companion object {
+        const val CLASSES_PER_PACKAGE = 100
+        private const val REFLECTION_KINDS = 5
+        private const val OBJECT = "java/lang/Object"
+        private const val CLASS = "java/lang/Class"
+        private const val CLASS_LOADER = "java/lang/ClassLoader"
+        private const val STRING = "java/lang/String"
+
+        fun className(index: Int) = "corpus/p${index / CLASSES_PER_PACKAGE}/C$index"
+        fun interfaceName(index: Int) = "corpus/p${index / CLASSES_PER_PACKAGE}/I$index"
+    }
+}
+
+/**
+ * Generates a corpus with `name=value` arguments for properties of [CorpusGenerator], followed by the output path.
+ * For example, `classCount=100000 seed=1 build/corpus.jar`.
+ */
+fun main(args: Array<String>) {
+    require(args.isNotEmpty()) { "usage: [property=value]... <output>" }
+    val generator = CorpusGenerator()
+    for (arg in args.dropLast(1)) {
+        val (key, value) = arg.split('=', limit = 2).takeIf { it.size == 2 }
+            ?: throw IllegalArgumentException("invalid argument: $arg")
+        when (key) {
+            "classCount" -> generator.classCount = value.toInt()
+            "hierarchyDepth" -> generator.hierarchyDepth = value.toInt()
+            "interfaceFanOut" -> generator.interfaceFanOut = value.toInt()
+            "reflectionDensity" -> generator.reflectionDensity = value.toDouble()
+            "kotlinRatio" -> generator.kotlinRatio = value.toDouble()
+            "multiReleaseVersions" -> generator.multiReleaseVersions =
+                value.split(',').filter(String::isNotEmpty).map(String::toInt)
+            "multiReleaseRatio" -> generator.multiReleaseRatio = value.toDouble()
+            "resourceCount" -> generator.resourceCount = value.toInt()
+            "seed" -> generator.seed = value.toLong()
+            else -> throw IllegalArgumentException("unknown property: $key")
+        }
+    }
+    generator.generate(File(args.last()))
+}
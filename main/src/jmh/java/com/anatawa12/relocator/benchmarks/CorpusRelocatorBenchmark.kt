@@ -0,0 +1,53 @@
+package com.anatawa12.relocator.benchmarks
+
+import com.anatawa12.relocator.Relocator
+import com.anatawa12.relocator.benchmarks.Fixture.runAndWait
+import com.anatawa12.relocator.diagnostic.DiagnosticHandler
+import org.openjdk.jmh.annotations.*
+import java.io.File
+import java.util.concurrent.TimeUnit
+
+/**
+ * Relocates a jar generated by [CorpusGenerator] to see how relocation scales with the size of input.
+ * Run with `-p classes=500000` or so to relocate larger jars.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+open class CorpusRelocatorBenchmark {
+    @Param("10000", "100000")
+    var classes = 0
+
+    private lateinit var corpus: File
+    private lateinit var output: File
+
+    @Setup
+    fun setup() {
+        corpus = File.createTempFile("relocator-corpus", ".jar")
+        output = File.createTempFile("relocator-benchmark", ".jar")
+        CorpusGenerator().apply { classCount = classes }.generate(corpus)
+    }
+
+    @TearDown
+    fun tearDown() {
+        corpus.delete()
+        output.delete()
+    }
+
+    @Benchmark
+    fun run() {
+        Relocator().apply {
+            addRootPath(corpus)
+            addReferPath(Fixture.jdkClasses)
+            addReferPath(kotlinClasses)
+            addRelocateMapping("corpus", "shaded/corpus")
+            outputPath = output
+            diagnosticHandler = DiagnosticHandler { }
+        }.runAndWait()
+    }
+
+    private companion object {
+        // the corpus refers kotlin/Metadata
+        val kotlinClasses = File(Metadata::class.java.protectionDomain.codeSource.location.toURI())
+    }
+}
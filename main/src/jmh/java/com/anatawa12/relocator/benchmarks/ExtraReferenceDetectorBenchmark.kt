@@ -0,0 +1,104 @@
+
+package com.anatawa12.relocator.benchmarks
+
+import com.anatawa12.relocator.classes.ClassMethod
+import com.anatawa12.relocator.classes.CombinedClassPath
+import com.anatawa12.relocator.diagnostic.DiagnosticHandler
+import com.anatawa12.relocator.diagnostic.Location
+import com.anatawa12.relocator.internal.ComputeReferenceEnvironment
+import com.anatawa12.relocator.internal.ExtraReferenceDetector
+import com.anatawa12.relocator.reference.Reference
+import com.anatawa12.relocator.reflect.ReflectionMappingContainer
+import org.objectweb.asm.ClassWriter
+import org.objectweb.asm.MethodVisitor
+import org.objectweb.asm.Opcodes.*
+import org.objectweb.asm.Type
+import org.openjdk.jmh.annotations.*
+import org.openjdk.jmh.infra.Blackhole
+import java.util.concurrent.TimeUnit
+
+/**
+ * Runs [ExtraReferenceDetector] for methods which call reflection [calls] times with constant arguments.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+open class ExtraReferenceDetectorBenchmark {
+    @Param("1", "10")
+    var calls = 0
+
+    private lateinit var env: ComputeReferenceEnvironment
+    private lateinit var methods: List<ClassMethod>
+
+    @Setup
+    fun setup() {
+        env = ComputeReferenceEnvironment(
+            true,
+            ReflectionMappingContainer(),
+            CombinedClassPath(emptyList()),
+            DiagnosticHandler { },
+        )
+        methods = Fixture.readClass(reflectionClass(100)).methods
+    }
+
+    @Benchmark
+    fun collectExtraReferences(blackhole: Blackhole) {
+        for (method in methods) {
+            val code = method.classCode!!
+            val references = HashSet<Reference>()
+            // the methods have no jumps so no back jump labels
+            ExtraReferenceDetector(true, method.descriptor, code.maxLocals, emptyMap(),
+                env, Location.None, code.instructions, references, emptySet())
+                .collectExtraReferences()
+            blackhole.consume(references)
+        }
+    }
+
+    private fun reflectionClass(methods: Int): ByteArray {
+        val writer = ClassWriter(ClassWriter.COMPUTE_MAXS)
+        writer.visit(V1_8, ACC_PUBLIC, "reflection/Reflection", null, "java/lang/Object", null)
+        repeat(methods) { i ->
+            val visitor = writer.visitMethod(ACC_PUBLIC or ACC_STATIC, "run$i", "()V", null, null)
+            visitor.visitCode()
+            repeat(calls) { j -> visitor.reflectionCalls("reflection.Target$i$j") }
+            visitor.visitInsn(RETURN)
+            visitor.visitMaxs(0, 0)
+            visitor.visitEnd()
+        }
+        writer.visitEnd()
+        return writer.toByteArray()
+    }
+
+    // Class.forName(name).getMethod("method", String.class, Object[].class) and getDeclaredField("field")
+    private fun MethodVisitor.reflectionCalls(className: String) {
+        visitLdcInsn(className)
+        visitMethodInsn(INVOKESTATIC, CLASS, "forName", "(L$STRING;)L$CLASS;", false)
+        visitVarInsn(ASTORE, 0)
+
+        visitVarInsn(ALOAD, 0)
+        visitLdcInsn("method")
+        visitInsn(ICONST_2)
+        visitTypeInsn(ANEWARRAY, CLASS)
+        visitInsn(DUP)
+        visitInsn(ICONST_0)
+        visitLdcInsn(Type.getObjectType(STRING))
+        visitInsn(AASTORE)
+        visitInsn(DUP)
+        visitInsn(ICONST_1)
+        visitLdcInsn(Type.getType("[L$OBJECT;"))
+        visitInsn(AASTORE)
+        visitMethodInsn(INVOKEVIRTUAL, CLASS, "getMethod", "(L$STRING;[L$CLASS;)Ljava/lang/reflect/Method;", false)
+        visitInsn(POP)
+
+        visitVarInsn(ALOAD, 0)
+        visitLdcInsn("field")
+        visitMethodInsn(INVOKEVIRTUAL, CLASS, "getDeclaredField", "(L$STRING;)Ljava/lang/reflect/Field;", false)
+        visitInsn(POP)
+    }
+
+    private companion object {
+        const val CLASS = "java/lang/Class"
+        const val STRING = "java/lang/String"
+        const val OBJECT = "java/lang/Object"
+    }
+}
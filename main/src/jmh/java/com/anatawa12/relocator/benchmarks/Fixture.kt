@@ -0,0 +1,68 @@
+
+package com.anatawa12.relocator.benchmarks
+
+import com.anatawa12.relocator.Relocator
+import com.anatawa12.relocator.classes.ClassFile
+import com.anatawa12.relocator.diagnostic.DiagnosticHandler
+import com.anatawa12.relocator.file.SingleFile
+import com.anatawa12.relocator.internal.EmbeddableClassPath
+import com.anatawa12.relocator.internal.Reader
+import org.objectweb.asm.ClassReader
+import java.io.File
+import java.nio.channels.CompletionHandler
+import java.util.jar.JarFile
+
+/**
+ * The inputs of benchmarks.
+ * The classes of ASM are used since ASM is always on the classpath and refers only JDK classes.
+ */
+internal object Fixture {
+    val jar = File(ClassReader::class.java.protectionDomain.codeSource.location.toURI())
+
+    /**
+     * The jar of JDK classes to refer from the fixture.
+     */
+    val jdkClasses = File(System.getProperty("java.home"), "lib/rt.jar").also {
+        require(it.isFile) { "benchmarks require Java 8 to refer classes in rt.jar" }
+    }
+
+    const val PACKAGE = "org/objectweb/asm"
+    const val RELOCATED_PACKAGE = "shaded/asm"
+
+    val classFiles: List<SingleFile> by lazy {
+        JarFile(jar).use { jar ->
+            jar.entries().asSequence()
+                .filter { it.name.endsWith(".class") && it.name != "module-info.class" }
+                .map { entry -> SingleFile(jar.getInputStream(entry).use { it.readBytes() }) }
+                .toList()
+        }
+    }
+
+    private val loader by lazy { EmbeddableClassPath(emptyList(), false) }
+
+    fun readClasses(): List<ClassFile> = classFiles.map { Reader.read(it, loader, false) }
+
+    fun readClass(bytes: ByteArray): ClassFile = Reader.read(SingleFile(bytes), loader, false)
+
+    /**
+     * Creates the [Relocator] which relocates [jar] to [output].
+     * Warnings like unresolvable reflection calls are ignored.
+     */
+    fun relocator(output: File) = Relocator().apply {
+        addRootPath(jar)
+        addReferPath(jdkClasses)
+        addRelocateMapping(PACKAGE, RELOCATED_PACKAGE)
+        outputPath = output
+        diagnosticHandler = DiagnosticHandler { }
+    }
+
+    fun Relocator.runAndWait() {
+        run(Unit, IgnoringHandler).get()
+    }
+
+    // the failure is reported by the future
+    private object IgnoringHandler : CompletionHandler<Void?, Unit> {
+        override fun completed(result: Void?, attachment: Unit) {}
+        override fun failed(exc: Throwable, attachment: Unit) {}
+    }
+}
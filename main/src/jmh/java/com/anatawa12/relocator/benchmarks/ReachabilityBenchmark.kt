@@ -0,0 +1,37 @@
+package com.anatawa12.relocator.benchmarks
+
+import com.anatawa12.relocator.benchmarks.Fixture.runAndWait
+import org.openjdk.jmh.annotations.*
+import java.io.File
+import java.util.concurrent.TimeUnit
+
+/**
+ * Relocates the fixture jar with and without [recordReachability]
+ * to measure the overhead of recording reachability.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+open class ReachabilityBenchmark {
+    @Param("false", "true")
+    var recordReachability = false
+
+    private lateinit var output: File
+
+    @Setup
+    fun setup() {
+        output = File.createTempFile("relocator-benchmark", ".jar")
+    }
+
+    @TearDown
+    fun tearDown() {
+        output.delete()
+    }
+
+    @Benchmark
+    fun run() {
+        val relocator = Fixture.relocator(output)
+        relocator.recordReachability = recordReachability
+        relocator.runAndWait()
+    }
+}
@@ -0,0 +1,34 @@
+
+package com.anatawa12.relocator.benchmarks
+
+import com.anatawa12.relocator.classes.ClassPath
+import com.anatawa12.relocator.internal.EmbeddableClassPath
+import com.anatawa12.relocator.internal.Reader
+import org.openjdk.jmh.annotations.*
+import org.openjdk.jmh.infra.Blackhole
+import java.util.concurrent.TimeUnit
+
+/**
+ * Parses all classes of the fixture. [noCode] is true for classes in refer path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+open class ReaderBenchmark {
+    @Param("false", "true")
+    var noCode = false
+
+    private lateinit var loader: ClassPath
+
+    @Setup
+    fun setup() {
+        loader = EmbeddableClassPath(emptyList(), false)
+        Fixture.classFiles
+    }
+
+    @Benchmark
+    fun read(blackhole: Blackhole) {
+        for (file in Fixture.classFiles)
+            blackhole.consume(Reader.read(file, loader, false, noCode))
+    }
+}
@@ -0,0 +1,43 @@
+package com.anatawa12.relocator.benchmarks
+
+import com.anatawa12.relocator.classes.MethodDescriptor
+import com.anatawa12.relocator.plugin.RelocationMapping
+import org.openjdk.jmh.annotations.*
+import org.openjdk.jmh.infra.Blackhole
+import java.util.concurrent.TimeUnit
+
+/**
+ * Maps the names and the method descriptors which appear in the fixture.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+open class RelocationMappingBenchmark {
+    private lateinit var mapping: RelocationMapping
+    private lateinit var names: List<String>
+    private lateinit var descriptors: List<MethodDescriptor>
+
+    @Setup
+    fun setup() {
+        mapping = RelocationMapping(mapOf(
+            Fixture.PACKAGE to Fixture.RELOCATED_PACKAGE,
+            "${Fixture.PACKAGE}/signature" to null,
+            "com/example" to "shaded/example",
+        ))
+        val classes = Fixture.readClasses()
+        names = classes.flatMap { classFile ->
+            listOf(classFile.name) + classFile.interfaces.map { it.name } + listOfNotNull(classFile.superName?.name)
+        }
+        descriptors = classes.flatMap { classFile -> classFile.methods.map { it.descriptor } }
+    }
+
+    @Benchmark
+    fun mapFilePath(blackhole: Blackhole) {
+        for (name in names) blackhole.consume(mapping.mapFilePath(name))
+    }
+
+    @Benchmark
+    fun mapMethodDescriptor(blackhole: Blackhole) {
+        for (descriptor in descriptors) blackhole.consume(mapping.mapMethodDescriptor(descriptor))
+    }
+}
@@ -0,0 +1,37 @@
+package com.anatawa12.relocator.benchmarks
+
+import com.anatawa12.relocator.benchmarks.Fixture.runAndWait
+import org.openjdk.jmh.annotations.*
+import java.io.File
+import java.util.concurrent.TimeUnit
+
+/**
+ * Relocates the fixture jar from reading to writing the output jar
+ * with [maxParallelism] threads to see how relocation scales with cores.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+open class RelocatorBenchmark {
+    @Param("1", "2", "4", "8")
+    var maxParallelism = 0
+
+    private lateinit var output: File
+
+    @Setup
+    fun setup() {
+        output = File.createTempFile("relocator-benchmark", ".jar")
+    }
+
+    @TearDown
+    fun tearDown() {
+        output.delete()
+    }
+
+    @Benchmark
+    fun run() {
+        val relocator = Fixture.relocator(output)
+        relocator.maxParallelism = maxParallelism
+        relocator.runAndWait()
+    }
+}
@@ -0,0 +1,49 @@
+
+package com.anatawa12.relocator.benchmarks
+
+import com.anatawa12.relocator.classes.ConstantString
+import com.anatawa12.relocator.classes.LdcInsn
+import com.anatawa12.relocator.internal.StringClassRelocator
+import com.anatawa12.relocator.plugin.RelocationMapping
+import org.openjdk.jmh.annotations.*
+import org.openjdk.jmh.infra.Blackhole
+import java.util.concurrent.TimeUnit
+
+/**
+ * Maps the string constants in the fixture and the class names in some forms.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+open class StringClassRelocatorBenchmark {
+    @Param("false", "true")
+    var embeddedClassNames = false
+
+    private lateinit var relocator: StringClassRelocator
+    private lateinit var strings: List<String>
+
+    @Setup
+    fun setup() {
+        val mapping = RelocationMapping(mapOf(Fixture.PACKAGE to Fixture.RELOCATED_PACKAGE))
+        relocator = StringClassRelocator(mapping, embeddedClassNames)
+        val classes = Fixture.readClasses()
+        val constants = classes.asSequence()
+            .flatMap { it.methods }
+            .flatMap { it.classCode?.instructions.orEmpty() }
+            .mapNotNull { ((it as? LdcInsn)?.value as? ConstantString)?.value }
+        val names = classes.asSequence().flatMap { classFile ->
+            sequenceOf(
+                classFile.name,
+                classFile.name.replace('/', '.'),
+                "L${classFile.name};",
+                "class ${classFile.name.replace('/', '.')} is not found",
+            )
+        }
+        strings = (constants + names).toList()
+    }
+
+    @Benchmark
+    fun mapString(blackhole: Blackhole) {
+        for (string in strings) blackhole.consume(relocator.mapString(string))
+    }
+}
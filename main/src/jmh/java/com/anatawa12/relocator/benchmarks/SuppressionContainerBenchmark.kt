@@ -0,0 +1,59 @@
+package com.anatawa12.relocator.benchmarks
+
+import com.anatawa12.relocator.diagnostic.Location
+import com.anatawa12.relocator.diagnostic.SuppressingLocation
+import com.anatawa12.relocator.diagnostic.SuppressingValue
+import com.anatawa12.relocator.diagnostic.SuppressionContainer
+import org.openjdk.jmh.annotations.*
+import org.openjdk.jmh.infra.Blackhole
+import java.util.concurrent.TimeUnit
+
+/**
+ * Looks up suppressions for all methods in the fixture.
+ * [lookUpCached] measures lookups after the results are cached,
+ * and [lookUp] measures lookups with a new container including computation of results.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+open class SuppressionContainerBenchmark {
+    private lateinit var cached: SuppressionContainer
+    private lateinit var locations: List<Location>
+
+    @Setup
+    fun setup() {
+        locations = Fixture.readClasses().flatMap { classFile -> classFile.methods.map(Location::Method) }
+        cached = newContainer()
+        lookUp(cached, null)
+    }
+
+    @Benchmark
+    fun lookUpCached(blackhole: Blackhole) = lookUp(cached, blackhole)
+
+    @Benchmark
+    fun lookUp(blackhole: Blackhole) = lookUp(newContainer(), blackhole)
+
+    private fun lookUp(container: SuppressionContainer, blackhole: Blackhole?) {
+        for (location in locations) {
+            for (name in DIAGNOSTICS) {
+                val list = container.getDiagnosticList(location, name)
+                blackhole?.consume(list)
+            }
+        }
+    }
+
+    private fun newContainer() = SuppressionContainer().apply {
+        add(null, DIAGNOSTICS[0])
+        add(SuppressingLocation.InPackage(Fixture.PACKAGE), DIAGNOSTICS[1], SuppressingValue.Any)
+        add(SuppressingLocation.InClass("${Fixture.PACKAGE}/ClassReader"), DIAGNOSTICS[2])
+        add(SuppressingLocation.InMethod("${Fixture.PACKAGE}/ClassWriter", "getCommonSuperClass"), DIAGNOSTICS[1])
+    }
+
+    private companion object {
+        val DIAGNOSTICS = listOf(
+            "UNRESOLVABLE_REFLECTION_CLASS",
+            "UNRESOLVABLE_REFLECTION_METHOD",
+            "UNSUPPORTED_ATTRIBUTE",
+        )
+    }
+}
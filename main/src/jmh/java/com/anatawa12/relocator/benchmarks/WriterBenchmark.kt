@@ -0,0 +1,66 @@
+package com.anatawa12.relocator.benchmarks
+
+import com.anatawa12.relocator.classes.ClassFile
+import com.anatawa12.relocator.internal.Writer
+import org.objectweb.asm.ClassWriter
+import org.objectweb.asm.Label
+import org.objectweb.asm.Opcodes.*
+import org.openjdk.jmh.annotations.*
+import org.openjdk.jmh.infra.Blackhole
+import java.util.concurrent.TimeUnit
+
+/**
+ * Writes classes of the fixture, and a class with many instructions to measure bulk emission of instructions.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+open class WriterBenchmark {
+    private lateinit var classes: List<ClassFile>
+    private lateinit var bulkClass: ClassFile
+    private val writer = Writer()
+
+    @Setup
+    fun setup() {
+        classes = Fixture.readClasses()
+        bulkClass = Fixture.readClass(bulkClass(500))
+    }
+
+    @Benchmark
+    fun writeClasses(blackhole: Blackhole) {
+        for (classFile in classes)
+            blackhole.consume(ClassWriter(0).also { writer.writeClass(classFile, it) }.toByteArray())
+    }
+
+    @Benchmark
+    fun writeBulkInstructions(): ByteArray =
+        ClassWriter(0).also { writer.writeClass(bulkClass, it) }.toByteArray()
+
+    private fun bulkClass(methods: Int): ByteArray {
+        val writer = ClassWriter(0)
+        writer.visit(V1_5, ACC_PUBLIC, "bulk/Bulk", null, "java/lang/Object", null)
+        repeat(methods) { i ->
+            val visitor = writer.visitMethod(ACC_PUBLIC or ACC_STATIC, "run$i", "()V", null, null)
+            visitor.visitCode()
+            for (opcode in insnOpcodes) visitor.visitInsn(opcode)
+            for (opcode in ILOAD..ALOAD) visitor.visitVarInsn(opcode, 1)
+            for (opcode in ISTORE..ASTORE) visitor.visitVarInsn(opcode, 1)
+            for (opcode in GETSTATIC..PUTFIELD)
+                visitor.visitFieldInsn(opcode, "bulk/Bulk", "field", "I")
+            for (opcode in INVOKEVIRTUAL..INVOKEINTERFACE)
+                visitor.visitMethodInsn(opcode, "bulk/Bulk", "method", "()V", opcode == INVOKEINTERFACE)
+            val label = Label()
+            for (opcode in IFEQ..IF_ACMPNE) visitor.visitJumpInsn(opcode, label)
+            visitor.visitLabel(label)
+            visitor.visitInsn(RETURN)
+            visitor.visitMaxs(16, 16)
+            visitor.visitEnd()
+        }
+        writer.visitEnd()
+        return writer.toByteArray()
+    }
+
+    // instructions without operands except constants, which are read as LDC
+    private val insnOpcodes = (IALOAD..SASTORE) + (POP..LXOR) + (I2L..DCMPG) +
+            listOf(ARRAYLENGTH, ATHROW, MONITORENTER, MONITOREXIT)
+}
@@ -0,0 +1,161 @@
+package com.anatawa12.relocator
+
+import com.anatawa12.relocator.classes.ClassField
+import com.anatawa12.relocator.classes.ClassFile
+import com.anatawa12.relocator.classes.ClassMethod
+import com.anatawa12.relocator.classes.ClassRecordField
+import com.anatawa12.relocator.diagnostic.Location
+import com.anatawa12.relocator.reference.Reference
+import java.util.*
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * The index to explain why a class or member is included.
+ * This will be recorded if [Relocator.recordReachability] is true.
+ *
+ * For each included class or member, this records the [Reference] reached it first
+ * and the class or member the reference is from.
+ * While recording, references are collected in order of the depth from the roots,
+ * so the recorded path is one of the shortest paths from the roots.
+ */
+class ReachabilityIndex internal constructor() {
+    // each node has the index of its entry and the entries are in pages of arrays
+    // so recording a node doesn't allocate any object per node.
+    private val nextId = AtomicInteger()
+    @Volatile
+    private var pages = arrayOfNulls<Page>(16)
+
+    /**
+     * Records [node] is reached by [reachedBy] which is referenced from [predecessor].
+     * The [predecessor] must be recorded before or null if [reachedBy] is from the roots.
+     * If [node] is already recorded, this does nothing.
+     */
+    internal fun record(node: Any, reachedBy: Reference, predecessor: Any?) {
+        // most nodes are reached by some references so check before taking an index
+        if (idOf(node) != -1) return
+        val id = nextId.getAndIncrement()
+        check(id >= 0) { "too many nodes are recorded" }
+        // if another thread recorded the node at the same time, the index is left unused.
+        if (!claimId(node, id)) return
+        val predecessorId = if (predecessor == null) -1 else idOf(predecessor)
+        require(predecessor == null || predecessorId != -1) { "predecessor is not recorded: $predecessor" }
+        val page = page(id ushr PAGE_SHIFT)
+        val offset = id and PAGE_MASK
+        page.nodes[offset] = node
+        page.reachedBy[offset] = reachedBy
+        page.predecessors[offset] = predecessorId
+    }
+
+    /**
+     * Moves the entry of [old] to [new], which replaces [old] in the class path.
+     */
+    internal fun replace(old: Any, new: Any) {
+        val id = idOf(old)
+        if (id == -1) return
+        check(claimId(new, id)) { "replacing node is already recorded: $new" }
+        page(id ushr PAGE_SHIFT).nodes[id and PAGE_MASK] = new
+    }
+
+    private fun page(index: Int): Page {
+        pages.let { pages -> if (index < pages.size) pages[index]?.let { return it } }
+        return synchronized(this) {
+            if (index >= pages.size) pages = pages.copyOf(maxOf(pages.size * 2, index + 1))
+            pages[index] ?: Page().also { pages[index] = it }
+        }
+    }
+
+    private fun idOf(node: Any): Int = when (node) {
+        is ClassFile -> node.reachabilityId
+        is ClassMethod -> node.reachabilityId
+        is ClassField -> node.reachabilityId
+        is ClassRecordField -> node.reachabilityId
+        else -> throw IllegalArgumentException("unknown node: $node")
+    }
+
+    private fun claimId(node: Any, id: Int): Boolean = when (node) {
+        is ClassFile -> node.claimReachabilityId(id)
+        is ClassMethod -> node.claimReachabilityId(id)
+        is ClassField -> node.claimReachabilityId(id)
+        is ClassRecordField -> node.claimReachabilityId(id)
+        else -> throw IllegalArgumentException("unknown node: $node")
+    }
+
+    /**
+     * Returns the [Reference] reached to the class. The reference has [Location] it's from.
+     */
+    fun getReachedBy(node: ClassFile): Reference? = getReachedByInternal(node)
+    fun getReachedBy(node: ClassMethod): Reference? = getReachedByInternal(node)
+    fun getReachedBy(node: ClassField): Reference? = getReachedByInternal(node)
+    fun getReachedBy(node: ClassRecordField): Reference? = getReachedByInternal(node)
+
+    private fun getReachedByInternal(node: Any): Reference? {
+        val id = idOf(node)
+        if (id == -1) return null
+        return page(id ushr PAGE_SHIFT).reachedBy[id and PAGE_MASK]
+    }
+
+    /**
+     * Returns a path from the roots to the class. The first element is reached from the roots
+     * and the last element is for the class.
+     * Returns null if the class is not included.
+     */
+    fun getPath(node: ClassFile): Path? = getPathInternal(node)
+    fun getPath(node: ClassMethod): Path? = getPathInternal(node)
+    fun getPath(node: ClassField): Path? = getPathInternal(node)
+    fun getPath(node: ClassRecordField): Path? = getPathInternal(node)
+
+    internal fun getPathInternal(node: Any): Path? {
+        var id = idOf(node)
+        if (id == -1) return null
+        val steps = ArrayList<Step>()
+        // predecessor is always recorded before the node so this never loops infinitely.
+        while (id != -1) {
+            val page = page(id ushr PAGE_SHIFT)
+            val offset = id and PAGE_MASK
+            steps.add(Step(page.nodes[offset]!!, page.reachedBy[offset]!!))
+            id = page.predecessors[offset]
+        }
+        steps.reverse()
+        return Path(Collections.unmodifiableList(steps))
+    }
+
+    class Step internal constructor(
+        /**
+         * The [ClassFile], [ClassMethod], [ClassField], or [ClassRecordField].
+         */
+        val node: Any,
+        val reachedBy: Reference,
+    ) {
+        override fun toString(): String {
+            val location = reachedBy.location
+            return if (location == null || location is Location.None) "$reachedBy (root)"
+            else "$reachedBy $location"
+        }
+    }
+
+    class Path internal constructor(val steps: List<Step>) {
+        /**
+         * Appends the report of this path. One line per step.
+         */
+        fun appendTo(appendable: Appendable) {
+            for ((i, step) in steps.withIndex()) {
+                if (i != 0) appendable.append("  ".repeat(i - 1)).append("-> ")
+                appendable.append(step.toString()).append('\n')
+            }
+        }
+
+        override fun toString(): String = buildString { appendTo(this) }
+    }
+
+    private class Page {
+        val nodes = arrayOfNulls<Any>(PAGE_SIZE)
+        val reachedBy = arrayOfNulls<Reference>(PAGE_SIZE)
+        val predecessors = IntArray(PAGE_SIZE)
+    }
+
+    private companion object {
+        const val PAGE_SHIFT = 12
+        const val PAGE_SIZE = 1 shl PAGE_SHIFT
+        const val PAGE_MASK = PAGE_SIZE - 1
+    }
+}
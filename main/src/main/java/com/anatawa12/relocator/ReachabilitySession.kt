@@ -0,0 +1,52 @@
+package com.anatawa12.relocator
+
+import com.anatawa12.relocator.classes.ClassFile
+import com.anatawa12.relocator.diagnostic.ErrorFoundException
+import java.io.Closeable
+
+/**
+ * The session keeps classes and members included by [Relocator] and updates them incrementally
+ * when roots or classes are changed, for example, in watch mode or IDE integration.
+ * This is created by [Relocator.openReachabilitySession] and doesn't relocate classes.
+ *
+ * The methods block until reachability is updated and must not be called concurrently.
+ * If a method throws, for example, [ErrorFoundException], the session should be closed.
+ */
+abstract class ReachabilitySession internal constructor() : Closeable {
+    /**
+     * The [ReachabilityIndex] of the included classes and members.
+     * This will be null if [Relocator.recordReachability] is false.
+     * After classes are updated incrementally, the paths to the classes and members
+     * included before may not be the shortest.
+     */
+    abstract val reachabilityIndex: ReachabilityIndex?
+
+    /**
+     * Returns the included classes in the root and embed path.
+     */
+    abstract fun getIncludedClasses(): List<ClassFile>
+
+    /**
+     * Adds classes in the embed path to the roots.
+     * Classes and members already included are not traversed again.
+     *
+     * @param names The names of the classes. Each name must be either binary name or internal form of binary name.
+     */
+    abstract fun addRoots(names: Collection<String>)
+
+    /**
+     * Replaces classes in the root or embed path with the new class files.
+     * If members and super types of the classes are not changed, only references newly added to
+     * the included classes and members are collected.
+     * Otherwise, or if some references of the included classes or members are removed,
+     * references are collected from the roots again.
+     *
+     * @param classes The map from the names of the classes to the new class files.
+     */
+    abstract fun updateClasses(classes: Map<String, ByteArray>)
+
+    /**
+     * Updates reachability after [Relocator.reflectionMap] is modified.
+     */
+    abstract fun reloadReflectionMap()
+}
@@ -0,0 +1,79 @@
+package com.anatawa12.relocator
+
+/**
+ * The listener of progress of relocation. Set this to [Relocator.listener].
+ * The methods may be called from any thread but never called concurrently for one relocation.
+ */
+abstract class RelocationListener {
+    /**
+     * Called when [phase] is started.
+     */
+    open fun phaseStarted(phase: RelocationPhase) {}
+
+    /**
+     * Called when [phase] is finished with the time the phase took
+     * and the progress at the end of the phase.
+     */
+    open fun phaseFinished(phase: RelocationPhase, elapsedNanos: Long, progress: RelocationProgress) {}
+
+    /**
+     * Called every [Relocator.progressInterval] while relocation is running.
+     */
+    open fun progress(progress: RelocationProgress) {}
+}
+
+/**
+ * The phases of relocation in order of execution.
+ */
+enum class RelocationPhase(val displayName: String) {
+    LOAD_PLUGINS("loadPlugins"),
+    CONSTRUCT("construct"),
+    INIT("init"),
+    COMPUTE_REFERENCES("computeReferences"),
+    COLLECT_REFERENCES("collectReferences"),
+    LIST_UP("listUpClasses&Files"),
+    RELOCATE("relocateClasses&File"),
+    WRITE("writeJar"),
+}
+
+/**
+ * The snapshot of counters of relocation.
+ */
+class RelocationProgress internal constructor(
+    /**
+     * The phase running when the snapshot is taken.
+     */
+    val phase: RelocationPhase,
+    /**
+     * The number of classes in [Relocator.embedPath] and [Relocator.rootPath].
+     */
+    val classesLoaded: Long,
+    /**
+     * The number of class files parsed, including classes in [Relocator.referPath] loaded on demand.
+     */
+    val classesParsed: Long,
+    /**
+     * The number of classes reached from the roots, which will be relocated.
+     */
+    val classesReached: Long,
+    val classesRelocated: Long,
+    val classesWritten: Long,
+    /**
+     * The number of bytes of class files and files read into memory.
+     * Files copied to the output without being loaded are not counted.
+     */
+    val bytesRead: Long,
+    /**
+     * The number of bytes written to [Relocator.outputPath] before compression.
+     */
+    val bytesWritten: Long,
+    /**
+     * The number of relocation tasks which are waiting or running.
+     */
+    val pendingTasks: Long,
+) {
+    override fun toString(): String = "RelocationProgress(phase=$phase, " +
+            "classesLoaded=$classesLoaded, classesParsed=$classesParsed, classesReached=$classesReached, " +
+            "classesRelocated=$classesRelocated, classesWritten=$classesWritten, " +
+            "bytesRead=$bytesRead, bytesWritten=$bytesWritten, pendingTasks=$pendingTasks)"
+}
@@ -3,15 +3,20 @@ package com.anatawa12.relocator
 import com.anatawa12.relocator.diagnostic.DiagnosticException
 import com.anatawa12.relocator.diagnostic.DiagnosticHandler
 import com.anatawa12.relocator.diagnostic.SuppressionContainer
+import com.anatawa12.relocator.internal.ReachabilitySessionImpl
 import com.anatawa12.relocator.internal.RelocatingEnvironment
+import com.anatawa12.relocator.internal.RelocationExecution
 import com.anatawa12.relocator.internal.ThrowingDiagnosticHandler
 import com.anatawa12.relocator.internal.plugins.exclude.ExcludeClassRelocatorPlugin
 import com.anatawa12.relocator.plugin.ClassRelocatorPlugin
 import com.anatawa12.relocator.reflect.ReflectionMappingContainer
-import kotlinx.coroutines.Dispatchers
 import java.io.File
 import java.nio.channels.CompletionHandler
 import java.util.*
+import java.time.Duration
+import java.util.concurrent.CancellationException
+import java.util.concurrent.Executor
+import java.util.concurrent.Future
 import java.util.function.Function
 import kotlin.collections.ArrayDeque
 import kotlin.collections.LinkedHashMap
@@ -70,6 +75,12 @@ class Relocator {
         _rootPath.add(rootPath)
     }
 
+    /**
+     * The jar file to write the relocated classes and files to.
+     * If null, the relocated jar is not written.
+     */
+    var outputPath: File? = null
+
     private val _plugins = LinkedHashMap<String, ClassRelocatorPlugin>()
 
     /**
@@ -173,12 +184,96 @@ class Relocator {
     // TODO: add parameter to configure debug output
     var debugMode: Boolean = false
 
-    fun <A> run(attachment: A, callback: CompletionHandler<Void?, A>) {
+    /**
+     * If true, class names embedded in longer string constants, for example,
+     * `com/example/Foo` in `"(Lcom/example/Foo;)V"` or `com.example.Foo` in a message,
+     * will also be relocated.
+     * By default, only string constants which are exactly a class name or descriptor will be relocated.
+     */
+    var relocateEmbeddedClassNames: Boolean = false
+
+    /**
+     * The executor to run CPU bound work of relocation on.
+     * If null, the shared pool for CPU bound work of kotlinx.coroutines is used.
+     */
+    var computeExecutor: Executor? = null
+
+    /**
+     * The executor to run blocking I/O, for example, reading jars, on.
+     * If null, the shared pool for I/O of kotlinx.coroutines or virtual threads
+     * if [useVirtualThreads] is true are used.
+     */
+    var ioExecutor: Executor? = null
+
+    /**
+     * The maximum number of threads to run CPU bound work, for example, relocating and serializing classes, at once.
+     * Defaults the number of available processors.
+     */
+    var maxParallelism: Int = Runtime.getRuntime().availableProcessors()
+        set(value) {
+            require(value > 0) { "maxParallelism must be positive" }
+            field = value
+        }
+
+    /**
+     * If true and virtual threads are available at runtime, blocking I/O runs on virtual threads
+     * unless [ioExecutor] is specified. CPU bound work doesn't run on virtual threads.
+     */
+    var useVirtualThreads: Boolean = false
+
+    /**
+     * If true, the reason why each class or member is included will be recorded to [reachabilityIndex].
+     */
+    var recordReachability: Boolean = false
+
+    /**
+     * The [ReachabilityIndex] recorded by last run.
+     * This will be null if [recordReachability] is false or not ran yet.
+     */
+    var reachabilityIndex: ReachabilityIndex? = null
+        internal set
+
+    /**
+     * The listener notified of phases and progress of relocation.
+     */
+    var listener: RelocationListener? = null
+
+    /**
+     * The interval to call [RelocationListener.progress].
+     */
+    var progressInterval: Duration = Duration.ofSeconds(1)
+        set(value) {
+            require(!value.isNegative && !value.isZero) { "progressInterval must be positive" }
+            field = value
+        }
+
+    /**
+     * The maximum time to run relocation. If relocation doesn't finish within the time,
+     * it will be cancelled and [run] fails with [CancellationException].
+     * If null, there's no deadline.
+     */
+    var timeout: Duration? = null
+
+    /**
+     * Loads classes and collects references from the roots, and returns the session to update
+     * the included classes and members incrementally. This blocks until references are collected.
+     */
+    fun openReachabilitySession(): ReachabilitySession = ReachabilitySessionImpl(this)
+
+    /**
+     * Runs relocation asynchronously and calls [callback] when relocation is finished.
+     *
+     * @return The future completed when relocation is finished. Cancelling the future cancels relocation
+     * and [callback] will be called with [CancellationException] after running tasks are stopped.
+     */
+    fun <A> run(attachment: A, callback: CompletionHandler<Void?, A>): Future<Void?> {
+        val execution = RelocationExecution(this)
         class ContinuationImpl : Continuation<Unit> {
             override val context: CoroutineContext
-                get() = Dispatchers.Default
+                get() = execution.context
 
             override fun resumeWith(result: Result<Unit>) {
+                execution.complete(result)
                 if (result.isFailure) {
                     callback.failed(result.exceptionOrNull()!!, attachment)
                 } else {
@@ -188,10 +283,11 @@ class Relocator {
         }
         val continuation = ContinuationImpl()
         try {
-            (RelocatingEnvironment(this)::run as (suspend () -> Unit))
-                .startCoroutine(continuation)
+            val environment = RelocatingEnvironment(this)
+            suspend { execution.run(environment::run) }.startCoroutine(continuation)
         } catch (t: Throwable) {
             continuation.resumeWith(Result.failure(t))
         }
+        return execution.future
     }
 }
@@ -20,6 +20,13 @@ class ClassCode(
     val instructions: InsnList = ownerAccessorInsnList.preInit(this, instructions)
 
     val tryCatchBlocks = tryCatchBlocks.toMutableList()
+
+    /**
+     * True if the instructions are changed so the stack map frames must be recomputed on writing.
+     * This is set when [instructions] is modified. ClassRelocators which modify
+     * the instructions in other ways, e.g. changing jump targets, should set this.
+     */
+    var framesInvalidated: Boolean = false
     val visibleLocalVariableAnnotations = visibleLocalVariableAnnotations.toMutableList()
     val invisibleLocalVariableAnnotations = invisibleLocalVariableAnnotations.toMutableList()
 
@@ -46,9 +53,32 @@ class ClassCode(
     }
 }
 
-class InsnList : MutableList<Insn> by ArrayList() {
+class InsnList : AbstractMutableList<Insn>() {
+    private val list = ArrayList<Insn>()
     private val owner = atomic<ClassCode?>(null)
 
+    override val size: Int get() = list.size
+    override fun get(index: Int): Insn = list[index]
+
+    override fun set(index: Int, element: Insn): Insn = list.set(index, element).also { modified() }
+
+    override fun add(index: Int, element: Insn) {
+        list.add(index, element)
+        modified()
+    }
+
+    override fun removeAt(index: Int): Insn = list.removeAt(index).also { modified() }
+
+    override fun clear() {
+        list.clear()
+        modified()
+    }
+
+    // the list is built before the code so modifications are changes of the code
+    private fun modified() {
+        owner.value?.framesInvalidated = true
+    }
+
     init {
         ownerAccessorInsnList = Accessor
     }
@@ -7,6 +7,7 @@ import com.anatawa12.relocator.internal.*
 import com.anatawa12.relocator.internal.BasicDiagnostics.UNSUPPORTED_ATTRIBUTE
 import com.anatawa12.relocator.internal.ComputeReferenceEnvironment
 import com.anatawa12.relocator.internal.InnerClassContainer
+import com.anatawa12.relocator.internal.computeReferencesEvent
 import com.anatawa12.relocator.internal.computeReferencesOfClass
 import com.anatawa12.relocator.internal.computeReferencesOfField
 import com.anatawa12.relocator.internal.computeReferencesOfRecordField
@@ -52,6 +53,12 @@ class ClassFile private constructor(
     val permittedSubclasses = permittedSubclasses.toMutableList()
 
     var included: Boolean = false
+    // the index of the entry in ReachabilityIndex or -1 if not recorded
+    private val _reachabilityId = atomic(-1)
+    internal var reachabilityId: Int
+        get() = _reachabilityId.value
+        set(value) { _reachabilityId.value = value }
+    internal fun claimReachabilityId(id: Int): Boolean = _reachabilityId.compareAndSet(-1, id)
     internal val innerClassesContainer by lazy { InnerClassContainer(innerClasses) }
     lateinit var references: Set<Reference>
     val externalReferences = mutableSetOf<Reference>()
@@ -71,12 +78,19 @@ class ClassFile private constructor(
     }
 
     internal suspend fun computeReferences(env: ComputeReferenceEnvironment) {
+        val event = computeReferencesEvent()
         references = computeReferencesOfClass(env, this)
         methods.forEach { it.computeReferences(env) }
         fields.forEach { it.computeReferences(env) }
         recordFields.forEach { it.computeReferences(env) }
         for (attrName in attrNames)
             env.addDiagnostic(UNSUPPORTED_ATTRIBUTE(attrName, Location.Class(this)))
+        if (event != null) {
+            event.className = name
+            event.members = methods.size + fields.size + recordFields.size
+            event.references = references.size
+            event.commit()
+        }
     }
 
     fun computeReferencesForLibrary() {
@@ -206,6 +220,12 @@ class ClassMethod private constructor(
     val invisibleParameterAnnotations = invisibleParameterAnnotations.mapToArray { it?.toMutableList() }
 
     var included: Boolean = false
+    // the index of the entry in ReachabilityIndex or -1 if not recorded
+    private val _reachabilityId = atomic(-1)
+    internal var reachabilityId: Int
+        get() = _reachabilityId.value
+        set(value) { _reachabilityId.value = value }
+    internal fun claimReachabilityId(id: Int): Boolean = _reachabilityId.compareAndSet(-1, id)
     lateinit var references: Set<Reference>
     val externalReferences = mutableSetOf<Reference>()
     val allReferences get() = references + externalReferences
@@ -291,6 +311,12 @@ class ClassField private constructor(
     val invisibleTypeAnnotations = invisibleTypeAnnotations.toMutableList()
 
     var included: Boolean = false
+    // the index of the entry in ReachabilityIndex or -1 if not recorded
+    private val _reachabilityId = atomic(-1)
+    internal var reachabilityId: Int
+        get() = _reachabilityId.value
+        set(value) { _reachabilityId.value = value }
+    internal fun claimReachabilityId(id: Int): Boolean = _reachabilityId.compareAndSet(-1, id)
     lateinit var references: Set<ClassReference>
     val externalReferences = mutableSetOf<Reference>()
     val allReferences get() = references + externalReferences
@@ -362,6 +388,12 @@ class ClassRecordField(
     val invisibleTypeAnnotations = invisibleTypeAnnotations.toMutableList()
 
     var included: Boolean = false
+    // the index of the entry in ReachabilityIndex or -1 if not recorded
+    private val _reachabilityId = atomic(-1)
+    internal var reachabilityId: Int
+        get() = _reachabilityId.value
+        set(value) { _reachabilityId.value = value }
+    internal fun claimReachabilityId(id: Int): Boolean = _reachabilityId.compareAndSet(-1, id)
     lateinit var references: Set<Reference>
     val externalReferences = mutableSetOf<Reference>()
     val allReferences get() = references + externalReferences
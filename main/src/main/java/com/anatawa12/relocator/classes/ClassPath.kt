@@ -31,6 +31,13 @@ abstract class ClassPath internal constructor(files: List<File>) {
     }
 
     protected abstract suspend fun loadClass(name: String): ClassFile?
+
+    /**
+     * Closes the jar files of this class path. Files not loaded yet cannot be loaded after this.
+     */
+    internal fun close() {
+        containers.forEach { it.close() }
+    }
 }
 
 class CombinedClassPath(
@@ -11,13 +11,21 @@ abstract class AnyMethodDescriptor(val descriptor: String) {
     }
 }
 
-class MethodDescriptor(descriptor: String) : AnyMethodDescriptor(descriptor), RelocationMappingPrimitiveMarker {
+class MethodDescriptor private constructor(
+    descriptor: String,
+    // null if not parsed yet. parsed lazily for descriptors known to be valid.
+    private var parsedArgIndices: IntArray?,
+) : AnyMethodDescriptor(descriptor), RelocationMappingPrimitiveMarker {
+    constructor(descriptor: String) : this(descriptor, DescriptorSignatures.parseMethodDesc(descriptor)) {
+        Init.init()
+    }
     constructor(returns: TypeDescriptor, vararg args: TypeDescriptor) :
             this(returns, args.asList())
     constructor(returns: TypeDescriptor, args: List<TypeDescriptor>) :
             this(args.joinToString(prefix = "(", postfix = ")${returns.descriptor}", separator = ""))
 
-    private val argIndices = DescriptorSignatures.parseMethodDesc(descriptor)
+    private val argIndices: IntArray get() =
+        parsedArgIndices ?: DescriptorSignatures.parseMethodDesc(descriptor).also { parsedArgIndices = it }
     private val _arguments = ArgsList()
     val arguments: List<TypeDescriptor> get() = _arguments
     val returns: TypeDescriptor get() {
@@ -36,6 +44,14 @@ class MethodDescriptor(descriptor: String) : AnyMethodDescriptor(descriptor), Re
         }
     }
 
+    private object Init {
+        init {
+            newMethodDescriptor = { MethodDescriptor(it, null) }
+        }
+
+        @JvmStatic fun init() {}
+    }
+
     override fun equals(other: Any?): Boolean =
         this === other || javaClass == other?.javaClass && descriptor == (other as MethodDescriptor).descriptor
     override fun hashCode(): Int = descriptor.hashCode()
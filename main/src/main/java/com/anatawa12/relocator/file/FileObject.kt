@@ -1,6 +1,14 @@
-
 package com.anatawa12.relocator.file
 
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.InputStream
+import java.nio.ByteBuffer
+import java.nio.channels.Channels
+import java.nio.channels.ReadableByteChannel
+import java.nio.channels.WritableByteChannel
+import java.util.concurrent.Callable
+
 @Suppress("OVERLOADS_WITHOUT_DEFAULT_ARGUMENTS")
 class FileObject @JvmOverloads constructor(
     var path: String,
@@ -9,8 +17,118 @@ class FileObject @JvmOverloads constructor(
     // list of files
 }
 
-class SingleFile @JvmOverloads constructor(var data: ByteArray, val release: Int = 0) {
+/**
+ * A file in a [FileObject]. The content of the file is loaded lazily
+ * and [transform]s are applied lazily in order.
+ */
+class SingleFile private constructor(
+    private var loaded: ByteArray?,
+    private val source: Callable<InputStream>?,
+    val release: Int,
+) {
+    @JvmOverloads
+    constructor(data: ByteArray, release: Int = 0) : this(data, null, release)
+
+    /**
+     * Creates a file whose content is read from [source] when it's required.
+     * [source] may be called multiple times.
+     */
+    @JvmOverloads
+    constructor(source: Callable<InputStream>, release: Int = 0) : this(null, source, release)
+
+    private val transforms = mutableListOf<FileTransformer>()
+
     init {
         require(release == 0 || release in 9..Int.MAX_VALUE) { "invalid multi release version" }
     }
+
+    /**
+     * The content of the file.
+     * Getting this loads whole the content and applies pending [transform]s.
+     */
+    var data: ByteArray
+        get() = synchronized(this) { loaded?.takeIf { transforms.isEmpty() } ?: materialize() }
+        set(value) = synchronized(this) {
+            loaded = value
+            transforms.clear()
+        }
+
+    /**
+     * True if the content is in memory and no [transform] is pending.
+     */
+    val isLoaded: Boolean get() = synchronized(this) { loaded != null && transforms.isEmpty() }
+
+    /**
+     * Opens the channel to read the content.
+     * If the content is not loaded and no [transform] is pending, this streams from the source.
+     */
+    fun openChannel(): ReadableByteChannel {
+        synchronized(this) {
+            if (loaded == null && transforms.isEmpty())
+                return Channels.newChannel(source!!.call())
+        }
+        return Channels.newChannel(ByteArrayInputStream(data))
+    }
+
+    /**
+     * Adds [transformer] to transform the content.
+     * The transformer is not called until the content is required.
+     */
+    fun transform(transformer: FileTransformer) {
+        synchronized(this) { transforms.add(transformer) }
+    }
+
+    /**
+     * Writes the content to [output]. If the content is not loaded,
+     * this streams from the source through pending [transform]s.
+     */
+    fun writeTo(output: WritableByteChannel) {
+        val (loaded, transforms) = synchronized(this) { loaded to transforms.toList() }
+        val input = if (loaded != null) Channels.newChannel(ByteArrayInputStream(loaded))
+        else Channels.newChannel(source!!.call())
+        input.use { writeTransformed(it, output, transforms) }
+    }
+
+    private fun materialize(): ByteArray {
+        val buffer = ByteArrayOutputStream()
+        writeTo(Channels.newChannel(buffer))
+        return buffer.toByteArray().also {
+            loaded = it
+            transforms.clear()
+        }
+    }
+
+    private companion object {
+        fun writeTransformed(input: ReadableByteChannel, output: WritableByteChannel, transforms: List<FileTransformer>) {
+            var current = input
+            // the output of transforms except last are buffered
+            for (transformer in transforms.dropLast(1)) {
+                val buffer = ByteArrayOutputStream()
+                transformer.transform(current, Channels.newChannel(buffer))
+                current = Channels.newChannel(ByteArrayInputStream(buffer.toByteArray()))
+            }
+            if (transforms.isEmpty()) copy(current, output)
+            else transforms.last().transform(current, output)
+        }
+
+        fun copy(input: ReadableByteChannel, output: WritableByteChannel) {
+            val buffer = ByteBuffer.allocate(8192)
+            while (input.read(buffer) != -1) {
+                buffer.flip()
+                while (buffer.hasRemaining()) output.write(buffer)
+                buffer.clear()
+            }
+        }
+    }
+}
+
+/**
+ * The function to transform content of [SingleFile] in streaming way.
+ */
+fun interface FileTransformer {
+    /**
+     * Reads the content from [input] and writes the transformed content to [output].
+     * This must not close [input] and [output].
+     */
+    fun transform(input: ReadableByteChannel, output: WritableByteChannel)
 }
@@ -0,0 +1,74 @@
+package com.anatawa12.relocator.internal
+
+import org.objectweb.asm.ClassWriter
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * The class hierarchy under relocated names to compute stack map frames without loading classes.
+ * Results of [getCommonSuperClass] are cached and this can be used from multiple threads.
+ * Since a wrong common super class makes invalid frames, [getCommonSuperClass] throws
+ * if [lookup] returns null for a class required to compute the result.
+ */
+internal class ClassHierarchy(private val lookup: (String) -> ClassInfo?) {
+    private val cache = ConcurrentHashMap<String, ConcurrentHashMap<String, String>>()
+
+    fun getCommonSuperClass(type1: String, type2: String): String {
+        if (type1 == type2) return type1
+        // the result doesn't depend on the order
+        val (first, second) = if (type1 < type2) type1 to type2 else type2 to type1
+        val results = cache.getOrPut(first) { ConcurrentHashMap() }
+        return results.getOrPut(second) { resolve(first, second) }
+    }
+
+    private fun resolve(type1: String, type2: String): String {
+        val event = hierarchyResolutionEvent()
+        val result = compute(type1, type2)
+        event?.run {
+            this.type1 = type1
+            this.type2 = type2
+            this.result = result
+            commit()
+        }
+        return result
+    }
+
+    private fun compute(type1: String, type2: String): String {
+        val info1 = find(type1)
+        val info2 = find(type2)
+        // same as ClassWriter.getCommonSuperClass: interfaces are merged to Object
+        if (info1.isInterface || info2.isInterface) return OBJECT
+        val supers1 = HashSet<String>()
+        var current: String? = type1
+        var info = info1
+        while (current != null) {
+            supers1.add(current)
+            current = info.superName ?: break
+            info = find(current)
+        }
+        current = type2
+        info = info2
+        while (current != null) {
+            if (current in supers1) return current
+            current = info.superName ?: break
+            info = find(current)
+        }
+        return OBJECT
+    }
+
+    private fun find(name: String): ClassInfo =
+        lookup(name) ?: error("class not found to compute frames: $name. add the class to the refer path")
+
+    class ClassInfo(val superName: String?, val isInterface: Boolean)
+
+    /**
+     * The [ClassWriter] uses [hierarchy] instead of loading classes.
+     */
+    class HierarchyClassWriter(flags: Int, private val hierarchy: ClassHierarchy) : ClassWriter(flags) {
+        override fun getCommonSuperClass(type1: String, type2: String): String =
+            hierarchy.getCommonSuperClass(type1, type2)
+    }
+
+    private companion object {
+        const val OBJECT = "java/lang/Object"
+    }
+}
@@ -0,0 +1,196 @@
+package com.anatawa12.relocator.internal
+
+/**
+ * The Aho-Corasick automaton over both slashed and dotted forms of mapped package prefixes.
+ * This is used to reject strings which cannot contain any class name to be relocated
+ * in one pass without allocation.
+ */
+internal class ClassNameScanner(prefixes: Collection<String>) {
+    // the empty prefix matches everything
+    private val matchesAll = prefixes.any { it.isEmpty() }
+
+    // transitions of each state. root has dense table for ASCII characters.
+    private var transitionChars = arrayOfNulls<CharArray>(16)
+    private var transitionStates = arrayOfNulls<IntArray>(16)
+    private val rootTransitions = IntArray(128) { -1 }
+    private var stateCount = 1
+    private var fail = IntArray(16)
+    // the depth of state if the state is end of a prefix, -1 otherwise.
+    private var terminalDepth = IntArray(16)
+    // the nearest state reachable with fail links which is end of a prefix, -1 if not exists.
+    private var outputLink = IntArray(16)
+
+    init {
+        terminalDepth[0] = -1
+        for (prefix in prefixes) {
+            if (prefix.isEmpty()) continue
+            addPattern(prefix)
+            addPattern(prefix.replace('/', '.'))
+        }
+        buildFailLinks()
+    }
+
+    private fun addPattern(pattern: String) {
+        var state = 0
+        for (c in pattern) {
+            val next = transition(state, c)
+            state = if (next != -1) next else newState(state, c)
+        }
+        terminalDepth[state] = pattern.length
+    }
+
+    private fun newState(from: Int, c: Char): Int {
+        val state = stateCount++
+        if (state == fail.size) {
+            val newSize = state * 2
+            transitionChars = transitionChars.copyOf(newSize)
+            transitionStates = transitionStates.copyOf(newSize)
+            fail = fail.copyOf(newSize)
+            terminalDepth = terminalDepth.copyOf(newSize)
+            outputLink = outputLink.copyOf(newSize)
+        }
+        terminalDepth[state] = -1
+        if (from == 0 && c.code < 128) {
+            rootTransitions[c.code] = state
+        } else {
+            val chars = transitionChars[from]
+            val states = transitionStates[from]
+            if (chars == null || states == null) {
+                transitionChars[from] = charArrayOf(c)
+                transitionStates[from] = intArrayOf(state)
+            } else {
+                transitionChars[from] = chars.copyOf(chars.size + 1).also { it[chars.size] = c }
+                transitionStates[from] = states.copyOf(states.size + 1).also { it[states.size] = state }
+            }
+        }
+        return state
+    }
+
+    private fun transition(state: Int, c: Char): Int {
+        if (state == 0 && c.code < 128) return rootTransitions[c.code]
+        val chars = transitionChars[state] ?: return -1
+        for (i in chars.indices) {
+            if (chars[i] == c) return transitionStates[state]!![i]
+        }
+        return -1
+    }
+
+    private fun buildFailLinks() {
+        val queue = IntArray(stateCount)
+        var head = 0
+        var tail = 0
+        fail[0] = 0
+        outputLink[0] = -1
+        forEachTransition(0) { _, child ->
+            fail[child] = 0
+            outputLink[child] = -1
+            queue[tail++] = child
+        }
+        while (head < tail) {
+            val state = queue[head++]
+            forEachTransition(state) { c, child ->
+                var f = fail[state]
+                while (true) {
+                    val next = transition(f, c)
+                    if (next != -1) {
+                        fail[child] = next
+                        break
+                    }
+                    if (f == 0) {
+                        fail[child] = 0
+                        break
+                    }
+                    f = fail[f]
+                }
+                val failState = fail[child]
+                outputLink[child] = if (terminalDepth[failState] != -1) failState else outputLink[failState]
+                queue[tail++] = child
+            }
+        }
+    }
+
+    private inline fun forEachTransition(state: Int, block: (Char, Int) -> Unit) {
+        if (state == 0) {
+            for (c in rootTransitions.indices) {
+                if (rootTransitions[c] != -1) block(c.toChar(), rootTransitions[c])
+            }
+        }
+        val chars = transitionChars[state] ?: return
+        val states = transitionStates[state]!!
+        for (i in chars.indices) block(chars[i], states[i])
+    }
+
+    /**
+     * Returns true if the region from [start] to [end] of [string] starts with some prefix
+     * and the prefix is followed by end of the region or a separator.
+     */
+    fun startsWithPrefix(string: String, start: Int, end: Int): Boolean {
+        if (matchesAll) return true
+        var state = 0
+        for (i in start until end) {
+            state = transition(state, string[i])
+            if (state == -1) return false
+            if (terminalDepth[state] != -1) {
+                if (i + 1 == end) return true
+                val next = string[i + 1]
+                if (next == '/' || next == '.') return true
+            }
+        }
+        return false
+    }
+
+    /**
+     * Returns true if some prefix occurs anywhere in [string] regardless of the boundaries.
+     */
+    fun containsAny(string: String): Boolean {
+        if (matchesAll) return true
+        var state = 0
+        for (c in string) {
+            state = next(state, c)
+            if (isTerminal(state) || outputOf(state) != -1) return true
+        }
+        return false
+    }
+
+    /**
+     * Calls [block] with the start and end of each occurrence of the prefixes in [string].
+     * If [block] returns non-negative value, scanning continues from the index.
+     * For occurrences with same end, longer one is passed first.
+     */
+    inline fun findAll(string: String, block: (start: Int, end: Int) -> Int) {
+        var state = 0
+        var i = 0
+        while (i < string.length) {
+            state = next(state, string[i])
+            i++
+            var output = if (isTerminal(state)) state else outputOf(state)
+            while (output != -1) {
+                val resume = block(i - depthOf(output), i)
+                if (resume >= 0) {
+                    i = resume
+                    state = 0
+                    break
+                }
+                output = outputOf(output)
+            }
+        }
+    }
+
+    @PublishedApi
+    internal fun next(state: Int, c: Char): Int {
+        var current = state
+        while (true) {
+            val next = transition(current, c)
+            if (next != -1) return next
+            if (current == 0) return 0
+            current = fail[current]
+        }
+    }
+
+    @PublishedApi
+    internal fun isTerminal(state: Int) = terminalDepth[state] != -1
+    @PublishedApi
+    internal fun depthOf(state: Int) = terminalDepth[state]
+    @PublishedApi
+    internal fun outputOf(state: Int) = outputLink[state]
+}
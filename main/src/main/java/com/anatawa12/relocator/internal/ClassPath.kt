@@ -6,23 +6,41 @@ import com.anatawa12.relocator.file.SingleFile
 import kotlinx.coroutines.*
 import kotlinx.coroutines.sync.Mutex
 import kotlinx.coroutines.sync.withLock
+import java.io.Closeable
 import java.io.File
 import java.io.FileNotFoundException
+import java.util.concurrent.Callable
 import java.util.jar.Attributes
 import java.util.jar.JarFile
 import java.util.jar.Manifest
 import java.util.zip.ZipEntry
 
-internal abstract class ClassContainer(val file: File) {
+internal abstract class ClassContainer(val file: File) : Closeable {
     val files: Set<String> by lazy { getPathList() }
 
     suspend fun loadFile(path: String): SingleFile? = loadFiles(path).firstOrNull()
     abstract suspend fun loadFiles(path: String): List<SingleFile>
     protected abstract fun getPathList(): Set<String>
 
+    override fun close() {
+    }
+
+    protected fun commitReadEvent(event: ContainerReadEvent?, path: String, files: List<SingleFile>) {
+        if (event == null) return
+        event.container = file.path
+        event.path = path
+        event.entries = files.size
+        if (!isLazilyLoaded(path)) event.size = files.sumOf { it.data.size.toLong() }
+        event.commit()
+    }
+
     companion object {
         fun create(file: File): ClassContainer =
             if (file.isDirectory) Directory(file) else Jar(file)
+
+        // class files are always parsed so they are loaded eagerly.
+        // other files are loaded when their content is required since most of them are just copied
+        private fun isLazilyLoaded(path: String) = !path.endsWith(".class")
     }
 
     class Jar(file: File) : ClassContainer(file) {
@@ -47,7 +65,8 @@ internal abstract class ClassContainer(val file: File) {
         }
 
         override suspend fun loadFiles(path: String): List<SingleFile> = mutex.withLock {
-            withContext(Dispatchers.IO) {
+            withIOContext {
+                val event = containerReadEvent()
                 if (path.startsWith("$META_INF/")) {
                     // always single release
                     listOfNotNull(getEntryOrNull(path, 0))
@@ -59,19 +78,22 @@ internal abstract class ClassContainer(val file: File) {
                         getEntryOrNull(path, release)?.let(files::add)
                     }
                     files
-                }
+                }.also { commitReadEvent(event, path, it) }
             }
         }
 
+        override fun close() {
+            zipFile.close()
+        }
+
         private fun getEntryOrNull(path: String, release: Int): SingleFile? = kotlin.runCatching {
-            if (release == 0)
-                zipFile.getEntry(path)
-                    ?.let(zipFile::getInputStream)
-                    ?.use { SingleFile(it.readBytes(), release) }
-            else
-                zipFile.getEntry("$META_INF_VERSIONS/$release/$path")
-                    ?.let(zipFile::getInputStream)
-                    ?.use { SingleFile(it.readBytes(), release) }
+            val entry = if (release == 0) zipFile.getEntry(path)
+            else zipFile.getEntry("$META_INF_VERSIONS/$release/$path")
+            when {
+                entry == null -> null
+                isLazilyLoaded(path) -> SingleFile(Callable { zipFile.getInputStream(entry) }, release)
+                else -> zipFile.getInputStream(entry).use { SingleFile(it.readBytes(), release) }
+            }
         }.getOrNull()
 
         override fun getPathList(): Set<String> {
@@ -110,12 +132,18 @@ internal abstract class ClassContainer(val file: File) {
         private val mutex = Mutex()
 
         override suspend fun loadFiles(path: String): List<SingleFile> = mutex.withLock {
-            withContext(Dispatchers.IO) {
+            withIOContext {
+                val event = containerReadEvent()
+                val target = file.resolve(path)
                 try {
-                    file.resolve(path).inputStream().use { listOf(SingleFile(it.readBytes())) }
+                    if (isLazilyLoaded(path)) {
+                        if (target.isFile) listOf(SingleFile(Callable { target.inputStream() })) else emptyList()
+                    } else {
+                        target.inputStream().use { listOf(SingleFile(it.readBytes())) }
+                    }
                 } catch (ignored: FileNotFoundException) {
                     emptyList()
-                }
+                }.also { commitReadEvent(event, path, it) }
             }
         }
 
@@ -139,7 +167,9 @@ internal class EmbeddableClassPath(
                     launch {
                         val name = path.replace('/', '.').removeSuffix(".class")
                         if (name == "module-info") return@launch // TODO: temporal until module support
-                        classTree[name] = Reader.read(loadFile(path)!!, this@EmbeddableClassPath, debug)
+                        val file = loadFile(path)!!
+                        classTree[name] = Reader.read(file, this@EmbeddableClassPath, debug)
+                        countParsed(file)
                     }
                 }
                 .toList()
@@ -148,6 +178,21 @@ internal class EmbeddableClassPath(
     }
 
     override suspend fun loadClass(name: String): ClassFile? = null
+
+    /**
+     * Releases the classes so that relocated classes can be released as soon as they are written.
+     * [findClass] returns null after this.
+     */
+    fun releaseClasses() {
+        classTree.clear()
+    }
+
+    /**
+     * Replaces the class with the same name as [classFile] and returns the replaced class.
+     */
+    fun replaceClass(classFile: ClassFile): ClassFile =
+        classTree.replace(classFile.name.replace('/', '.'), classFile)
+            ?: throw IllegalArgumentException("${classFile.name} is not in this class path")
 }
 
 internal class ReferencesClassPath(
@@ -157,6 +202,13 @@ internal class ReferencesClassPath(
 ): ClassPath(files) {
     override suspend fun loadClass(name: String): ClassFile? {
         val path = name.replace('.', '/')
-        return loadFile("$path.class")?.let { Reader.read(it, this, debug, true) }?.apply(initializer)
+        val file = loadFile("$path.class") ?: return null
+        return Reader.read(file, this, debug, true).apply(initializer).also { countParsed(file) }
     }
 }
+
+private suspend fun countParsed(file: SingleFile) {
+    val metrics = currentCoroutineContext()[RelocationMetrics] ?: return
+    metrics.classesParsed.increment()
+    metrics.bytesRead.add(file.data.size.toLong())
+}
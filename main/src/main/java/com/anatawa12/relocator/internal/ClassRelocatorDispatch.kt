@@ -0,0 +1,55 @@
+package com.anatawa12.relocator.internal
+
+import com.anatawa12.relocator.classes.*
+import com.anatawa12.relocator.plugin.AnnotationLocation
+import com.anatawa12.relocator.plugin.ClassRelocator
+import com.anatawa12.relocator.plugin.TypeAnnotationLocation
+
+/**
+ * The relocators for each kind of element.
+ * Only relocators which override the `relocate` for the element are in each list
+ * so default no-op calls are not made in the relocation phase.
+ */
+internal class ClassRelocatorDispatch(val all: List<ClassRelocator>) {
+    val size = all.size
+
+    val classes = select(all, ClassFile::class.java)
+    val methods = select(all, ClassMethod::class.java)
+    val fields = select(all, ClassField::class.java)
+    val recordFields = select(all, ClassRecordField::class.java)
+    val insns = select(all, Insn::class.java, ClassCode::class.java)
+    val annotations = select(all, ClassAnnotation::class.java,
+        Boolean::class.javaPrimitiveType!!, AnnotationLocation::class.java)
+    // by default, type annotations and local variable annotations are passed to relocate for ClassAnnotation
+    val typeAnnotations = select(all, ClassTypeAnnotation::class.java,
+        Boolean::class.javaPrimitiveType!!, TypeAnnotationLocation::class.java, orSameAs = annotations)
+    val localVariableAnnotations = select(all, ClassLocalVariableAnnotation::class.java,
+        Boolean::class.javaPrimitiveType!!, ClassCode::class.java, orSameAs = annotations)
+
+    private fun select(
+        relocators: List<ClassRelocator>,
+        vararg parameterTypes: Class<*>,
+        orSameAs: Targets? = null,
+    ): Targets {
+        val indices = relocators.indices.filter { i ->
+            overrides(relocators[i], parameterTypes) || orSameAs != null && i in orSameAs.stepIndices
+        }
+        return Targets(
+            indices.map { relocators[it] }.toTypedArray(),
+            indices.toIntArray(),
+        )
+    }
+
+    private fun overrides(relocator: ClassRelocator, parameterTypes: Array<out Class<*>>): Boolean =
+        relocator.javaClass.getMethod("relocate", *parameterTypes).declaringClass != ClassRelocator::class.java
+
+    class Targets(
+        val relocators: Array<ClassRelocator>,
+        /**
+         * The index of each relocator in all relocators in step order.
+         */
+        val stepIndices: IntArray,
+    ) {
+        val isEmpty get() = relocators.isEmpty()
+    }
+}
@@ -0,0 +1,177 @@
+package com.anatawa12.relocator.internal
+
+import com.anatawa12.relocator.classes.ClassFile
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
+import org.objectweb.asm.ClassWriter
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.StandardOpenOption.*
+import java.util.concurrent.ConcurrentLinkedDeque
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicReferenceArray
+
+/**
+ * Serializes classes with at most [parallelism] classes at once.
+ * Each worker thread reuses its own [Writer] so label maps are not allocated for each class.
+ */
+internal class ClassSerializer(private val hierarchy: ClassHierarchy?, parallelism: Int) {
+    private val semaphore: Semaphore
+    private val writers = ThreadLocal<Writer>()
+
+    init {
+        require(parallelism > 0) { "parallelism must be positive" }
+        semaphore = Semaphore(parallelism)
+    }
+
+    fun serialize(classFile: ClassFile): ByteArray {
+        val event = classSerializationEvent()
+        val writer = writers.get() ?: Writer(hierarchy).also(writers::set)
+        val classWriter = ClassWriter(0)
+        writer.writeClass(classFile, classWriter)
+        val bytes = classWriter.toByteArray()
+        event?.run {
+            className = classFile.name
+            size = bytes.size.toLong()
+            commit()
+        }
+        return bytes
+    }
+
+    /**
+     * Serializes [classes] in parallel and passes each of them to [output] in order of [classes]
+     * as soon as it and all classes before it are serialized, so the output is deterministic.
+     * [output] is called on the I/O dispatcher and never called concurrently.
+     */
+    suspend fun serializeAll(classes: List<ClassFile>, output: (ClassFile, ByteArray) -> Unit) = coroutineScope {
+        val handoff = OrderedHandoff(classes.size) { i, bytes -> output(classes[i], bytes) }
+        launch { handoff.run() }
+        for (i in classes.indices) {
+            launch {
+                val bytes = semaphore.withPermit { serialize(classes[i]) }
+                handoff.complete(i, bytes)
+            }
+        }
+    }
+}
+
+/**
+ * Passes byte arrays completed in any order to [output] in order of their index
+ * as soon as the array and all arrays before it are completed or skipped.
+ * [output] is called by [run] on the I/O dispatcher so it can write to files, and never called concurrently.
+ *
+ * The arrays completed before their turn are kept in memory up to [maxBufferedBytes] in total.
+ * Beyond that, the arrays completed last are spilled to a temporary file and read back on their turn,
+ * so a slow array at the head doesn't make all arrays after it stay in memory.
+ */
+internal class OrderedHandoff(
+    private val size: Int,
+    private val maxBufferedBytes: Long = MAX_BUFFERED_BYTES,
+    private val output: (Int, ByteArray) -> Unit,
+) {
+    private val values = AtomicReferenceArray<Any>(size)
+    private val bufferedBytes = AtomicLong()
+    // the candidates to be spilled. the indices already passed to output are ignored when polled.
+    private val completed = ConcurrentLinkedDeque<Int>()
+    private val signal = Channel<Unit>(Channel.CONFLATED)
+
+    // the spill file and its index. these are only accessed by run
+    private var spill: FileChannel? = null
+    private var spillOffsets = LongArray(0)
+    private var spillSizes = IntArray(0)
+    private var spillEnd = 0L
+
+    /**
+     * The number of arrays spilled to the temporary file.
+     */
+    @Volatile
+    var spilledCount = 0
+        private set
+
+    fun complete(index: Int, value: ByteArray) {
+        bufferedBytes.addAndGet(value.size.toLong())
+        values.set(index, value)
+        completed.addLast(index)
+        signal.trySend(Unit)
+    }
+
+    fun skip(index: Int) {
+        values.set(index, Skipped)
+        signal.trySend(Unit)
+    }
+
+    /**
+     * Passes the arrays to [output] until all arrays are completed or skipped.
+     */
+    suspend fun run() = withIOContext {
+        var next = 0
+        try {
+            while (next < size) {
+                signal.receive()
+                while (next < size) {
+                    val value = values.get(next) ?: break
+                    values.set(next, Skipped)
+                    if (value is ByteArray) {
+                        bufferedBytes.addAndGet(-value.size.toLong())
+                        output(next, value)
+                    } else if (value === Spilled) {
+                        output(next, readSpilled(next))
+                    }
+                    next++
+                }
+                // most arrays are completed nearly in order so this keeps the candidates small
+                while ((completed.peekFirst() ?: size) < next) completed.pollFirst()
+                spillOverflow(next)
+            }
+        } finally {
+            spill?.close()
+        }
+    }
+
+    private fun spillOverflow(next: Int) {
+        while (bufferedBytes.get() > maxBufferedBytes) {
+            val index = completed.pollLast() ?: return
+            if (index < next) continue
+            val value = values.get(index) as? ByteArray ?: continue
+            val channel = spill ?: openSpill()
+            var position = spillEnd
+            val buffer = ByteBuffer.wrap(value)
+            while (buffer.hasRemaining()) position += channel.write(buffer, position)
+            spillOffsets[index] = spillEnd
+            spillSizes[index] = value.size
+            spillEnd = position
+            values.set(index, Spilled)
+            bufferedBytes.addAndGet(-value.size.toLong())
+            spilledCount++
+        }
+    }
+
+    private fun openSpill(): FileChannel {
+        spillOffsets = LongArray(size)
+        spillSizes = IntArray(size)
+        val path = Files.createTempFile("relocator", ".classes")
+        return FileChannel.open(path, READ, WRITE, DELETE_ON_CLOSE).also { spill = it }
+    }
+
+    private fun readSpilled(index: Int): ByteArray {
+        val buffer = ByteBuffer.allocate(spillSizes[index])
+        var position = spillOffsets[index]
+        while (buffer.hasRemaining()) {
+            val read = spill!!.read(buffer, position)
+            check(read >= 0) { "spill file is truncated" }
+            position += read
+        }
+        return buffer.array()
+    }
+
+    private object Skipped
+    private object Spilled
+
+    companion object {
+        const val MAX_BUFFERED_BYTES = 64L shl 20
+    }
+}
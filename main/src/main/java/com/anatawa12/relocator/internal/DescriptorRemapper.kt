@@ -0,0 +1,151 @@
+package com.anatawa12.relocator.internal
+
+/**
+ * The single-pass, char-level rewriter of class names in descriptors and signatures.
+ * Class names are looked up in [StringMemo] of the mapping with regions of the source.
+ * Each function returns null if no class name is changed,
+ * and allocates only if some class name is changed or not memoized.
+ * The descriptors and signatures must be valid.
+ */
+internal class DescriptorRemapper private constructor(
+    private val source: String,
+    private val memo: StringMemo,
+) {
+    private var builder: StringBuilder? = null
+    // the index of source which is copied to builder
+    private var copied = 0
+    private var pos = 0
+
+    private fun mapClassName(start: Int, end: Int) {
+        val mapped = memo.get(source, start, end) ?: return
+        if (mapped.length == end - start && source.regionMatches(start, mapped, 0, mapped.length)) return
+        val builder = builder ?: StringBuilder(source.length + mapped.length).also { builder = it }
+        builder.append(source, copied, start).append(mapped)
+        copied = end
+    }
+
+    private fun result(): String? {
+        val builder = builder ?: return null
+        builder.append(source, copied, source.length)
+        return builder.toString()
+    }
+
+    private fun typeDescriptor() {
+        while (source[pos] == '[') pos++
+        if (source[pos++] != 'L') return
+        val start = pos
+        pos = source.indexOf(';', pos)
+        mapClassName(start, pos)
+        pos++
+    }
+
+    private fun methodDescriptor() {
+        pos++ // '('
+        while (source[pos] != ')') typeDescriptor()
+        pos++ // ')'
+        typeDescriptor()
+    }
+
+    private fun typeSignature() {
+        while (source[pos] == '[') pos++
+        when (source[pos]) {
+            'L' -> classTypeSignature()
+            'T' -> pos = source.indexOf(';', pos) + 1
+            else -> pos++ // primitive or void
+        }
+    }
+
+    private fun classTypeSignature() {
+        pos++ // 'L'
+        val start = pos
+        pos = endOfClassName(pos)
+        mapClassName(start, pos)
+        while (true) {
+            when (source[pos]) {
+                '<' -> {
+                    pos++
+                    while (source[pos] != '>') {
+                        when (source[pos]) {
+                            '*' -> pos++
+                            '+', '-' -> {
+                                pos++
+                                typeSignature()
+                            }
+                            else -> typeSignature()
+                        }
+                    }
+                    pos++ // '>'
+                }
+                '.' -> {
+                    // simple name of inner class is not relocated
+                    pos = endOfClassName(pos + 1)
+                }
+                else -> {
+                    pos++ // ';'
+                    return
+                }
+            }
+        }
+    }
+
+    private fun endOfClassName(start: Int): Int {
+        var i = start
+        while (true) {
+            when (source[i]) {
+                '<', '.', ';' -> return i
+            }
+            i++
+        }
+    }
+
+    private fun typeParameters() {
+        if (source[pos] != '<') return
+        pos++
+        while (source[pos] != '>') {
+            pos = source.indexOf(':', pos) + 1
+            // class bound is optional
+            when (source[pos]) {
+                'L', '[', 'T' -> typeSignature()
+            }
+            while (source[pos] == ':') {
+                pos++
+                typeSignature()
+            }
+        }
+        pos++ // '>'
+    }
+
+    private fun classSignature() {
+        typeParameters()
+        while (pos < source.length) typeSignature()
+    }
+
+    private fun methodSignature() {
+        typeParameters()
+        pos++ // '('
+        while (source[pos] != ')') typeSignature()
+        pos++ // ')'
+        typeSignature()
+        while (pos < source.length && source[pos] == '^') {
+            pos++
+            typeSignature()
+        }
+    }
+
+    companion object {
+        fun mapTypeDescriptor(descriptor: String, memo: StringMemo): String? =
+            DescriptorRemapper(descriptor, memo).run { typeDescriptor(); result() }
+
+        fun mapMethodDescriptor(descriptor: String, memo: StringMemo): String? =
+            DescriptorRemapper(descriptor, memo).run { methodDescriptor(); result() }
+
+        fun mapTypeSignature(signature: String, memo: StringMemo): String? =
+            DescriptorRemapper(signature, memo).run { typeSignature(); result() }
+
+        fun mapClassSignature(signature: String, memo: StringMemo): String? =
+            DescriptorRemapper(signature, memo).run { classSignature(); result() }
+
+        fun mapMethodSignature(signature: String, memo: StringMemo): String? =
+            DescriptorRemapper(signature, memo).run { methodSignature(); result() }
+    }
+}
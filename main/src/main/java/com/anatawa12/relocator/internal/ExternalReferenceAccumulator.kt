@@ -0,0 +1,66 @@
+package com.anatawa12.relocator.internal
+
+import com.anatawa12.relocator.reference.Reference
+import java.util.*
+import java.util.concurrent.ConcurrentLinkedQueue
+
+/**
+ * The accumulator for references added to externalReferences of members owned by other classes.
+ *
+ * Many workers of computeReferences adds references to same members (e.g. methods of `java/lang/Object`)
+ * so each worker thread appends to its own buffer without any lock and
+ * all buffers are merged into target sets at [flush], which must be called at the barrier of the phase.
+ */
+internal class ExternalReferenceAccumulator {
+    private val buffers = ConcurrentLinkedQueue<Buffer>()
+    private val local = object : ThreadLocal<Buffer>() {
+        override fun initialValue(): Buffer = Buffer().also(buffers::add)
+    }
+
+    /**
+     * Requests adding [reference] to [target].
+     * This doesn't suspend so the buffer of current thread is never shared while adding.
+     */
+    fun add(target: MutableSet<Reference>, reference: Reference) {
+        local.get().add(target, reference)
+    }
+
+    /**
+     * Merges all buffered references to their targets.
+     * This must not be called concurrently with [add].
+     */
+    fun flush() {
+        // group by target to add references to each set at once.
+        val grouped = IdentityHashMap<MutableSet<Reference>, MutableList<Reference>>()
+        for (buffer in buffers) {
+            for (i in 0 until buffer.size) {
+                grouped.getOrPut(buffer.targets[i]!!) { ArrayList() }.add(buffer.references[i]!!)
+            }
+            buffer.clear()
+        }
+        for ((target, references) in grouped)
+            target.addAll(references)
+    }
+
+    private class Buffer {
+        var size = 0
+        var targets = arrayOfNulls<MutableSet<Reference>>(16)
+        var references = arrayOfNulls<Reference>(16)
+
+        fun add(target: MutableSet<Reference>, reference: Reference) {
+            if (size == targets.size) {
+                targets = targets.copyOf(size * 2)
+                references = references.copyOf(size * 2)
+            }
+            targets[size] = target
+            references[size] = reference
+            size++
+        }
+
+        fun clear() {
+            Arrays.fill(targets, 0, size, null)
+            Arrays.fill(references, 0, size, null)
+            size = 0
+        }
+    }
+}
@@ -314,6 +314,52 @@ internal object Insns {
     // TableSwitchInsn
     // LookupSwitchInsn
 
+    // dense opcode tables for Writer, indexed by ordinals of the instruction and operand types.
+    // -1 means no opcode for the combination.
+
+    private val vmTypeCount = VMType.values().size
+
+    val simpleOpcodes = opcodeTable(SimpleInsnType.values().size) { table ->
+        for ((type, opcode) in simpleInsns) table[type.ordinal] = opcode
+    }
+
+    val fieldOpcodes = opcodeTable(FieldInsnType.values().size) { table ->
+        fieldInsns.forEachIndexed { i, type -> table[type.ordinal] = GETSTATIC + i }
+    }
+
+    val methodOpcodes = opcodeTable(MethodInsnType.values().size) { table ->
+        methodInsns.forEachIndexed { i, type -> table[type.ordinal] = INVOKEVIRTUAL + i }
+    }
+
+    val jumpOpcodes = opcodeTable(JumpInsnType.values().size) { table ->
+        jumpInsns.forEachIndexed { i, type -> table[type.ordinal] = IFEQ + i }
+        table[JumpInsnType.IFNULL.ordinal] = IFNULL
+        table[JumpInsnType.IFNONNULL.ordinal] = IFNONNULL
+    }
+
+    val typedInsnDiffTable = opcodeTable(vmTypeCount) { table ->
+        for ((type, diff) in typedInsnDiffs) table[type.ordinal] = diff
+    }
+
+    val newArrayTypeCodes = opcodeTable(vmTypeCount) { table ->
+        for ((code, type) in newArrayTypeMapping) table[type.ordinal] = code
+    }
+
+    val typedOperatorOpcodes = opcodeTable(TypedInsnType.values().size * vmTypeCount) { table ->
+        for ((key, opcode) in typedOperatorInsnMapping) table[typedOperatorIndex(key.first, key.second)] = opcode
+    }
+
+    val castOpcodes = opcodeTable(vmTypeCount * vmTypeCount) { table ->
+        for ((key, opcode) in casts) table[castIndex(key.first, key.second)] = opcode
+    }
+
+    fun typedOperatorIndex(insn: TypedInsnType, type: VMType) = insn.ordinal * vmTypeCount + type.ordinal
+
+    fun castIndex(from: VMType, to: VMType) = from.ordinal * vmTypeCount + to.ordinal
+
+    private inline fun opcodeTable(size: Int, init: (IntArray) -> Unit): IntArray =
+        IntArray(size) { -1 }.also(init)
+
     @Suppress("DEPRECATION")
     class InsnBuilder(
         private val location: Location?,
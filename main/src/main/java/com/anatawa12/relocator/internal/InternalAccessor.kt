@@ -68,6 +68,13 @@ internal lateinit var newTypeDescriptor: (String) -> TypeDescriptor
 @Suppress("FunctionName")
 internal fun newTypeDescriptorInternal(signature: String) = newTypeDescriptor(signature)
 
+internal lateinit var newMethodDescriptor: (String) -> MethodDescriptor
+/**
+ * Creates [MethodDescriptor] without verification. The descriptor will be parsed lazily.
+ */
+@Suppress("FunctionName")
+internal fun newMethodDescriptorInternal(descriptor: String) = newMethodDescriptor(descriptor)
+
 internal lateinit var newSimpleTypeSignature: (String, Int) -> TypeSignature
 @Suppress("FunctionName")
 internal fun SimpleTypeSignature(signature: String, dimensions: Int) = newSimpleTypeSignature(signature, dimensions)
@@ -101,6 +108,7 @@ internal fun newTypeParameterInternal(name: String, classBound: TypeSignature?,
 private val _init: Unit = run {
     TypeSignature.VOID
     TypeDescriptor("I")
+    MethodDescriptor("()V")
     MethodSignature.Builder()
     ClassSignature.Builder()
     TypeParameter.Builder("T")
@@ -0,0 +1,71 @@
+package com.anatawa12.relocator.internal
+
+import com.anatawa12.relocator.classes.ClassFile
+import com.anatawa12.relocator.file.FileObject
+import java.io.BufferedOutputStream
+import java.io.Closeable
+import java.io.File
+import java.io.FileOutputStream
+import java.nio.channels.Channels
+import java.util.*
+import java.util.zip.ZipEntry
+import java.util.zip.ZipOutputStream
+
+/**
+ * Writes relocated classes and files to a jar.
+ * Classes and files for multi release versions are written to `META-INF/versions`.
+ * If some entries have the same path, the first one is written.
+ * All entries have the same time so the jar only depends on the entries.
+ */
+internal class JarWriter(file: File, private val metrics: RelocationMetrics? = null) : Closeable {
+    private val output = ZipOutputStream(BufferedOutputStream(FileOutputStream(file)))
+    private val outputChannel = Channels.newChannel(output)
+    private val written = HashSet<String>()
+    private var entry: ZipEntry? = null
+
+    fun writeClass(classFile: ClassFile, bytes: ByteArray) = writeClass(classFile.name, classFile.release, bytes)
+
+    @Synchronized
+    fun writeClass(name: String, release: Int, bytes: ByteArray) {
+        if (!putEntry(entryPath("$name.class", release))) return
+        output.write(bytes)
+        closeEntry()
+        metrics?.classesWritten?.increment()
+    }
+
+    @Synchronized
+    fun writeFile(fileObject: FileObject) {
+        for (file in fileObject.files) {
+            if (!putEntry(entryPath(fileObject.path, file.release))) continue
+            file.writeTo(outputChannel)
+            closeEntry()
+        }
+    }
+
+    private fun putEntry(path: String): Boolean {
+        if (!written.add(path)) return false
+        entry = ZipEntry(path).also { it.time = FIXED_TIME }.also(output::putNextEntry)
+        return true
+    }
+
+    private fun closeEntry() {
+        output.closeEntry()
+        metrics?.bytesWritten?.add(entry!!.size)
+    }
+
+    private fun entryPath(path: String, release: Int) =
+        if (release == 0) path else "META-INF/versions/$release/$path"
+
+    override fun close() {
+        output.close()
+    }
+
+    companion object {
+        /**
+         * The time of all entries, 1980-02-01 in the default time zone.
+         * [ZipEntry] stores the time as MS-DOS time in the default time zone, so a fixed instant
+         * would be written differently in each time zone or before 1980 with the extended timestamp.
+         */
+        val FIXED_TIME: Long get() = GregorianCalendar(1980, Calendar.FEBRUARY, 1, 0, 0, 0).timeInMillis
+    }
+}
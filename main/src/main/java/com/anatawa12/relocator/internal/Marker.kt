@@ -6,3 +6,13 @@ import com.anatawa12.relocator.plugin.RelocationMapping
  * The classes implement this interface can be mapped or relocated via [RelocationMapping]
  */
 internal interface RelocationMappingPrimitiveMarker
+
+/**
+ * The relocators implement this interface report their statistics in debug mode.
+ */
+internal interface DebugStatisticsReporter {
+    /**
+     * Returns the line to be printed in debug mode.
+     */
+    fun debugStatistics(): String
+}
@@ -0,0 +1,43 @@
+package com.anatawa12.relocator.internal
+
+import com.anatawa12.relocator.ReachabilityIndex
+import com.anatawa12.relocator.ReachabilitySession
+import com.anatawa12.relocator.Relocator
+import com.anatawa12.relocator.classes.ClassFile
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.runBlocking
+
+internal class ReachabilitySessionImpl(relocator: Relocator) : ReachabilitySession() {
+    private val execution = RelocationExecution(relocator)
+    private val environment = RelocatingEnvironment(relocator)
+    // each call runs in a new job so a failed call doesn't cancel the following calls
+    private val context = execution.context.minusKey(Job)
+
+    init {
+        try {
+            runBlocking { environment.collectReachability() }
+        } catch (t: Throwable) {
+            close()
+            throw t
+        }
+    }
+
+    override val reachabilityIndex: ReachabilityIndex?
+        get() = environment.reachabilityIndex
+
+    override fun getIncludedClasses(): List<ClassFile> =
+        (environment.embeds.classes + environment.roots.classes).filter { it.included }
+
+    override fun addRoots(names: Collection<String>) = runBlocking { environment.addRoots(names) }
+
+    override fun updateClasses(classes: Map<String, ByteArray>) = runBlocking { environment.updateClasses(classes) }
+
+    override fun reloadReflectionMap() = runBlocking { environment.reloadReflectionMap() }
+
+    private fun runBlocking(block: suspend () -> Unit) = runBlocking(context) { execution.run(block) }
+
+    override fun close() {
+        environment.closeClassPaths()
+        execution.close()
+    }
+}
@@ -17,7 +17,9 @@ internal object Reader {
         debug: Boolean,
         noCode: Boolean = false,
     ): ClassFile {
-        val reader = ClassReader(file.data)
+        val event = classParseEvent()
+        val data = file.data
+        val reader = ClassReader(data)
         val builder = ClassBuilder(file.release)
         try {
             if (debug)
@@ -27,7 +29,15 @@ internal object Reader {
         } catch (e: Exception) {
             throw IllegalArgumentException("reading ${reader.className}", e)
         }
-        return builder.classFile!!
+        val classFile = builder.classFile!!
+        event?.run {
+            className = classFile.name
+            release = file.release
+            size = data.size.toLong()
+            skipCode = noCode
+            commit()
+        }
+        return classFile
     }
 
     class ClassBuilder(val release: Int) : ClassVisitor(Opcodes.ASM9) {
@@ -72,7 +82,7 @@ internal object Reader {
             builder.outerClass(ClassReference(owner).withLocation(location))
             if (name != null && descriptor != null) {
                 builder.outerMethod(name)
-                builder.outerMethodDesc(MethodDescriptor(descriptor))
+                builder.outerMethodDesc(newMethodDescriptorInternal(descriptor))
             }
         }
 
@@ -155,11 +165,11 @@ internal object Reader {
         descriptor: String,
         signature: String?,
         exceptions: List<ClassReference>,
-        private val location: Location.Method? = clazz?.let { Location.Method(clazz.name, name, MethodDescriptor(descriptor)) },
+        private val location: Location.Method? = clazz?.let { Location.Method(clazz.name, name, newMethodDescriptorInternal(descriptor)) },
         private val insnBuilder: Insns.InsnBuilder = Insns.InsnBuilder(location),
         private val onEnd: (ClassMethod) -> Unit
     ) : MethodVisitor(Opcodes.ASM9, insnBuilder) {
-        private val builder = ClassMethod.Builder(access, name, MethodDescriptor(descriptor))
+        private val builder = ClassMethod.Builder(access, name, newMethodDescriptorInternal(descriptor))
             .signature(signature?.let(MethodSignature::parse))
             .addExceptions(exceptions)
 
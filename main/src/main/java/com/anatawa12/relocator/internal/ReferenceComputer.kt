@@ -18,6 +18,7 @@ import com.anatawa12.relocator.internal.SignatureClassRefCollector.Utils.process
 import com.anatawa12.relocator.reference.*
 import com.anatawa12.relocator.reflect.ReflectionMappingContainer
 import com.google.common.annotations.VisibleForTesting
+import kotlinx.atomicfu.atomic
 import org.objectweb.asm.Opcodes.*
 import org.objectweb.asm.Type
 import java.util.*
@@ -27,7 +28,39 @@ internal class ComputeReferenceEnvironment(
     val reflectionMap: ReflectionMappingContainer,
     val classpath: CombinedClassPath,
     val addDiagnostic: DiagnosticHandler,
-)
+) {
+    val externalReferences = ExternalReferenceAccumulator()
+
+    // the members which may produce extra references by ExtraReferenceDetector.
+    private var reflectionTargetMethods: Set<MethodReference> = emptySet()
+    private var reflectionTargetFields: Set<FieldReference> = emptySet()
+
+    private val _detectedMethods = atomic(0)
+    val detectedMethods get() = _detectedMethods.value
+    private val _skippedMethods = atomic(0)
+    val skippedMethods get() = _skippedMethods.value
+
+    init {
+        reloadReflectionTargets()
+    }
+
+    /**
+     * Reloads members which may produce extra references from [reflectionMap].
+     * This must be called if [reflectionMap] is modified after creation of this environment.
+     */
+    fun reloadReflectionTargets() {
+        reflectionTargetMethods = reflectionMap.methods.keys + reflectionMap.refMethods.keySet()
+        reflectionTargetFields = reflectionMap.fields.keys + reflectionMap.refFields.keySet()
+    }
+
+    fun isReflectionTarget(method: MethodReference) = method in reflectionTargetMethods
+    fun isReflectionTarget(field: FieldReference) = field in reflectionTargetFields
+
+    fun countExtraReferenceDetection(detected: Boolean) {
+        if (detected) _detectedMethods.incrementAndGet()
+        else _skippedMethods.incrementAndGet()
+    }
+}
 
 internal fun computeReferencesOfClass(
     env: ComputeReferenceEnvironment,
@@ -98,7 +131,7 @@ internal suspend fun computeReferencesOfMethod(
         val refToThisMethod = MethodReference(owner.name, main.name, main.descriptor)
         ParentClasses(env, owner).forEach { parentClass ->
             val parentMethod = parentClass.findMethod(main.name, main.descriptor) ?: return@forEach true
-            parentMethod.externalReferences += refToThisMethod
+            env.externalReferences.add(parentMethod.externalReferences, refToThisMethod)
             false
         }
     }
@@ -125,7 +158,7 @@ internal suspend fun computeReferencesOfField(
     val refToThisField = FieldReference(owner.name, main.name, main.descriptor)
     ParentClasses(env, owner).forEach { parentClass ->
         val parentField = parentClass.findField(main.name, main.descriptor)  ?: return@forEach true
-        parentField.externalReferences += refToThisField
+        env.externalReferences.add(parentField.externalReferences, refToThisField)
         false
     }
 }
@@ -205,6 +238,8 @@ internal fun collectReferencesOfInsnList(
 ) {
     val definedLabels = hashSetOf<CodeLabel>()
     val backJumpLabels = hashSetOf<CodeLabel>()
+    // ExtraReferenceDetector is heavy so run only if some insn may produce extra references.
+    var hasReflectionTarget = false
     for (insn in list) {
         definedLabels += insn.labelsToMe
         when (insn::class) {
@@ -214,8 +249,16 @@ internal fun collectReferencesOfInsnList(
             VarInsn::class -> {}
             RetInsn::class -> {}
             TypeInsn::class -> references.add((insn as TypeInsn).type)
-            FieldInsn::class -> references.add((insn as FieldInsn).field)
-            MethodInsn::class -> references.add((insn as MethodInsn).method)
+            FieldInsn::class -> {
+                references.add((insn as FieldInsn).field)
+                if (!hasReflectionTarget && env.isReflectionTarget(insn.field))
+                    hasReflectionTarget = true
+            }
+            MethodInsn::class -> {
+                references.add((insn as MethodInsn).method)
+                if (!hasReflectionTarget && env.isReflectionTarget(insn.method))
+                    hasReflectionTarget = true
+            }
             InvokeDynamicInsn::class -> processConstant((insn as InvokeDynamicInsn).target, references)
             JumpInsn::class -> {
                 if ((insn as JumpInsn).target in definedLabels)
@@ -244,6 +287,11 @@ internal fun collectReferencesOfInsnList(
         }
     }
 
+    env.countExtraReferenceDetection(hasReflectionTarget)
+    if (!hasReflectionTarget) return
+
+    val event = extraReferenceDetectionEvent()
+    val referencesBefore = references.size
     ExtraReferenceDetector(
         list.owner.owner.access and ACC_STATIC != 0,
         list.owner.owner.descriptor,
@@ -251,6 +299,12 @@ internal fun collectReferencesOfInsnList(
         list.owner.tryCatchBlocks.groupBy { it.start },
         env, location, list, references, backJumpLabels,
     ).collectExtraReferences()
+    if (event != null) {
+        event.location = location.toString()
+        event.instructions = list.size
+        event.references = references.size - referencesBefore
+        event.commit()
+    }
 }
 
 // TODO: support user defined extra references
@@ -292,119 +346,125 @@ internal class ExtraReferenceDetector(
     private fun verifyFrame(stack: StackFrame, code: CodeFrame) {
         when (code) {
             is FullFrame -> {
-                check(stack.stacks.size == code.stacks.size) { "frame verification" }
-                for ((stackV, codeV) in stack.stacks.zip(code.stacks)) {
+                check(stack.stackSize == code.stacks.size) { "frame verification" }
+                for ((i, codeV) in code.stacks.withIndex()) {
+                    val twoWord = stack.isTwoWord(stack.maxLocals + i)
                     when (codeV) {
                         FrameElement.Double,
                         FrameElement.Long,
-                        -> check(!stackV.isOneWord) { "frame verification" }
-                        else -> check(stackV.isOneWord){ "frame verification" }
+                        -> check(twoWord) { "frame verification" }
+                        else -> check(!twoWord) { "frame verification" }
                     }
                 }
             }
             SameFrame -> {
-                check(stack.stacks.isEmpty()) { "frame verification" }
+                check(stack.stackSize == 0) { "frame verification" }
             }
             is Same1Frame -> {
+                check(stack.stackSize == 1) { "frame verification" }
                 when (code.stack) {
                     FrameElement.Double,
                     FrameElement.Long,
-                    -> check(stack.stacks.singleOrNull()?.isOneWord == false) { "frame verification" }
-                    else -> check(stack.stacks.singleOrNull()?.isOneWord == true){ "frame verification" }
+                    -> check(stack.isTwoWord(stack.top - 1)) { "frame verification" }
+                    else -> check(!stack.isTwoWord(stack.top - 1)) { "frame verification" }
                 }
             }
             is AppendFrame -> {
-                check(stack.stacks.isEmpty()) { "frame verification" }
+                check(stack.stackSize == 0) { "frame verification" }
             }
             is ChopFrame -> {
-                check(stack.stacks.isEmpty()) { "frame verification" }
+                check(stack.stackSize == 0) { "frame verification" }
             }
         }
     }
 
-    private fun pop(n: Int) = repeat(n) { frame!!.stacks.removeLast() }
+    private fun pop(n: Int) {
+        val frame = frame!!
+        check(frame.stackSize >= n) { "stack underflow" }
+        frame.top -= n
+    }
     @VisibleForTesting
-    fun pop() = frame!!.stacks.removeLast()
-    private fun pop1Word(): Any {
-        val v1 = pop()
-        check(v1.isOneWord)
-        return v1
+    fun pop(): Any {
+        val frame = frame!!
+        check(frame.stackSize >= 1) { "stack underflow" }
+        return frame.get(--frame.top)!!
     }
-    private fun pop2Word(): Pair<Any, Any?> {
-        val v1 = pop()
-        if (v1.isOneWord) {
-            val v2 = pop()
-            check(v1.isOneWord)
-            return v1 to v2
-        }
-        return v1 to null
+    private fun check1Word(fromTop: Int) {
+        val frame = frame!!
+        check(frame.stackSize > fromTop) { "stack underflow" }
+        check(!frame.isTwoWord(frame.top - 1 - fromTop))
     }
-    private fun push(push: Any) {
-        frame!!.stacks.add(push)
+    // the count of values for two words at the index from top.
+    private fun count2Word(fromTop: Int): Int {
+        val frame = frame!!
+        check(frame.stackSize > fromTop) { "stack underflow" }
+        return if (frame.isTwoWord(frame.top - 1 - fromTop)) 1 else 2
     }
-    private fun push(push0: Any, push1: Any) {
-        frame!!.stacks.add(push0)
-        frame!!.stacks.add(push1)
+    private fun push(word: Word) {
+        frame!!.push(if (word == Word.Double) DOUBLE_WORD else SINGLE_WORD)
     }
-    private fun push(push: Pair<Any, Any?>) {
-        val second = push.second
-        if (second != null) push(second)
-        push(push.first)
+    private fun replace(word: Word) {
+        pop(1)
+        push(word)
     }
-    private fun replace(push: Any) {
-        frame!!.stacks[frame!!.stacks.lastIndex] = push
+    private fun replace2(word: Word) {
+        pop(2)
+        push(word)
     }
-    private fun replace2(push: Any) {
-        pop()
-        frame!!.stacks[frame!!.stacks.lastIndex] = push
+
+    /**
+     * Duplicates top [count] values and inserts them under [skip] values.
+     */
+    private fun dupX(count: Int, skip: Int) {
+        val frame = frame!!
+        check(frame.stackSize >= count + skip) { "stack underflow" }
+        val top = frame.top
+        val base = top - count - skip
+        frame.ensureCapacity(top + count)
+        frame.copy(base + skip, top, count)
+        frame.copy(base, base + count, skip)
+        frame.copy(top, base, count)
+        frame.top = top + count
     }
 
     private fun runInsn(insn: Insn) {
         when (insn::class) {
             SimpleInsn::class -> when ((insn as SimpleInsn).insn) {
                 SimpleInsnType.NOP -> {}
-                SimpleInsnType.ACONST_NULL -> push(NULL)
-                SimpleInsnType.POP -> pop1Word()
-                SimpleInsnType.POP2 -> pop2Word()
-                SimpleInsnType.DUP -> pop1Word().also { push(it, it) }
+                SimpleInsnType.ACONST_NULL -> frame!!.push(NULL_VALUE)
+                SimpleInsnType.POP -> {
+                    check1Word(0)
+                    pop(1)
+                }
+                SimpleInsnType.POP2 -> pop(count2Word(0))
+                SimpleInsnType.DUP -> {
+                    check1Word(0)
+                    dupX(1, 0)
+                }
                 SimpleInsnType.DUP_X1 -> {
-                    val v1 = pop1Word()
-                    val v2 = pop1Word()
-                    push(v1)
-                    push(v2)
-                    push(v1)
+                    check1Word(0)
+                    check1Word(1)
+                    dupX(1, 1)
                 }
                 SimpleInsnType.DUP_X2 -> {
-                    val v1 = pop1Word()
-                    val v2 = pop2Word()
-                    push(v1)
-                    push(v2)
-                    push(v1)
-                }
-                SimpleInsnType.DUP2 -> {
-                    val v1 = pop2Word()
-                    push(v1)
-                    push(v1)
+                    check1Word(0)
+                    dupX(1, count2Word(1))
                 }
+                SimpleInsnType.DUP2 -> dupX(count2Word(0), 0)
                 SimpleInsnType.DUP2_X1 -> {
-                    val v1 = pop2Word()
-                    val v2 = pop1Word()
-                    push(v1)
-                    push(v2)
-                    push(v1)
+                    val count = count2Word(0)
+                    check1Word(count)
+                    dupX(count, 1)
                 }
                 SimpleInsnType.DUP2_X2 -> {
-                    val v1 = pop2Word()
-                    val v2 = pop2Word()
-                    push(v1)
-                    push(v2)
-                    push(v1)
+                    val count = count2Word(0)
+                    dupX(count, count2Word(count))
                 }
                 SimpleInsnType.SWAP -> {
-                    val v1 = pop1Word()
-                    val v2 = pop1Word()
-                    push(v1)
-                    push(v2)
+                    check1Word(0)
+                    check1Word(1)
+                    dupX(1, 1)
+                    pop(1)
                 }
                 SimpleInsnType.LCMP -> replace2(Word.Single)
                 SimpleInsnType.FCMPL -> replace2(Word.Single)
@@ -414,25 +474,27 @@ internal class ExtraReferenceDetector(
                 SimpleInsnType.RETURN -> frame = null
                 SimpleInsnType.ARRAYLENGTH -> replace(Word.Single)
                 SimpleInsnType.ATHROW -> frame = null
-                SimpleInsnType.MONITORENTER -> pop()
-                SimpleInsnType.MONITOREXIT -> pop()
+                SimpleInsnType.MONITORENTER -> pop(1)
+                SimpleInsnType.MONITOREXIT -> pop(1)
             }
             TypedInsn::class -> when ((insn as TypedInsn).insn) {
                 TypedInsnType.ALOAD -> {
-                    val index = pop()
-                    val array = pop()
-                    if (index !is Int || array !is MutableList<*> || index !in array.indices) {
+                    val frame = frame!!
+                    val index = frame.getIntOrNull(frame.top - 1)
+                    val array = frame.getObjectOrNull(frame.top - 2)
+                    pop(2)
+                    if (index == null || array !is MutableList<*> || index !in array.indices)
                         return push(insn.type.toWord())
-                    }
-                    push(array[index]!!)
+                    frame.push(array[index]!!)
                 }
                 TypedInsnType.ASTORE -> {
-                    val value = pop()
-                    val index = pop()
-                    val array = pop()
-                    if (index !is Int || array !is MutableList<*> || index !in array.indices) {
+                    val frame = frame!!
+                    val value = frame.get(frame.top - 1)!!
+                    val index = frame.getIntOrNull(frame.top - 2)
+                    val array = frame.getObjectOrNull(frame.top - 3)
+                    pop(3)
+                    if (index == null || array !is MutableList<*> || index !in array.indices)
                         return
-                    }
                     @Suppress("UNCHECKED_CAST")
                     (array as MutableList<Any>)[index] = value
                 }
@@ -450,8 +512,10 @@ internal class ExtraReferenceDetector(
                 TypedInsnType.XOR -> replace2(insn.type.toWord())
                 TypedInsnType.RETURN -> frame = null
                 TypedInsnType.NEWARRAY -> {
-                    val count = pop()
-                    if (count !is Int || count !in 0..100)
+                    val frame = frame!!
+                    val count = frame.getIntOrNull(frame.top - 1)
+                    pop(1)
+                    if (count == null || count !in 0..100)
                         return push(Word.Single)
                     val value = when (insn.type) {
                         VMType.Int -> MutableList<Any>(count) { 0 }
@@ -464,29 +528,35 @@ internal class ExtraReferenceDetector(
                         VMType.Boolean -> MutableList<Any>(count) { false }
                         else -> assertError("")
                     }
-                    push(value)
+                    frame.push(OBJECT_VALUE, 0, value)
                 }
             }
             CastInsn::class -> replace((insn as CastInsn).to.toWord())
             VarInsn::class -> {
                 val frame = frame!!
                 when ((insn as VarInsn).insn) {
-                    VarInsnType.LOAD -> push(frame.locals[insn.variable] ?: insn.type.toWord())
-                    VarInsnType.STORE -> frame.locals[insn.variable] = pop()
+                    VarInsnType.LOAD -> {
+                        if (frame.tags[insn.variable] == UNKNOWN) push(insn.type.toWord())
+                        else frame.pushCopy(insn.variable)
+                    }
+                    VarInsnType.STORE -> {
+                        pop(1)
+                        frame.copy(frame.top, insn.variable, 1)
+                    }
                 }
             }
-            RetInsn::class -> frame!!.locals[(insn as RetInsn).variable] = null
+            RetInsn::class -> frame!!.set(UNKNOWN, (insn as RetInsn).variable)
             TypeInsn::class -> when ((insn as TypeInsn).insn) {
                 TypeInsnType.NEW -> push(Word.Single)
                 TypeInsnType.ANEWARRAY -> {
-                    val count = pop()
-                    if (count !is Int || count !in 0..100) {
-                        push(Word.Single)
-                        return
-                    }
-                    push(MutableList(count) { NULL })
+                    val frame = frame!!
+                    val count = frame.getIntOrNull(frame.top - 1)
+                    pop(1)
+                    if (count == null || count !in 0..100)
+                        return push(Word.Single)
+                    frame.push(OBJECT_VALUE, 0, MutableList(count) { NULL })
                 }
-                TypeInsnType.CHECKCAST -> push(pop())
+                TypeInsnType.CHECKCAST -> check(frame!!.stackSize >= 1) { "stack underflow" }
                 TypeInsnType.INSTANCEOF -> replace(Word.Single)
             }
             FieldInsn::class -> {
@@ -494,23 +564,36 @@ internal class ExtraReferenceDetector(
                 val put = insn.insn == FieldInsnType.PUTFIELD || insn.insn == FieldInsnType.PUTSTATIC
                 val hasSelf = insn.insn == FieldInsnType.PUTFIELD || insn.insn == FieldInsnType.GETFIELD
                 if (put) {
-                    pop() // value
-                    if (hasSelf) pop() // self
+                    pop(if (hasSelf) 2 else 1) // value and self
                 } else {
-                    val self = if (hasSelf) pop() else null
-                    push(processExtraReference(insn.field, self) ?: Word.from(insn.field.descriptor)!!) // value
+                    if (hasSelf) pop(1) // self
+                    val value = if (env.isReflectionTarget(insn.field)) processExtraReference(insn.field) else null
+                    if (value != null) frame!!.push(value)
+                    else push(Word.from(insn.field.descriptor)!!)
                 }
             }
             MethodInsn::class -> {
                 insn as MethodInsn
-                val (params, returns) = popAsDescriptorAndReturnWord(insn.method.descriptor)
-                val self = if (insn.insn != MethodInsnType.INVOKESTATIC) pop() else null
-                if (returns == null) return
-                push(processExtraReference(insn.method, self, params) ?: returns)
+                val frame = frame!!
+                val descriptor = insn.method.descriptor
+                val argCount = descriptor.arguments.size
+                val hasSelf = insn.insn != MethodInsnType.INVOKESTATIC
+                check(frame.stackSize >= argCount + (if (hasSelf) 1 else 0)) { "stack underflow" }
+                // values are boxed only if this may produce extra references
+                val isTarget = env.isReflectionTarget(insn.method)
+                val params = if (!isTarget) emptyList() else List(argCount) { frame.get(frame.top - argCount + it)!! }
+                frame.top -= argCount
+                val self = if (hasSelf && isTarget) frame.get(frame.top - 1) else null
+                if (hasSelf) frame.top--
+                val returns = Word.from(descriptor.returns) ?: return
+                val value = if (isTarget) processExtraReference(insn.method, self, params) else null
+                if (value != null) frame.push(value)
+                else push(returns)
             }
             InvokeDynamicInsn::class -> {
                 insn as InvokeDynamicInsn
-                popAsDescriptorAndReturnWord(insn.target.descriptor).second?.let(::push)
+                pop(insn.target.descriptor.arguments.size)
+                Word.from(insn.target.descriptor.returns)?.let(::push)
             }
             JumpInsn::class -> {
                 when ((insn as JumpInsn).insn) {
@@ -530,19 +613,19 @@ internal class ExtraReferenceDetector(
                     JumpInsnType.IF_ACMPNE -> pop(2)
                     JumpInsnType.GOTO -> Unit
                     JumpInsnType.JSR -> push(Word.Single)
-                    JumpInsnType.IFNULL -> pop()
-                    JumpInsnType.IFNONNULL -> pop()
+                    JumpInsnType.IFNULL -> pop(1)
+                    JumpInsnType.IFNONNULL -> pop(1)
                 }
                 setFrame(framesByLabel, insn.target)
                 if (insn.insn == JumpInsnType.GOTO || insn.insn == JumpInsnType.JSR) {
                     frame = null
                 }
             }
-            LdcInsn::class -> push((insn as LdcInsn).value.toFV())
-            IIncInsn::class -> frame!!.locals[(insn as IIncInsn).variable] = Word.Single
+            LdcInsn::class -> frame!!.pushConstant((insn as LdcInsn).value)
+            IIncInsn::class -> frame!!.set(SINGLE_WORD, (insn as IIncInsn).variable)
             TableSwitchInsn::class -> {
                 insn as TableSwitchInsn
-                pop()
+                pop(1)
                 setFrame(framesByLabel, insn.default)
                 for (label in insn.labels)
                     setFrame(framesByLabel, label)
@@ -550,7 +633,7 @@ internal class ExtraReferenceDetector(
             }
             LookupSwitchInsn::class -> {
                 insn as LookupSwitchInsn
-                pop()
+                pop(1)
                 setFrame(framesByLabel, insn.default)
                 for ((_, label) in insn.labels)
                     setFrame(framesByLabel, label)
@@ -558,13 +641,17 @@ internal class ExtraReferenceDetector(
             }
             MultiANewArrayInsn::class -> {
                 insn as MultiANewArrayInsn
-                val counts = List(insn.dimensions) { pop() }.asReversed()
-                if (counts.any { it !is Int }) {
-                    push(Word.Single)
-                    return
+                val frame = frame!!
+                check(frame.stackSize >= insn.dimensions) { "stack underflow" }
+                val counts = IntArray(insn.dimensions)
+                var known = true
+                for (i in counts.indices) {
+                    val count = frame.getIntOrNull(frame.top - insn.dimensions + i)
+                    if (count == null) known = false
+                    else counts[i] = count
                 }
-                @Suppress("UNCHECKED_CAST")
-                counts as List<Int>
+                frame.top -= insn.dimensions
+                if (!known) return push(Word.Single)
                 val initValue = when (insn.type.name[insn.dimensions]) {
                     'Z' -> false
                     'C' -> 0.toChar()
@@ -578,19 +665,19 @@ internal class ExtraReferenceDetector(
                     '[' -> NULL
                     else -> error("unsupported descriptor: ${insn.type}")
                 }
-                fun newArray(counts: List<Int>, dim: Int, init: Any): MutableList<Any> {
+                fun newArray(dim: Int): MutableList<Any> {
                     return if (dim != counts.lastIndex)
-                        MutableList(counts[dim]) { newArray(counts, dim + 1, init) }
+                        MutableList(counts[dim]) { newArray(dim + 1) }
                     else
-                        MutableList(counts[dim]) { init }
+                        MutableList(counts[dim]) { initValue }
                 }
-                push(newArray(counts, 0, initValue))
+                frame.push(OBJECT_VALUE, 0, newArray(0))
             }
         }
     }
 
-    private fun processExtraReference(field: FieldReference, @Suppress("UNUSED_PARAMETER") self: Any?): Any? {
-        return processExtraReference(self, emptyList(),
+    private fun processExtraReference(field: FieldReference): Any? {
+        return processExtraReference(null, emptyList(),
             env.reflectionMap.refFields[field], env.reflectionMap.fields[field])
     }
 
@@ -650,88 +737,205 @@ internal class ExtraReferenceDetector(
     }
 
     private fun mergeFrame(mergeTo: StackFrame, adds: StackFrame) {
-        require(mergeTo.stacks.size == adds.stacks.size) { "merge frame failed" }
-        require(mergeTo.locals.size == adds.locals.size) { "merge frame failed" }
-        merge(mergeTo.stacks, adds.stacks, true)
-        merge(mergeTo.locals, adds.locals, false)
-    }
-
-    private fun <T> merge(mergeTo: MutableList<T>, adds: MutableList<T>, stack: Boolean) {
-        val iter0 = mergeTo.listIterator()
-        val iter1 = adds.iterator()
-        while (iter0.hasNext()) {
-            val one = iter0.next()
-            val two = iter1.next()
+        require(mergeTo.top == adds.top) { "merge frame failed" }
+        require(mergeTo.maxLocals == adds.maxLocals) { "merge frame failed" }
+        for (i in 0 until mergeTo.maxLocals) {
+            if (mergeTo.isSameValue(i, adds)) continue
+            val one = mergeTo.tags[i]
+            val two = adds.tags[i]
             when {
-                one == two -> Unit
-                one == null -> iter0.set(one)
-                two == null -> iter0.set(two)
-                else -> {
-                    val oneType = one.toWord()
-                    val twoType = two.toWord()
-                    if (stack) {
-                        check(oneType == twoType)
-                    } else {
-                        @Suppress("UNCHECKED_CAST")
-                        if (oneType.isOneWord != twoType.isOneWord) iter0.set(null as T)
-                        else iter0.set(oneType as T)
-                    }
-                }
+                one == UNKNOWN -> Unit
+                two == UNKNOWN -> mergeTo.set(UNKNOWN, i)
+                isTwoWord(one) != isTwoWord(two) -> mergeTo.set(UNKNOWN, i)
+                isTwoWord(one) -> mergeTo.set(DOUBLE_WORD, i)
+                else -> mergeTo.set(SINGLE_WORD, i)
             }
         }
+        for (i in mergeTo.maxLocals until mergeTo.top) {
+            if (mergeTo.isSameValue(i, adds)) continue
+            check(isTwoWord(mergeTo.tags[i]) == isTwoWord(adds.tags[i]))
+        }
     }
 
-    private fun popAsDescriptorAndReturnWord(descriptor: MethodDescriptor): Pair<List<Any>, Word?> {
-        val frame = frame!!
-        val parameters = List(descriptor.arguments.size) {
-            frame.stacks.removeLast() // pop arguments
-        }.asReversed()
-        return parameters to Word.from(descriptor.returns)
-    }
-
-    // Word for unknowns
-    // Constant for known value
+    /**
+     * The frame of abstract interpreter.
+     * Values are held in tagged primitive arrays to avoid boxing:
+     * [tags] has the kind of the value, [values] has the primitive value (as raw bits),
+     * and [objects], which is allocated only if needed, has the constant strings, classes and arrays.
+     *
+     * The slots are locals followed by stacks. Each value in stacks uses one slot even if it's long or double.
+     */
     private class StackFrame(
-        val locals: MutableList<Any?>,
-        val stacks: MutableList<Any>,
+        val maxLocals: Int,
+        var tags: ByteArray,
+        var values: LongArray,
+        var objects: Array<Any?>?,
+        var top: Int,
     ) {
         var underBackJump = false
-        fun clone() = StackFrame(clone(locals), clone(stacks))
 
-        companion object {
-            @Suppress("UNCHECKED_CAST")
-            private fun <T> clone(values: MutableList<T>) = values.mapTo(arrayListOf()) {
-                @Suppress("UNNECESSARY_NOT_NULL_ASSERTION") // compiler bug
-                when (it) {
-                    null -> it
-                    is MutableList<*> -> it.toMutableList() as T
-                    else -> when (it!!::class) {
-                        IntArray::class -> (it as IntArray).clone() as T
-                        LongArray::class -> (it as LongArray).clone() as T
-                        FloatArray::class -> (it as FloatArray).clone() as T
-                        DoubleArray::class -> (it as DoubleArray).clone() as T
-                        ByteArray::class -> (it as ByteArray).clone() as T
-                        CharArray::class -> (it as CharArray).clone() as T
-                        ShortArray::class -> (it as ShortArray).clone() as T
-                        BooleanArray::class -> (it as BooleanArray).clone() as T
-                        else -> it
-                    }
+        val stackSize get() = top - maxLocals
+
+        fun clone(): StackFrame {
+            val objects = objects?.copyOf()
+            if (objects != null) {
+                for (i in 0 until top) {
+                    val value = objects[i]
+                    if (tags[i] == OBJECT_VALUE && value is MutableList<*>) objects[i] = value.toMutableList()
                 }
             }
-            
+            return StackFrame(maxLocals, tags.copyOf(), values.copyOf(), objects, top)
+        }
+
+        fun ensureCapacity(capacity: Int) {
+            if (tags.size >= capacity) return
+            val newSize = maxOf(capacity, tags.size * 2)
+            tags = tags.copyOf(newSize)
+            values = values.copyOf(newSize)
+            objects = objects?.copyOf(newSize)
+        }
+
+        fun isTwoWord(index: Int) = isTwoWord(tags[index])
+
+        fun isSameValue(index: Int, other: StackFrame): Boolean {
+            val tag = tags[index]
+            if (tag != other.tags[index]) return false
+            if (tag == OBJECT_VALUE) return objects!![index] == other.objects!![index]
+            return values[index] == other.values[index]
+        }
+
+        fun set(tag: Byte, index: Int, value: Long = 0, obj: Any? = null) {
+            tags[index] = tag
+            values[index] = value
+            if (obj != null) {
+                val objects = objects ?: arrayOfNulls<Any?>(tags.size).also { objects = it }
+                objects[index] = obj
+            } else {
+                objects?.set(index, null)
+            }
+        }
+
+        fun set(index: Int, value: Any?) {
+            when (value) {
+                null -> set(UNKNOWN, index)
+                Word.Single -> set(SINGLE_WORD, index)
+                Word.Double -> set(DOUBLE_WORD, index)
+                is Int -> set(INT_VALUE, index, value.toLong())
+                is Long -> set(LONG_VALUE, index, value)
+                is Float -> set(FLOAT_VALUE, index, value.toBits().toLong())
+                is Double -> set(DOUBLE_VALUE, index, value.toBits())
+                is Byte -> set(BYTE_VALUE, index, value.toLong())
+                is Char -> set(CHAR_VALUE, index, value.code.toLong())
+                is Short -> set(SHORT_VALUE, index, value.toLong())
+                is Boolean -> set(BOOLEAN_VALUE, index, if (value) 1 else 0)
+                else -> if (value === NULL) set(NULL_VALUE, index) else set(OBJECT_VALUE, index, 0, value)
+            }
+        }
+
+        /**
+         * Returns the boxed value. null for unknown local.
+         */
+        fun get(index: Int): Any? = when (tags[index]) {
+            UNKNOWN -> null
+            SINGLE_WORD -> Word.Single
+            DOUBLE_WORD -> Word.Double
+            NULL_VALUE -> NULL
+            INT_VALUE -> values[index].toInt()
+            LONG_VALUE -> values[index]
+            FLOAT_VALUE -> Float.fromBits(values[index].toInt())
+            DOUBLE_VALUE -> Double.fromBits(values[index])
+            BYTE_VALUE -> values[index].toByte()
+            CHAR_VALUE -> values[index].toInt().toChar()
+            SHORT_VALUE -> values[index].toShort()
+            BOOLEAN_VALUE -> values[index] != 0L
+            OBJECT_VALUE -> objects!![index]
+            else -> assertError("unknown tag")
+        }
+
+        fun getIntOrNull(index: Int): Int? = if (tags[index] == INT_VALUE) values[index].toInt() else null
+
+        fun getObjectOrNull(index: Int): Any? = if (tags[index] == OBJECT_VALUE) objects!![index] else null
+
+        fun copy(from: Int, to: Int, count: Int) {
+            System.arraycopy(tags, from, tags, to, count)
+            System.arraycopy(values, from, values, to, count)
+            objects?.let { System.arraycopy(it, from, it, to, count) }
+        }
+
+        fun push(tag: Byte, value: Long = 0, obj: Any? = null) {
+            ensureCapacity(top + 1)
+            set(tag, top++, value, obj)
+        }
+
+        fun push(value: Any) {
+            ensureCapacity(top + 1)
+            set(top++, value)
+        }
+
+        fun pushCopy(index: Int) {
+            ensureCapacity(top + 1)
+            copy(index, top++, 1)
+        }
+
+        fun pushConstant(value: Constant) {
+            when (value::class) {
+                ConstantInt::class -> push(INT_VALUE, (value as ConstantInt).value.toLong())
+                ConstantLong::class -> push(LONG_VALUE, (value as ConstantLong).value)
+                ConstantFloat::class -> push(FLOAT_VALUE, (value as ConstantFloat).value.toBits().toLong())
+                ConstantDouble::class -> push(DOUBLE_VALUE, (value as ConstantDouble).value.toBits())
+                ConstantString::class -> push(OBJECT_VALUE, 0, (value as ConstantString).value)
+                else -> push(OBJECT_VALUE, 0, value)
+            }
+        }
+
+        companion object {
+            private const val INITIAL_STACK_CAPACITY = 8
+
             fun init(
                 isStatic: Boolean, // null: static, others for instance method
                 methodDescriptor: MethodDescriptor,
                 maxLocals: Int,
             ): StackFrame {
-                val types = methodDescriptor.arguments.mapTo(arrayListOf<Any?>()) { Word.from(it) }
-                if (!isStatic) types.add(0, Word.Single)
-                while (types.size < maxLocals) types.add(null)
-                return StackFrame(types, arrayListOf())
+                val arguments = methodDescriptor.arguments
+                var locals = if (isStatic) 0 else 1
+                for (argument in arguments) locals += if (Word.from(argument) == Word.Double) 2 else 1
+                val size = maxOf(locals, maxLocals)
+                val frame = StackFrame(size, ByteArray(size + INITIAL_STACK_CAPACITY),
+                    LongArray(size + INITIAL_STACK_CAPACITY), null, size)
+                var index = 0
+                if (!isStatic) frame.set(SINGLE_WORD, index++)
+                for (argument in arguments) {
+                    if (Word.from(argument) == Word.Double) {
+                        frame.set(DOUBLE_WORD, index)
+                        index += 2
+                    } else {
+                        frame.set(SINGLE_WORD, index++)
+                    }
+                }
+                return frame
             }
         }
     }
+
     companion object {
+        // the tags of StackFrame
+        private const val UNKNOWN: Byte = 0
+        private const val SINGLE_WORD: Byte = 1
+        private const val DOUBLE_WORD: Byte = 2
+        private const val NULL_VALUE: Byte = 3
+        private const val INT_VALUE: Byte = 4
+        private const val LONG_VALUE: Byte = 5
+        private const val FLOAT_VALUE: Byte = 6
+        private const val DOUBLE_VALUE: Byte = 7
+        private const val BYTE_VALUE: Byte = 8
+        private const val CHAR_VALUE: Byte = 9
+        private const val SHORT_VALUE: Byte = 10
+        private const val BOOLEAN_VALUE: Byte = 11
+        private const val OBJECT_VALUE: Byte = 12
+
+        @JvmStatic
+        private fun isTwoWord(tag: Byte) = tag == DOUBLE_WORD || tag == LONG_VALUE || tag == DOUBLE_VALUE
+
         @JvmStatic
         private fun VMType.toWord(): Word = when (this) {
             VMType.Int -> Word.Single
@@ -745,14 +949,6 @@ internal class ExtraReferenceDetector(
             VMType.Boolean -> Word.Single
         }
 
-        @JvmStatic
-        private fun Any.toWord(): Word = when (this) {
-            is Long -> Word.Double
-            is Double -> Word.Double
-            is Word -> this
-            else -> Word.Single
-        }
-
         @JvmStatic
         private fun Constant.toFV(): Any = when (this::class) {
             ConstantInt::class -> (this as ConstantInt).value
@@ -770,8 +966,6 @@ internal class ExtraReferenceDetector(
 
         @JvmStatic
         private val NULL = Any()
-        @JvmStatic
-        private val Any.isOneWord get() = this != Word.Double && this !is Long && this !is Double
     }
 
     private sealed class Word {
@@ -0,0 +1,129 @@
+package com.anatawa12.relocator.internal
+
+import com.anatawa12.relocator.classes.ClassCode
+import com.anatawa12.relocator.classes.ClassFile
+import org.objectweb.asm.Opcodes.ACC_INTERFACE
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicIntegerArray
+import java.util.concurrent.atomic.AtomicReferenceArray
+
+/**
+ * Writes each relocated class to [jar] as soon as the class is relocated,
+ * and releases the class so the whole relocated model is not kept in memory.
+ * Classes are written in order of [classes] by [run] so the jar is deterministic.
+ *
+ * The classes which have methods whose frames must be recomputed are deferred to [finish]
+ * since the class hierarchy is not fixed until all classes are relocated.
+ */
+internal class RelocatedClassOutput(
+    classes: List<ClassFile>,
+    private val jar: JarWriter,
+    private val removalMarks: RemovalMarks,
+    private val parallelism: Int,
+    maxBufferedBytes: Long = OrderedHandoff.MAX_BUFFERED_BYTES,
+) {
+    // the slot is cleared when the class is written or removed
+    private val classes = AtomicReferenceArray<ClassFile?>(classes.toTypedArray())
+    private val names = arrayOfNulls<String>(classes.size)
+    private val releases = IntArray(classes.size)
+    private val serializer = ClassSerializer(null, parallelism)
+    private val handoff = OrderedHandoff(classes.size, maxBufferedBytes) { i, bytes ->
+        jar.writeClass(names[i]!!, releases[i], bytes)
+        names[i] = null
+    }
+    private val deferred = AtomicIntegerArray(classes.size)
+
+    /**
+     * The hierarchy of relocated classes under relocated names, which is kept after the classes are released.
+     */
+    val classInfos = ConcurrentHashMap<String, ClassHierarchy.ClassInfo>()
+
+    val spilledCount: Int get() = handoff.spilledCount
+
+    /**
+     * Called when all relocation tasks of the class at [index] are finished.
+     */
+    fun classRelocated(index: Int) {
+        val classFile = classes.get(index)!!
+        if (removalMarks.unmark(classFile)) {
+            classes.set(index, null)
+            return handoff.skip(index)
+        }
+        sweepMembers(classFile)
+        classInfos[classFile.name] =
+            ClassHierarchy.ClassInfo(classFile.superName?.name, classFile.access.hasFlag(ACC_INTERFACE))
+        if (classFile.methods.any { it.classCode?.framesInvalidated == true }) {
+            deferred.set(index, 1)
+            return handoff.skip(index)
+        }
+        val bytes = serializer.serialize(classFile)
+        names[index] = classFile.name
+        releases[index] = classFile.release
+        classes.set(index, null)
+        handoff.complete(index, bytes)
+    }
+
+    /**
+     * Returns true if the class at [index] is not released yet.
+     */
+    internal fun holds(index: Int): Boolean = classes.get(index) != null
+
+    /**
+     * Writes the classes to [jar] on the I/O dispatcher until all classes are relocated.
+     * This must run concurrently with the relocation.
+     */
+    suspend fun run() = handoff.run()
+
+    /**
+     * Writes the deferred classes with [hierarchy]. This must be called after [run] is finished.
+     */
+    suspend fun finish(hierarchy: ClassHierarchy) {
+        val deferredClasses = (0 until classes.length()).filter { deferred.get(it) != 0 }.map { classes.get(it)!! }
+        ClassSerializer(hierarchy, parallelism).serializeAll(deferredClasses, jar::writeClass)
+    }
+
+    private fun sweepMembers(classFile: ClassFile) {
+        if (removalMarks.isEmpty) return
+        removalMarks.sweep(classFile.visibleAnnotations)
+        removalMarks.sweep(classFile.invisibleAnnotations)
+        removalMarks.sweep(classFile.visibleTypeAnnotations)
+        removalMarks.sweep(classFile.invisibleTypeAnnotations)
+        removalMarks.sweep(classFile.fields)
+        removalMarks.sweep(classFile.methods)
+        removalMarks.sweep(classFile.recordFields)
+        for (field in classFile.fields) {
+            removalMarks.sweep(field.visibleAnnotations)
+            removalMarks.sweep(field.invisibleAnnotations)
+            removalMarks.sweep(field.visibleTypeAnnotations)
+            removalMarks.sweep(field.invisibleTypeAnnotations)
+        }
+        for (field in classFile.recordFields) {
+            removalMarks.sweep(field.visibleAnnotations)
+            removalMarks.sweep(field.invisibleAnnotations)
+            removalMarks.sweep(field.visibleTypeAnnotations)
+            removalMarks.sweep(field.invisibleTypeAnnotations)
+        }
+        for (method in classFile.methods) {
+            removalMarks.sweep(method.visibleAnnotations)
+            removalMarks.sweep(method.invisibleAnnotations)
+            removalMarks.sweep(method.visibleTypeAnnotations)
+            removalMarks.sweep(method.invisibleTypeAnnotations)
+            method.visibleParameterAnnotations.forEach { it?.let(removalMarks::sweep) }
+            method.invisibleParameterAnnotations.forEach { it?.let(removalMarks::sweep) }
+            method.classCode?.let(::sweepCode)
+        }
+    }
+
+    private fun sweepCode(code: ClassCode) {
+        for (insn in code.instructions) {
+            removalMarks.sweep(insn.visibleAnnotations)
+            removalMarks.sweep(insn.invisibleAnnotations)
+        }
+        for (tryCatchBlock in code.tryCatchBlocks) {
+            removalMarks.sweep(tryCatchBlock.visibleAnnotations)
+            removalMarks.sweep(tryCatchBlock.invisibleAnnotations)
+        }
+        removalMarks.sweep(code.visibleLocalVariableAnnotations)
+        removalMarks.sweep(code.invisibleLocalVariableAnnotations)
+    }
+}
@@ -0,0 +1,190 @@
+package com.anatawa12.relocator.internal
+
+import jdk.jfr.Category
+import jdk.jfr.DataAmount
+import jdk.jfr.Description
+import jdk.jfr.Event
+import jdk.jfr.Label
+import jdk.jfr.Name
+import jdk.jfr.StackTrace
+
+// Java Flight Recorder events of relocation.
+// The events are recorded when they are enabled in a recording, for example with
+// `jcmd <pid> JFR.start settings=profile`, and `com.anatawa12.relocator.jfr` system property is not `false`.
+//
+// jdk.jfr is not available on some JVMs (e.g. 8u252 or older) so event classes must not be loaded
+// unless jfrEnabled is true. Use the functions below to start events instead of constructors,
+// and don't pass events as Event because the verifier loads event classes to check the type.
+
+private val jfrEnabled = System.getProperty("com.anatawa12.relocator.jfr") != "false" && try {
+    Class.forName("jdk.jfr.Event")
+    true
+} catch (e: ClassNotFoundException) {
+    false
+}
+
+internal fun classParseEvent(): ClassParseEvent? =
+    if (jfrEnabled) ClassParseEvent().takeIf { it.isEnabled }?.apply { begin() } else null
+
+internal fun containerReadEvent(): ContainerReadEvent? =
+    if (jfrEnabled) ContainerReadEvent().takeIf { it.isEnabled }?.apply { begin() } else null
+
+internal fun computeReferencesEvent(): ComputeReferencesEvent? =
+    if (jfrEnabled) ComputeReferencesEvent().takeIf { it.isEnabled }?.apply { begin() } else null
+
+internal fun hierarchyResolutionEvent(): HierarchyResolutionEvent? =
+    if (jfrEnabled) HierarchyResolutionEvent().takeIf { it.isEnabled }?.apply { begin() } else null
+
+internal fun extraReferenceDetectionEvent(): ExtraReferenceDetectionEvent? =
+    if (jfrEnabled) ExtraReferenceDetectionEvent().takeIf { it.isEnabled }?.apply { begin() } else null
+
+internal fun classRelocationEvent(): ClassRelocationEvent? =
+    if (jfrEnabled) ClassRelocationEvent().takeIf { it.isEnabled }?.apply { begin() } else null
+
+internal fun classSerializationEvent(): ClassSerializationEvent? =
+    if (jfrEnabled) ClassSerializationEvent().takeIf { it.isEnabled }?.apply { begin() } else null
+
+private const val CATEGORY = "Relocator"
+
+@Name("com.anatawa12.relocator.ClassParse")
+@Label("Class Parse")
+@Description("Parses a class file into ClassFile")
+@Category(CATEGORY)
+@StackTrace(false)
+internal class ClassParseEvent : Event() {
+    @JvmField
+    @Label("Class Name")
+    var className: String? = null
+
+    @JvmField
+    @Label("Release")
+    var release: Int = 0
+
+    @JvmField
+    @Label("Size")
+    @DataAmount
+    var size: Long = 0
+
+    @JvmField
+    @Label("Skip Code")
+    var skipCode: Boolean = false
+}
+
+@Name("com.anatawa12.relocator.ContainerRead")
+@Label("Container Read")
+@Description("Reads entries from a jar or a directory of a class path")
+@Category(CATEGORY)
+@StackTrace(false)
+internal class ContainerReadEvent : Event() {
+    @JvmField
+    @Label("Container")
+    var container: String? = null
+
+    @JvmField
+    @Label("Path")
+    var path: String? = null
+
+    @JvmField
+    @Label("Entries")
+    var entries: Int = 0
+
+    @JvmField
+    @Label("Size")
+    @Description("The size of entries read eagerly. Entries read lazily are not counted")
+    @DataAmount
+    var size: Long = 0
+}
+
+@Name("com.anatawa12.relocator.ComputeReferences")
+@Label("Compute References")
+@Description("Computes references of a class and its members")
+@Category(CATEGORY)
+@StackTrace(false)
+internal class ComputeReferencesEvent : Event() {
+    @JvmField
+    @Label("Class Name")
+    var className: String? = null
+
+    @JvmField
+    @Label("Members")
+    var members: Int = 0
+
+    @JvmField
+    @Label("References")
+    @Description("The number of references of the class, not including ones of members")
+    var references: Int = 0
+}
+
+@Name("com.anatawa12.relocator.HierarchyResolution")
+@Label("Hierarchy Resolution")
+@Description("Resolves the common super class of two classes to compute stack map frames")
+@Category(CATEGORY)
+@StackTrace(false)
+internal class HierarchyResolutionEvent : Event() {
+    @JvmField
+    @Label("First Type")
+    var type1: String? = null
+
+    @JvmField
+    @Label("Second Type")
+    var type2: String? = null
+
+    @JvmField
+    @Label("Common Super Class")
+    var result: String? = null
+}
+
+@Name("com.anatawa12.relocator.ExtraReferenceDetection")
+@Label("Extra Reference Detection")
+@Description("Detects references made with reflection in a method")
+@Category(CATEGORY)
+@StackTrace(false)
+internal class ExtraReferenceDetectionEvent : Event() {
+    @JvmField
+    @Label("Location")
+    var location: String? = null
+
+    @JvmField
+    @Label("Instructions")
+    var instructions: Int = 0
+
+    @JvmField
+    @Label("References")
+    @Description("The number of references detected")
+    var references: Int = 0
+}
+
+@Name("com.anatawa12.relocator.ClassRelocation")
+@Label("Class Relocation")
+@Description("Relocates a class or a part of a large class")
+@Category(CATEGORY)
+@StackTrace(false)
+internal class ClassRelocationEvent : Event() {
+    @JvmField
+    @Label("Class Name")
+    var className: String? = null
+
+    @JvmField
+    @Label("Members")
+    var members: Int = 0
+
+    @JvmField
+    @Label("Instructions")
+    var instructions: Int = 0
+}
+
+@Name("com.anatawa12.relocator.ClassSerialization")
+@Label("Class Serialization")
+@Description("Serializes a relocated class to bytes")
+@Category(CATEGORY)
+@StackTrace(false)
+internal class ClassSerializationEvent : Event() {
+    @JvmField
+    @Label("Class Name")
+    var className: String? = null
+
+    @JvmField
+    @Label("Size")
+    @DataAmount
+    var size: Long = 0
+}
@@ -0,0 +1,152 @@
+package com.anatawa12.relocator.internal
+
+import com.anatawa12.relocator.Relocator
+import kotlinx.coroutines.*
+import java.io.Closeable
+import java.lang.reflect.InvocationTargetException
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.Executor
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.coroutines.AbstractCoroutineContextElement
+import kotlin.coroutines.CoroutineContext
+import kotlin.coroutines.coroutineContext
+
+/**
+ * The dispatchers, the job and the deadline to run a relocation with, configured by [Relocator].
+ * The executors created for the relocation are shut down by [close].
+ */
+internal class RelocationExecution(relocator: Relocator) : Closeable {
+    private val virtualThreads: ExecutorService? =
+        if (relocator.ioExecutor == null && relocator.useVirtualThreads) newVirtualThreadExecutor() else null
+    private val job = Job()
+    private val timeout = relocator.timeout
+
+    val context: CoroutineContext
+
+    private val relocationFuture = RelocationFuture()
+
+    /**
+     * The future completed when the relocation is finished. Cancelling this cancels the relocation
+     * and this will be cancelled after running tasks are stopped.
+     */
+    val future: CompletableFuture<Void?> get() = relocationFuture
+
+    init {
+        val computeExecutor = relocator.computeExecutor
+        val computeDispatcher = when {
+            computeExecutor != null ->
+                LimitedExecutor(computeExecutor, relocator.maxParallelism).asCoroutineDispatcher()
+            relocator.maxParallelism < Runtime.getRuntime().availableProcessors() ->
+                LimitedExecutor(Dispatchers.Default.asExecutor(), relocator.maxParallelism).asCoroutineDispatcher()
+            else -> Dispatchers.Default
+        }
+        val ioDispatcher = (relocator.ioExecutor ?: virtualThreads)?.asCoroutineDispatcher() ?: Dispatchers.IO
+        context = computeDispatcher + IODispatcher(ioDispatcher) + job
+    }
+
+    /**
+     * Runs [block] within the deadline.
+     */
+    suspend fun run(block: suspend () -> Unit) {
+        if (timeout == null) block()
+        else withTimeout(timeout.toMillis()) { block() }
+    }
+
+    fun complete(result: Result<Unit>) {
+        close()
+        when {
+            job.isCancelled -> relocationFuture.completeCancelled()
+            else -> result.fold({ future.complete(null) }, { future.completeExceptionally(it) })
+        }
+    }
+
+    override fun close() {
+        virtualThreads?.shutdown()
+    }
+
+    private inner class RelocationFuture : CompletableFuture<Void?>() {
+        // this is not completed here since tasks, the jar writer and jar files are still running.
+        // complete cancels this after the relocation is unwound.
+        override fun cancel(mayInterruptIfRunning: Boolean): Boolean {
+            if (isDone) return false
+            job.cancel()
+            return true
+        }
+
+        fun completeCancelled() {
+            super.cancel(false)
+        }
+    }
+
+    private companion object {
+        /**
+         * Creates the executor which starts a virtual thread for each task,
+         * or returns null if virtual threads are not available on the running JVM.
+         */
+        fun newVirtualThreadExecutor(): ExecutorService? = try {
+            Executors::class.java.getMethod("newVirtualThreadPerTaskExecutor").invoke(null) as ExecutorService
+        } catch (e: NoSuchMethodException) {
+            null
+        } catch (e: InvocationTargetException) {
+            // virtual threads are preview feature and not enabled
+            if (e.cause is UnsupportedOperationException) null else throw e
+        }
+    }
+}
+
+/**
+ * The dispatcher to run blocking I/O on in the relocation.
+ */
+internal class IODispatcher(val dispatcher: CoroutineDispatcher) : AbstractCoroutineContextElement(Key) {
+    companion object Key : CoroutineContext.Key<IODispatcher>
+}
+
+/**
+ * Runs [block] on the [IODispatcher] of the current context, or [Dispatchers.IO] if not specified.
+ */
+internal suspend fun <T> withIOContext(block: suspend CoroutineScope.() -> T): T =
+    withContext(coroutineContext[IODispatcher]?.dispatcher ?: Dispatchers.IO, block)
+
+/**
+ * The executor runs at most [parallelism] tasks at once on [delegate].
+ */
+internal class LimitedExecutor(private val delegate: Executor, private val parallelism: Int) : Executor {
+    private val queue = ConcurrentLinkedQueue<Runnable>()
+    private val running = AtomicInteger()
+
+    init {
+        require(parallelism > 0) { "parallelism must be positive" }
+    }
+
+    override fun execute(command: Runnable) {
+        queue.add(command)
+        startWorkers()
+    }
+
+    private fun startWorkers() {
+        while (true) {
+            val current = running.get()
+            if (current >= parallelism || queue.isEmpty()) return
+            if (!running.compareAndSet(current, current + 1)) continue
+            try {
+                delegate.execute(::runTasks)
+            } catch (e: Throwable) {
+                running.decrementAndGet()
+                throw e
+            }
+        }
+    }
+
+    private fun runTasks() {
+        try {
+            while (true) (queue.poll() ?: return).run()
+        } finally {
+            running.decrementAndGet()
+            // some task may be added after the queue is found empty
+            startWorkers()
+        }
+    }
+}
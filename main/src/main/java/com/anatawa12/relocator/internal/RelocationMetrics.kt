@@ -0,0 +1,58 @@
+package com.anatawa12.relocator.internal
+
+import com.anatawa12.relocator.RelocationListener
+import com.anatawa12.relocator.RelocationPhase
+import com.anatawa12.relocator.RelocationProgress
+import java.util.concurrent.atomic.LongAdder
+import kotlin.coroutines.AbstractCoroutineContextElement
+import kotlin.coroutines.CoroutineContext
+
+/**
+ * The counters of a relocation and the [listener] notified of them.
+ * This is in the coroutine context of the relocation
+ * so that class paths can count classes without reference to the environment.
+ */
+internal class RelocationMetrics(
+    private val listener: RelocationListener?,
+) : AbstractCoroutineContextElement(Key) {
+    @Volatile
+    var phase: RelocationPhase = RelocationPhase.LOAD_PLUGINS
+        private set
+    val classesLoaded = LongAdder()
+    val classesParsed = LongAdder()
+    val classesReached = LongAdder()
+    val classesRelocated = LongAdder()
+    val classesWritten = LongAdder()
+    val bytesRead = LongAdder()
+    val bytesWritten = LongAdder()
+    val pendingTasks = LongAdder()
+
+    fun snapshot() = RelocationProgress(
+        phase,
+        classesLoaded.sum(),
+        classesParsed.sum(),
+        classesReached.sum(),
+        classesRelocated.sum(),
+        classesWritten.sum(),
+        bytesRead.sum(),
+        bytesWritten.sum(),
+        pendingTasks.sum(),
+    )
+
+    // the listener is called in synchronized block so it's never called concurrently
+
+    fun phaseStarted(phase: RelocationPhase) = synchronized(this) {
+        this.phase = phase
+        listener?.phaseStarted(phase)
+    }
+
+    fun phaseFinished(phase: RelocationPhase, elapsedNanos: Long) = synchronized(this) {
+        listener?.phaseFinished(phase, elapsedNanos, snapshot())
+    }
+
+    fun tick() = synchronized(this) {
+        listener?.progress(snapshot())
+    }
+
+    companion object Key : CoroutineContext.Key<RelocationMetrics>
+}
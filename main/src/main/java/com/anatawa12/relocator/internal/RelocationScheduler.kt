@@ -0,0 +1,122 @@
+package com.anatawa12.relocator.internal
+
+import kotlinx.coroutines.currentCoroutineContext
+import kotlinx.coroutines.ensureActive
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
+import java.util.concurrent.atomic.AtomicIntegerArray
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * The approximate cost of one relocation task, in the number of members and instructions.
+ */
+internal const val RELOCATION_CHUNK_COST = 2048
+
+/**
+ * Runs relocation tasks with at most [parallelism] tasks at once
+ * and records how long the tasks ran for the debug output.
+ */
+internal class RelocationScheduler(private val parallelism: Int) {
+    private val semaphore: Semaphore
+    private val busyNanos = LongAdder()
+    private val taskCount = LongAdder()
+    private val startedAt = System.nanoTime()
+
+    init {
+        require(parallelism > 0) { "parallelism must be positive" }
+        semaphore = Semaphore(parallelism)
+    }
+
+    suspend fun run(block: () -> Unit) = semaphore.withPermit {
+        // acquiring the permit doesn't check cancellation if it doesn't suspend
+        currentCoroutineContext().ensureActive()
+        val start = System.nanoTime()
+        try {
+            block()
+        } finally {
+            busyNanos.add(System.nanoTime() - start)
+            taskCount.increment()
+        }
+    }
+
+    /**
+     * Returns the number of tasks and the utilization of [parallelism] workers since this is created.
+     */
+    fun report(): String {
+        val elapsed = (System.nanoTime() - startedAt).coerceAtLeast(1)
+        val utilization = busyNanos.sum() * 100.0 / (elapsed * parallelism)
+        return "${taskCount.sum()} tasks, parallelism $parallelism, utilization ${"%.1f".format(utilization)}%"
+    }
+}
+
+/**
+ * Counts relocation tasks of each class and calls [onRelocated] with the index of the class
+ * when all tasks of the class are finished.
+ */
+internal class ClassTaskCounter(size: Int, private val onRelocated: (Int) -> Unit) {
+    private val pendingTasks = AtomicIntegerArray(size)
+
+    /**
+     * Sets the number of relocation tasks of the class at [index].
+     * This must be called before any task of the class is started.
+     */
+    fun setTaskCount(index: Int, count: Int) {
+        pendingTasks.set(index, count)
+    }
+
+    /**
+     * Adds [count] relocation tasks to the class at [index].
+     * This must be called from a running task of the class.
+     */
+    fun addTasks(index: Int, count: Int) {
+        pendingTasks.addAndGet(index, count)
+    }
+
+    fun taskFinished(index: Int) {
+        if (pendingTasks.decrementAndGet(index) == 0) onRelocated(index)
+    }
+}
+
+/**
+ * Batches consecutive indices of [costs] so that each batch costs at most [limit].
+ * An element which costs more than [limit] is returned as a batch of itself.
+ */
+internal fun batchByCost(costs: IntArray, limit: Int): List<IntArray> {
+    val batches = mutableListOf<IntArray>()
+    var batchStart = 0
+    var batchCost = 0
+    for ((i, cost) in costs.withIndex()) {
+        if (batchCost + cost > limit && batchStart != i) {
+            batches.add(IntArray(i - batchStart) { batchStart + it })
+            batchStart = i
+            batchCost = 0
+        }
+        batchCost += cost
+        if (cost > limit) {
+            batches.add(intArrayOf(i))
+            batchStart = i + 1
+            batchCost = 0
+        }
+    }
+    if (batchStart != costs.size) batches.add(IntArray(costs.size - batchStart) { batchStart + it })
+    return batches
+}
+
+/**
+ * Splits [elements] into consecutive chunks. A chunk is closed when its cost exceeds [limit]
+ * so each chunk costs at most [limit] plus the cost of its last element.
+ */
+internal inline fun <T> chunkByCost(elements: List<T>, limit: Int, cost: (T) -> Int): List<List<T>> {
+    val chunks = mutableListOf<List<T>>()
+    var chunkStart = 0
+    var chunkCost = 0
+    for ((i, element) in elements.withIndex()) {
+        chunkCost += cost(element)
+        if (chunkCost > limit || i == elements.lastIndex) {
+            chunks.add(elements.subList(chunkStart, i + 1))
+            chunkStart = i + 1
+            chunkCost = 0
+        }
+    }
+    return chunks
+}
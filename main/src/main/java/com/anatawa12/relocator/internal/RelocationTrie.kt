@@ -0,0 +1,158 @@
+package com.anatawa12.relocator.internal
+
+import java.util.concurrent.atomic.AtomicReferenceArray
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * The trie of relocation mapping keyed on '/'-separated package components.
+ * [map] finds the longest mapped prefix in O(depth of the name).
+ */
+internal class RelocationTrie(relocationMap: Map<String, String?>) {
+    private val root = Node()
+
+    init {
+        for ((from, mapTo) in relocationMap) {
+            var node = root
+            if (from.isNotEmpty()) {
+                for (segment in from.split('/'))
+                    node = node.getOrPutChild(segment)
+            }
+            node.mapped = true
+            node.mapTo = mapTo
+        }
+    }
+
+    /**
+     * Returns the mapped name or null if no mapping matches.
+     * The mapping to null means the prefix is not relocated.
+     */
+    fun map(name: String): String? = map(name, 0, name.length)
+
+    /**
+     * Returns the mapped name of the region from [start] to [end] of [name] or null if no mapping matches.
+     * This doesn't allocate anything if no mapping matches.
+     */
+    fun map(name: String, start: Int, end: Int): String? {
+        // the empty mapping matches only the empty name
+        if (start == end) return if (root.mapped) root.mapTo else null
+        var node = root
+        var matched: Node? = null
+        var matchedEnd = start
+        var segmentStart = start
+        while (node.childCount != 0) {
+            var segmentEnd = name.indexOf('/', segmentStart)
+            if (segmentEnd == -1 || segmentEnd > end) segmentEnd = end
+            node = node.findChild(name, segmentStart, segmentEnd) ?: break
+            if (node.mapped) {
+                matched = node
+                matchedEnd = segmentEnd
+            }
+            if (segmentEnd == end) break
+            segmentStart = segmentEnd + 1
+        }
+        if (matched == null) return null
+        val mapTo = matched.mapTo ?: return null
+        if (matchedEnd == end) return mapTo
+        return mapTo + name.substring(matchedEnd, end)
+    }
+
+    /**
+     * The node of trie. children is open addressing hash table keyed by segment
+     * so that we can find a child with a region of string without allocation.
+     */
+    private class Node {
+        var keys = arrayOfNulls<String>(4)
+        var children = arrayOfNulls<Node>(4)
+        var childCount = 0
+        var mapped = false
+        var mapTo: String? = null
+
+        fun findChild(name: String, start: Int, end: Int): Node? {
+            var hash = 0
+            for (i in start until end) hash = 31 * hash + name[i].code
+            val mask = keys.size - 1
+            var index = spread(hash) and mask
+            while (true) {
+                val key = keys[index] ?: return null
+                if (key.length == end - start && key.regionMatches(0, name, start, end - start))
+                    return children[index]
+                index = (index + 1) and mask
+            }
+        }
+
+        fun getOrPutChild(segment: String): Node {
+            findChild(segment, 0, segment.length)?.let { return it }
+            if ((childCount + 1) * 2 > keys.size) rehash(keys.size * 2)
+            return Node().also { put(segment, it) }
+        }
+
+        private fun put(segment: String, child: Node) {
+            val mask = keys.size - 1
+            var index = spread(segment.hashCode()) and mask
+            while (keys[index] != null) index = (index + 1) and mask
+            keys[index] = segment
+            children[index] = child
+            childCount++
+        }
+
+        private fun rehash(size: Int) {
+            val oldKeys = keys
+            val oldChildren = children
+            keys = arrayOfNulls(size)
+            children = arrayOfNulls(size)
+            childCount = 0
+            for (i in oldKeys.indices) {
+                put(oldKeys[i] ?: continue, oldChildren[i]!!)
+            }
+        }
+
+        private fun spread(hash: Int) = hash xor (hash ushr 16)
+    }
+}
+
+/**
+ * The bounded concurrent memo of results of a function from [String].
+ * This is a direct-mapped table: an entry is overwritten by another entry with same slot
+ * so this never grows over [capacity] and never locks.
+ */
+internal class StringMemo(capacity: Int, private val compute: (String) -> String?) {
+    private val mask: Int
+    private val table: AtomicReferenceArray<Entry?>
+    private val hits = LongAdder()
+    private val misses = LongAdder()
+
+    init {
+        require(capacity > 0) { "capacity must be positive" }
+        val size = Integer.highestOneBit(capacity - 1).coerceAtLeast(1) shl 1
+        mask = size - 1
+        table = AtomicReferenceArray(size)
+    }
+
+    val hitCount get() = hits.sum()
+    val missCount get() = misses.sum()
+
+    operator fun get(key: String): String? = get(key, 0, key.length)
+
+    /**
+     * Returns the result for the region from [start] to [end] of [source].
+     * This doesn't allocate anything if the result is memoized.
+     */
+    fun get(source: String, start: Int, end: Int): String? {
+        // same as String.hashCode of the region
+        var hash = 0
+        for (i in start until end) hash = 31 * hash + source[i].code
+        val index = (hash xor (hash ushr 16)) and mask
+        val entry = table.get(index)
+        if (entry != null && entry.key.length == end - start && entry.key.regionMatches(0, source, start, end - start)) {
+            hits.increment()
+            return entry.value
+        }
+        misses.increment()
+        val key = if (start == 0 && end == source.length) source else source.substring(start, end)
+        val value = compute(key)
+        table.lazySet(index, Entry(key, value))
+        return value
+    }
+
+    private class Entry(val key: String, val value: String?)
+}
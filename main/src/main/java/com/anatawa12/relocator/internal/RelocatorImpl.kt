@@ -1,7 +1,9 @@
 package com.anatawa12.relocator.internal
 
+import com.anatawa12.relocator.ReachabilityIndex
 import com.anatawa12.relocator.ReferenceCollector
 import com.anatawa12.relocator.ReferencesCollectContext
+import com.anatawa12.relocator.RelocationPhase
 import com.anatawa12.relocator.Relocator
 import com.anatawa12.relocator.classes.*
 import com.anatawa12.relocator.diagnostic.*
@@ -14,13 +16,21 @@ import com.anatawa12.relocator.plugin.*
 import com.anatawa12.relocator.reference.*
 import com.anatawa12.relocator.reference.withLocation
 import com.anatawa12.relocator.reflect.ReflectionMappingContainer
+import kotlinx.coroutines.Job
 import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.delay
 import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withContext
+import org.objectweb.asm.Opcodes.ACC_INTERFACE
 import org.objectweb.asm.Opcodes.ACC_NATIVE
 import org.objectweb.asm.Opcodes.ACC_VARARGS
 import java.util.*
 import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.jar.JarFile
+import kotlin.coroutines.ContinuationInterceptor
+import kotlin.coroutines.coroutineContext
 import com.anatawa12.relocator.plugin.AnnotationLocation as AnnLoc
 import com.anatawa12.relocator.plugin.TypeAnnotationLocation as TAnnLoc
 
@@ -29,39 +39,126 @@ internal class RelocatingEnvironment(val relocator: Relocator) {
     lateinit var embeds: EmbeddableClassPath
     lateinit var roots: EmbeddableClassPath
     lateinit var classpath: CombinedClassPath
+    lateinit var computeReferenceEnv: ComputeReferenceEnvironment
     val diagnosticHandler = InternalDiagnosticHandlerWrapper(relocator.diagnosticHandler, relocator.suppression)
     private val collectors = listOf<ReferenceCollector>(
         DefaultCollector,
     )
     lateinit var classes: MutableList<ClassFile>
     lateinit var fileObjects: MutableList<FileObject>
-    // the queue to remove members requested by ClassRelocator
-    val removeQueue = ConcurrentLinkedQueue<() -> Unit>()
+    // the members requested to be removed by ClassRelocator
+    val removalMarks = RemovalMarks()
 
     val mapping: RelocationMapping = RelocationMapping(relocator.relocateMapping)
-     lateinit var relocators: List<ClassRelocator>
+    lateinit var relocators: ClassRelocatorDispatch
     lateinit var fileRelocators: List<FileRelocator>
+    private lateinit var relocationScheduler: RelocationScheduler
+    val metrics = RelocationMetrics(relocator.listener)
+    private var classOutput: RelocatedClassOutput? = null
+    private lateinit var classTasks: ClassTaskCounter
+
+    suspend fun run() = withContext(metrics) {
+        val ticker = if (relocator.listener == null) null else launch { tickProgress() }
+        try {
+            runSteps()
+        } finally {
+            ticker?.cancel()
+            closeClassPaths()
+        }
+    }
+
+    private suspend fun tickProgress() {
+        val interval = relocator.progressInterval.toMillis()
+        while (true) {
+            delay(interval)
+            metrics.tick()
+        }
+    }
+
+    fun closeClassPaths() {
+        if (::refers.isInitialized) refers.close()
+        if (::embeds.isInitialized) embeds.close()
+        if (::roots.isInitialized) roots.close()
+    }
 
-    suspend fun run(): Unit = coroutineScope {
-        val timer = Timer(relocator.debugMode)
+    private suspend fun runSteps(): Unit = coroutineScope {
+        val timer = Timer(relocator.debugMode, metrics)
 
         val preContext = PreClassRelocatorPluginContextImpl()
         for (plugin in relocator.plugins.values) plugin.preApply(preContext)
         val pluginContext = ClassRelocatorPluginContextImpl()
         for (plugin in relocator.plugins.values) plugin.apply(pluginContext)
 
-        relocators = pluginContext.buildClassRelocators()
+        relocators = ClassRelocatorDispatch(pluginContext.buildClassRelocators())
         fileRelocators = pluginContext.fileRelocators
 
-        timer.end("loadPlugins")
+        timer.end(RelocationPhase.LOAD_PLUGINS)
+
+        loadClasses(timer)
+
+        // second step: collect references
+        // collect all references for methods/classes.
+        collectReferences()
+        timer.end(RelocationPhase.COLLECT_REFERENCES)
+
+        checkNoErrors()
+
+        // third step: relocation
+
+        TaskQueue {
+            listUpClasses()
+            listUpFiles()
+        }
+        metrics.classesReached.add(classes.size.toLong())
+        timer.end(RelocationPhase.LIST_UP)
+
+        relocationScheduler = RelocationScheduler(relocator.maxParallelism)
+        val jar = relocator.outputPath?.let { withIOContext { JarWriter(it, metrics) } }
+        jar.use {
+            if (jar != null) writeManifest(jar)
+            coroutineScope {
+                // the classes are written while relocation
+                classOutput = jar?.let {
+                    RelocatedClassOutput(classes, it, removalMarks, relocator.maxParallelism)
+                        .also { output -> launch { output.run() } }
+                }
+                classTasks = ClassTaskCounter(classes.size) { index ->
+                    metrics.classesRelocated.increment()
+                    classOutput?.classRelocated(index)
+                }
+                if (classOutput != null) {
+                    // the relocation tasks and classOutput hold the classes so each class can be released
+                    // as soon as it's written.
+                    embeds.releaseClasses()
+                    roots.releaseClasses()
+                }
+                TaskQueue {
+                    relocateClasses()
+                    if (classOutput != null) classes.clear()
+                    relocateFiles()
+                }
+            }
+            removalMarks.sweep()
+            timer.end(RelocationPhase.RELOCATE)
+            printRelocationStatistics()
+
+            // forth step: make a jar.
+            if (jar != null) writeJar(jar)
+            timer.end(RelocationPhase.WRITE)
+        }
+    }
 
+    /**
+     * Loads the class paths and computes references of the classes in them. (the first step)
+     */
+    private suspend fun loadClasses(timer: Timer): Unit = coroutineScope {
         refers = ReferencesClassPath(relocator.referPath, relocator.debugMode) {
             computeReferencesForLibrary()
         }
         embeds = EmbeddableClassPath(relocator.embedPath, relocator.debugMode)
         roots = EmbeddableClassPath(relocator.rootPath, relocator.debugMode)
 
-        timer.end("construct")
+        timer.end(RelocationPhase.CONSTRUCT)
         listOf(
             launch { refers.init() },
             launch { embeds.init() },
@@ -69,10 +166,11 @@ internal class RelocatingEnvironment(val relocator: Relocator) {
         ).forEach { it.join() }
 
         checkNoErrors()
-        timer.end("init")
+        metrics.classesLoaded.add((embeds.classes.size + roots.classes.size).toLong())
+        timer.end(RelocationPhase.INIT)
 
         classpath = CombinedClassPath(listOf(roots, embeds, refers))
-        val computeReferenceEnv = ComputeReferenceEnvironment(
+        computeReferenceEnv = ComputeReferenceEnvironment(
             relocator.keepRuntimeInvisibleAnnotation,
             relocator.reflectionMap,
             classpath,
@@ -80,38 +178,55 @@ internal class RelocatingEnvironment(val relocator: Relocator) {
         )
 
         // first step: computeReferences
-        (embeds.classes + roots.classes).map {
-            launch { it.computeReferences(computeReferenceEnv) }
-        }.forEach { it.join() }
-
-        checkNoErrors()
-        timer.end("computeReferences")
-
-        // second step: collect references
-        // collect all references for methods/classes.
-        collectReferences()
-        timer.end("collectReferences")
+        computeReferencesOf(embeds.classes + roots.classes)
+        timer.end(RelocationPhase.COMPUTE_REFERENCES)
+        if (relocator.debugMode) {
+            val detected = computeReferenceEnv.detectedMethods
+            val skipped = computeReferenceEnv.skippedMethods
+            println("ExtraReferenceDetector: skipped $skipped of ${detected + skipped} methods")
+        }
+    }
 
+    private suspend fun computeReferencesOf(classes: Collection<ClassFile>) {
+        coroutineScope {
+            classes.map { launch { it.computeReferences(computeReferenceEnv) } }.forEach { it.join() }
+        }
+        computeReferenceEnv.externalReferences.flush()
         checkNoErrors()
+    }
 
-        // third step: relocation
+    private fun printRelocationStatistics() {
+        if (!relocator.debugMode) return
+        println("relocateClasses&File: ${relocationScheduler.report()}")
+        classOutput?.let { println("RelocatedClassOutput: spilled ${it.spilledCount} classes") }
+        for (relocator in relocators.all)
+            if (relocator is DebugStatisticsReporter) println(relocator.debugStatistics())
+        val hits = mapping.memoHitCount
+        println("RelocationMapping: memo hit $hits of ${hits + mapping.memoMissCount} lookups")
+    }
 
-        TaskQueue {
-            listUpClasses()
-            listUpFiles()
+    private suspend fun writeJar(jar: JarWriter) {
+        val classOutput = classOutput!!
+        classOutput.finish(createClassHierarchy(classOutput.classInfos))
+        withIOContext {
+            for (fileObject in fileObjects) jar.writeFile(fileObject)
         }
-        timer.end("listUpClasses&Files")
+    }
 
-        TaskQueue {
-            relocateClasses()
-            relocateFiles()
+    /**
+     * Creates [ClassHierarchy] to compute frames on writing. Relocated classes are found in [relocated]
+     * by relocated names and other classes are found in [classpath]. This must be called after relocation.
+     */
+    suspend fun createClassHierarchy(relocated: Map<String, ClassHierarchy.ClassInfo>): ClassHierarchy {
+        // the hierarchy is used by ASM so classes not loaded yet are loaded blocking the thread.
+        // loading is dispatched to the I/O dispatcher so this doesn't wait for the compute threads.
+        val loadContext = coroutineContext.minusKey(Job).minusKey(ContinuationInterceptor)
+        return ClassHierarchy { name ->
+            relocated[name] ?: run {
+                val classFile = runBlocking(loadContext) { classpath.findClass(name) } ?: return@ClassHierarchy null
+                ClassHierarchy.ClassInfo(classFile.superName?.name, classFile.access.hasFlag(ACC_INTERFACE))
+            }
         }
-        runRemoveQueue()
-        timer.end("relocateClasses&File")
-
-        // forth step: make a jar.
-        // make a jar with relocation
-
     }
 
     private fun checkNoErrors() {
@@ -119,16 +234,141 @@ internal class RelocatingEnvironment(val relocator: Relocator) {
             throw ErrorFoundException()
     }
 
-    private suspend fun collectReferences() = TaskQueue {
+    // the context of the last collection. this is kept to collect references incrementally.
+    private lateinit var collectContext: ReferencesCollectContextImpl
+    // the classes in the embed path added to the roots by addRoots
+    private val addedRoots = mutableSetOf<String>()
+
+    private suspend fun collectReferences() {
+        val reachability = if (relocator.recordReachability) ReachabilityIndex() else null
+        relocator.reachabilityIndex = reachability
         val context = ReferencesCollectContextImpl(
             roots,
             classpath,
-            this,
             diagnosticHandler,
+            reachability,
         )
-        for (collector in collectors) {
-            start { collector.apply { context.collect() } }
+        collectContext = context
+        context.run {
+            for (collector in collectors) {
+                start { collector.apply { context.collect() } }
+            }
+            for (name in addedRoots) {
+                start { context.collectRootClass(embeds.findClass(name)!!) }
+            }
+        }
+    }
+
+    val reachabilityIndex: ReachabilityIndex? get() = collectContext.reachability
+
+    /**
+     * Loads classes and collects references from the roots. (the first and second step)
+     * The class paths are kept open to update reachability incrementally.
+     */
+    suspend fun collectReachability() = withContext(metrics) {
+        val timer = Timer(relocator.debugMode, metrics)
+        // plugins are used only to relocate
+        timer.end(RelocationPhase.LOAD_PLUGINS)
+        loadClasses(timer)
+        collectReferences()
+        timer.end(RelocationPhase.COLLECT_REFERENCES)
+        checkNoErrors()
+    }
+
+    /**
+     * Adds classes in the embed path to the roots after [collectReachability] and collects references from them.
+     * Classes and members already included are not traversed again
+     * so this costs only for the newly included part of the graph.
+     */
+    suspend fun addRoots(names: Collection<String>) = withContext(metrics) {
+        val classes = names.map { name ->
+            roots.findClass(name) ?: embeds.findClass(name)
+                ?: throw IllegalArgumentException("$name is not in the root or embed path")
         }
+        for (classFile in classes) {
+            if (embeds.findClass(classFile.name) === classFile) addedRoots.add(classFile.name)
+        }
+        collectContext.run {
+            for (classFile in classes) collectContext.collectRootClass(classFile)
+        }
+        checkNoErrors()
+    }
+
+    /**
+     * Replaces classes in the root or embed path with [classes], the map from names to the new class files,
+     * and updates reachability.
+     * If members and super types of the classes are not changed, only edges newly added to
+     * included classes and members are collected.
+     */
+    suspend fun updateClasses(classes: Map<String, ByteArray>) = withContext(metrics) {
+        val replaced = classes.map { (name, data) ->
+            val classPath = listOf(roots, embeds).firstOrNull { it.findClass(name) != null }
+                ?: throw IllegalArgumentException("$name is not in the root or embed path")
+            val classFile = Reader.read(SingleFile(data), classPath, relocator.debugMode)
+            require(classFile.name == name.replace('.', '/')) { "the class file for $name is ${classFile.name}" }
+            classPath.replaceClass(classFile) to classFile
+        }
+        if (replaced.any { (old, new) -> !hasSameShape(old, new) }) {
+            // the overriding members and so external references are changed.
+            for (classFile in embeds.classes + roots.classes + refers.classes) {
+                for (node in nodesOf(classFile)) node.externalReferences.clear()
+            }
+            computeReferencesOf(embeds.classes + roots.classes)
+            return@withContext recollectReferences()
+        }
+
+        val nodes = replaced.flatMap { (old, new) -> nodesOf(old).zip(nodesOf(new)) }
+        computeReferencesOf(replaced.map { it.second })
+        val reachability = collectContext.reachability
+        for ((old, new) in nodes) {
+            new.externalReferences.addAll(old.externalReferences)
+            new.included = old.included
+            if (old.included) reachability?.replace(old.node, new.node)
+        }
+        collectAddedReferences(nodes.map { (old, new) -> new to old.references })
+    }
+
+    /**
+     * Recomputes references of all classes after [Relocator.reflectionMap] is modified and updates reachability.
+     */
+    suspend fun reloadReflectionMap() = withContext(metrics) {
+        computeReferenceEnv.reloadReflectionTargets()
+        val classes = embeds.classes + roots.classes
+        val nodes = classes.flatMap(::nodesOf).map { it to it.references }
+        computeReferencesOf(classes)
+        collectAddedReferences(nodes)
+    }
+
+    /**
+     * Collects references newly added to included nodes.
+     * If some references of included nodes are removed, since reachability cannot be shrunk incrementally,
+     * references are collected from the roots again.
+     *
+     * @param nodes The nodes and the references of them before update.
+     */
+    private suspend fun collectAddedReferences(nodes: List<Pair<Node, Set<Reference>>>) {
+        val included = nodes.filter { (node, _) -> node.included }
+        if (included.any { (node, old) -> !node.references.containsAll(old) })
+            return recollectReferences()
+        collectContext.run {
+            for ((node, old) in included)
+                collectContext.collectReferencesOf(node.references.filter { it !in old }, node.location, node.node)
+        }
+        checkNoErrors()
+    }
+
+    /**
+     * Clears reachability of all classes and members and collects references from the roots again.
+     */
+    private suspend fun recollectReferences() {
+        for (classFile in embeds.classes + roots.classes + refers.classes) {
+            for (node in nodesOf(classFile)) {
+                node.included = false
+                node.reachabilityId = -1
+            }
+        }
+        collectReferences()
+        checkNoErrors()
     }
 
     private fun TaskQueue.listUpClasses() {
@@ -151,134 +391,308 @@ internal class RelocatingEnvironment(val relocator: Relocator) {
             }
         }
         fileObjects = p.mapTo(mutableListOf()) { (k, v) -> FileObject(k, v.toMutableList()) }
+        // load contents before relocation only if some relocator reads them
+        TaskQueue {
+            for (fileObject in fileObjects) {
+                if (fileRelocators.none { it.needsContent(fileObject.path) }) continue
+                start {
+                    withIOContext { fileObject.files.forEach { metrics.bytesRead.add(it.data.size.toLong()) } }
+                }
+            }
+        }
+    }
+
+    /**
+     * Relocates and writes the manifest before classes are written while relocation
+     * since [java.util.jar.JarInputStream] reads the manifest only if it's the first entry.
+     */
+    private suspend fun writeManifest(jar: JarWriter) {
+        val index = fileObjects.indexOfFirst { it.path == JarFile.MANIFEST_NAME }
+        if (index == -1) return
+        val manifest = fileObjects.removeAt(index)
+        if (relocateFile(manifest)) withIOContext { jar.writeFile(manifest) }
     }
 
     private fun TaskQueue.relocateFiles() {
         for (fileObject in fileObjects) {
-            start {
-                for (relocator in fileRelocators) {
-                    when (relocator.relocate(fileObject)) {
-                        RelocateResult.Continue -> continue
-                        RelocateResult.Finish -> return@start
-                        RelocateResult.Remove -> {
-                            removeQueue.add { fileObjects.remove(fileObject) }
-                            return@start
-                        }
-                    }
-                }
+            relocationTask {
+                if (!relocateFile(fileObject)) removalMarks.mark(fileObjects, fileObject)
+            }
+        }
+    }
+
+    /**
+     * @return false if [fileObject] is requested to be removed.
+     */
+    private fun relocateFile(fileObject: FileObject): Boolean {
+        for (relocator in fileRelocators) {
+            when (relocator.relocate(fileObject)) {
+                RelocateResult.Continue -> continue
+                RelocateResult.Finish -> return true
+                RelocateResult.Remove -> return false
             }
         }
+        return true
     }
 
+    /**
+     * Relocates classes in tasks of roughly [RELOCATION_CHUNK_COST].
+     * Small classes are batched into one task and large classes are split by methods
+     * since starting a task costs more than relocating a small member.
+     */
     private fun TaskQueue.relocateClasses() {
-        for (classFile in classes) {
-            start {
-                runRelocator(classes, classFile, ClassRelocator::relocate)
-                classFile.fields.forEach { relocateField(classFile.fields, it) }
-                classFile.methods.forEach { relocateMethod(classFile.methods, it) }
-                classFile.recordFields.forEach { relocateRecordField(classFile.recordFields, it) }
-                relocateAnnotations(classFile.visibleAnnotations, true, AnnLoc.Class(classFile),
-                    ClassRelocator::relocate)
-                relocateAnnotations(classFile.invisibleAnnotations, false, AnnLoc.Class(classFile),
-                    ClassRelocator::relocate)
-                relocateAnnotations(classFile.visibleTypeAnnotations, true, TAnnLoc.Class(classFile),
-                    ClassRelocator::relocate)
-                relocateAnnotations(classFile.invisibleTypeAnnotations, false, TAnnLoc.Class(classFile),
-                    ClassRelocator::relocate)
+        val costs = IntArray(classes.size) { relocationCostOf(classes[it]) }
+        for (batch in batchByCost(costs, RELOCATION_CHUNK_COST)) {
+            val first = batch[0]
+            if (batch.size == 1 && costs[first] > RELOCATION_CHUNK_COST) relocateLargeClass(first, classes[first])
+            else relocateClasses(batch, batch.map(classes::get))
+        }
+    }
+
+    private fun TaskQueue.relocateClasses(indices: IntArray, batch: List<ClassFile>) {
+        for (index in indices) classTasks.setTaskCount(index, 1)
+        relocationTask {
+            for (i in indices.indices) {
+                relocateClass(batch[i])
+                classTasks.taskFinished(indices[i])
             }
         }
     }
 
-    private fun TaskQueue.relocateField(list: MutableCollection<ClassField>, field: ClassField) = start {
-        runRelocator(list, field, ClassRelocator::relocate)
-        relocateAnnotations(field.visibleAnnotations, true, AnnLoc.Field(field), ClassRelocator::relocate)
-        relocateAnnotations(field.invisibleAnnotations, false, AnnLoc.Field(field), ClassRelocator::relocate)
-        relocateAnnotations(field.visibleTypeAnnotations, true, TAnnLoc.Field(field), ClassRelocator::relocate)
-        relocateAnnotations(field.invisibleTypeAnnotations, false, TAnnLoc.Field(field), ClassRelocator::relocate)
+    /**
+     * Relocates the class and fields in one task, and then methods in tasks of chunks.
+     * The class is relocated before members as [relocateClass] does
+     * since relocators for the class may modify the class, e.g. the name, which relocators for members read.
+     */
+    private fun TaskQueue.relocateLargeClass(index: Int, classFile: ClassFile) {
+        classTasks.setTaskCount(index, 1)
+        relocationTask {
+            val event = classRelocationEvent()
+            relocateClassOnly(classFile)
+            classFile.fields.forEach { relocateField(classFile.fields, it) }
+            classFile.recordFields.forEach { relocateRecordField(classFile.recordFields, it) }
+            event?.commit(classFile, 1 + classFile.fields.size + classFile.recordFields.size, emptyList())
+
+            // removing methods is deferred to RemovalMarks.sweep so the list is not modified while relocation
+            val methods = classFile.methods
+            val chunks = chunkByCost(methods, RELOCATION_CHUNK_COST, ::relocationCostOf)
+            classTasks.addTasks(index, chunks.size)
+            for (chunk in chunks) {
+                relocationTask {
+                    val chunkEvent = classRelocationEvent()
+                    chunk.forEach { relocateMethod(methods, it) }
+                    chunkEvent?.commit(classFile, chunk.size, chunk)
+                    classTasks.taskFinished(index)
+                }
+            }
+            classTasks.taskFinished(index)
+        }
     }
 
-    private fun TaskQueue.relocateMethod(list: MutableCollection<ClassMethod>, method: ClassMethod) = start {
-        runRelocator(list, method, ClassRelocator::relocate)
-        relocateAnnotations(method.visibleAnnotations, true, AnnLoc.Method(method), ClassRelocator::relocate)
-        relocateAnnotations(method.invisibleAnnotations, false, AnnLoc.Method(method), ClassRelocator::relocate)
-        relocateAnnotations(method.visibleTypeAnnotations, true, TAnnLoc.Method(method), ClassRelocator::relocate)
-        relocateAnnotations(method.invisibleTypeAnnotations, false, TAnnLoc.Method(method), ClassRelocator::relocate)
+    private fun relocationCostOf(classFile: ClassFile): Int =
+        1 + classFile.fields.size + classFile.recordFields.size + classFile.methods.sumOf(::relocationCostOf)
+
+    private fun relocationCostOf(method: ClassMethod): Int = 1 + (method.classCode?.instructions?.size ?: 0)
+
+    private fun TaskQueue.relocationTask(block: () -> Unit) {
+        metrics.pendingTasks.increment()
+        start {
+            try {
+                relocationScheduler.run(block)
+            } finally {
+                metrics.pendingTasks.decrement()
+            }
+        }
+    }
+
+    private fun relocateClass(classFile: ClassFile) {
+        val event = classRelocationEvent()
+        relocateClassOnly(classFile)
+        classFile.fields.forEach { relocateField(classFile.fields, it) }
+        classFile.methods.forEach { relocateMethod(classFile.methods, it) }
+        classFile.recordFields.forEach { relocateRecordField(classFile.recordFields, it) }
+        event?.commit(classFile, 1 + classFile.fields.size + classFile.methods.size + classFile.recordFields.size,
+            classFile.methods)
+    }
+
+    private fun ClassRelocationEvent.commit(classFile: ClassFile, members: Int, methods: List<ClassMethod>) {
+        className = classFile.name
+        this.members = members
+        instructions = methods.sumOf { it.classCode?.instructions?.size ?: 0 }
+        commit()
+    }
+
+    private fun relocateClassOnly(classFile: ClassFile) {
+        runRelocator(relocators.classes, classes, classFile, ClassRelocator::relocate)
+        relocateAnnotations(classFile.visibleAnnotations, true, AnnLoc.Class(classFile))
+        relocateAnnotations(classFile.invisibleAnnotations, false, AnnLoc.Class(classFile))
+        relocateAnnotations(classFile.visibleTypeAnnotations, true, TAnnLoc.Class(classFile))
+        relocateAnnotations(classFile.invisibleTypeAnnotations, false, TAnnLoc.Class(classFile))
+    }
+
+    private fun relocateField(list: MutableCollection<ClassField>, field: ClassField) {
+        runRelocator(relocators.fields, list, field, ClassRelocator::relocate)
+        relocateAnnotations(field.visibleAnnotations, true, AnnLoc.Field(field))
+        relocateAnnotations(field.invisibleAnnotations, false, AnnLoc.Field(field))
+        relocateAnnotations(field.visibleTypeAnnotations, true, TAnnLoc.Field(field))
+        relocateAnnotations(field.invisibleTypeAnnotations, false, TAnnLoc.Field(field))
+    }
+
+    private fun relocateMethod(list: MutableCollection<ClassMethod>, method: ClassMethod) {
+        val relocatorCount = runRelocator(relocators.methods, list, method, ClassRelocator::relocate)
+        relocateAnnotations(method.visibleAnnotations, true, AnnLoc.Method(method))
+        relocateAnnotations(method.invisibleAnnotations, false, AnnLoc.Method(method))
+        relocateAnnotations(method.visibleTypeAnnotations, true, TAnnLoc.Method(method))
+        relocateAnnotations(method.invisibleTypeAnnotations, false, TAnnLoc.Method(method))
         for ((i, visibleParameterAnnotationList) in method.visibleParameterAnnotations.withIndex())
             visibleParameterAnnotationList
-                ?.let { relocateAnnotations(it, true, AnnLoc.Parameter(method, i), ClassRelocator::relocate) }
+                ?.let { relocateAnnotations(it, true, AnnLoc.Parameter(method, i)) }
         for ((i, invisibleParameterAnnotationList) in method.invisibleParameterAnnotations.withIndex())
             invisibleParameterAnnotationList
-                ?.let { relocateAnnotations(it, false, AnnLoc.Parameter(method, i), ClassRelocator::relocate) }
-        method.classCode?.let { relocateClassCode(it) }
+                ?.let { relocateAnnotations(it, false, AnnLoc.Parameter(method, i)) }
+        method.classCode?.let { relocateClassCode(it, relocatorCount) }
     }
 
-    private fun TaskQueue.relocateClassCode(code: ClassCode) {
+    /**
+     * Traverses instructions once and dispatches each instruction to
+     * the relocators within the first [relocatorCount] in step order.
+     */
+    private fun relocateClassCode(code: ClassCode, relocatorCount: Int) {
+        val hasInsnRelocator = !relocators.insns.isEmpty
+        var removed: MutableSet<Insn>? = null
         for (insn in code.instructions) {
-            relocateAnnotations(insn.visibleAnnotations, false, TAnnLoc.Insn(insn, code), ClassRelocator::relocate)
-            relocateAnnotations(insn.invisibleAnnotations, true, TAnnLoc.Insn(insn, code), ClassRelocator::relocate)
+            if (hasInsnRelocator && !relocateInsn(insn, code, relocatorCount)) {
+                (removed ?: Collections.newSetFromMap<Insn>(IdentityHashMap()).also { removed = it }).add(insn)
+                continue
+            }
+            relocateAnnotations(insn.visibleAnnotations, false, TAnnLoc.Insn(insn, code))
+            relocateAnnotations(insn.invisibleAnnotations, true, TAnnLoc.Insn(insn, code))
         }
         for (tryCatchBlock in code.tryCatchBlocks) {
             relocateAnnotations(tryCatchBlock.visibleAnnotations, false,
-                TAnnLoc.TryCatchBlock(tryCatchBlock, code), ClassRelocator::relocate)
+                TAnnLoc.TryCatchBlock(tryCatchBlock, code))
             relocateAnnotations(tryCatchBlock.invisibleAnnotations, true,
-                TAnnLoc.TryCatchBlock(tryCatchBlock, code), ClassRelocator::relocate)
+                TAnnLoc.TryCatchBlock(tryCatchBlock, code))
+        }
+        relocateAnnotations(code.visibleLocalVariableAnnotations, false, code)
+        relocateAnnotations(code.invisibleLocalVariableAnnotations, true, code)
+        removed?.let { removeInsns(code, it) }
+    }
+
+    /**
+     * @return false if [insn] is requested to be removed.
+     */
+    private fun relocateInsn(insn: Insn, code: ClassCode, relocatorCount: Int): Boolean {
+        val targets = relocators.insns
+        for (i in targets.relocators.indices) {
+            if (targets.stepIndices[i] >= relocatorCount) return true
+            when (targets.relocators[i].relocate(insn, code)) {
+                RelocateResult.Continue -> continue
+                RelocateResult.Finish -> return true
+                RelocateResult.Remove -> return false
+            }
+        }
+        return true
+    }
+
+    /**
+     * Removes [removed] from [code] with one compaction. Labels and line numbers of removed instructions
+     * are moved to the next instruction, and frames are recomputed on writing since the list is modified.
+     */
+    private fun removeInsns(code: ClassCode, removed: Set<Insn>) {
+        val kept = ArrayList<Insn>(code.instructions.size - removed.size)
+        val labels = mutableListOf<CodeLabel>()
+        var lineNumber = -1
+        for (insn in code.instructions) {
+            if (insn in removed) {
+                labels += insn.labelsToMe
+                insn.labelsToMe.clear()
+                if (lineNumber == -1) lineNumber = insn.lineNumber
+                continue
+            }
+            insn.labelsToMe += labels
+            labels.clear()
+            if (insn.lineNumber == -1) insn.lineNumber = lineNumber
+            lineNumber = -1
+            kept += insn
         }
-        relocateAnnotations(code.visibleLocalVariableAnnotations, false, code, ClassRelocator::relocate)
-        relocateAnnotations(code.invisibleLocalVariableAnnotations, true, code, ClassRelocator::relocate)
+        check(labels.isEmpty()) { "the last instruction with labels cannot be removed" }
+        code.instructions.clear()
+        code.instructions.addAll(kept)
     }
 
-    private fun TaskQueue.relocateRecordField(
-        list: MutableCollection<ClassRecordField>,
-        field: ClassRecordField,
-    ) = start {
-        runRelocator(list, field, ClassRelocator::relocate)
-        relocateAnnotations(field.invisibleAnnotations, false, AnnLoc.RecordField(field), ClassRelocator::relocate)
-        relocateAnnotations(field.visibleAnnotations, true, AnnLoc.RecordField(field), ClassRelocator::relocate)
-        relocateAnnotations(field.invisibleTypeAnnotations, false, TAnnLoc.RecordField(field), ClassRelocator::relocate)
-        relocateAnnotations(field.visibleTypeAnnotations, true, TAnnLoc.RecordField(field), ClassRelocator::relocate)
+    private fun relocateRecordField(list: MutableCollection<ClassRecordField>, field: ClassRecordField) {
+        runRelocator(relocators.recordFields, list, field, ClassRelocator::relocate)
+        relocateAnnotations(field.invisibleAnnotations, false, AnnLoc.RecordField(field))
+        relocateAnnotations(field.visibleAnnotations, true, AnnLoc.RecordField(field))
+        relocateAnnotations(field.invisibleTypeAnnotations, false, TAnnLoc.RecordField(field))
+        relocateAnnotations(field.visibleTypeAnnotations, true, TAnnLoc.RecordField(field))
     }
 
-    private inline fun <A, L> TaskQueue.relocateAnnotations(
+    private fun relocateAnnotations(
+        annotations: MutableList<ClassAnnotation>,
+        visible: Boolean,
+        location: AnnLoc,
+    ) = relocateAnnotations(relocators.annotations, annotations, visible, location, ClassRelocator::relocate)
+
+    private fun relocateAnnotations(
+        annotations: MutableList<ClassTypeAnnotation>,
+        visible: Boolean,
+        location: TAnnLoc,
+    ) = relocateAnnotations(relocators.typeAnnotations, annotations, visible, location, ClassRelocator::relocate)
+
+    private fun relocateAnnotations(
+        annotations: MutableList<ClassLocalVariableAnnotation>,
+        visible: Boolean,
+        location: ClassCode,
+    ) = relocateAnnotations(relocators.localVariableAnnotations, annotations, visible, location,
+        ClassRelocator::relocate)
+
+    private inline fun <A : Any, L> relocateAnnotations(
+        targets: ClassRelocatorDispatch.Targets,
         annotations: MutableList<A>,
         visible: Boolean,
         location: L,
         crossinline relocate: ClassRelocator.(A, Boolean, L) -> RelocateResult
     ) {
-        for (annotation in annotations) start {
-            for (relocator in relocators) {
+        if (targets.isEmpty) return
+        for (annotation in annotations) {
+            for (relocator in targets.relocators) {
                 when (relocator.relocate(annotation, visible, location)) {
                     RelocateResult.Continue -> continue
-                    RelocateResult.Finish -> return@start
+                    RelocateResult.Finish -> break
                     RelocateResult.Remove -> {
-                        removeQueue.add { annotations.remove(annotation) }
-                        return@start
+                        removalMarks.mark(annotations, annotation)
+                        break
                     }
                 }
             }
         }
     }
 
-    private inline fun <T> runRelocator(
+    /**
+     * @return the number of relocators in step order which [value] is passed to or skipped since
+     * they don't relocate [value], or 0 if [value] is removed.
+     */
+    private inline fun <T : Any> runRelocator(
+        targets: ClassRelocatorDispatch.Targets,
         list: MutableCollection<T>,
         value: T,
         crossinline relocate: ClassRelocator.(T) -> RelocateResult,
-    ) {
-        for (relocator in relocators) {
-            when (relocator.relocate(value)) {
+    ): Int {
+        for (i in targets.relocators.indices) {
+            when (targets.relocators[i].relocate(value)) {
                 RelocateResult.Continue -> continue
-                RelocateResult.Finish -> return
+                RelocateResult.Finish -> return targets.stepIndices[i] + 1
                 RelocateResult.Remove -> {
-                    removeQueue.add { list.remove(value) }
-                    return
+                    removalMarks.mark(list, value)
+                    return 0
                 }
             }
         }
-        return
+        return relocators.size
     }
 
-    private fun runRemoveQueue() {
-        removeQueue.forEach(Function0<Unit>::invoke)
-    }
 
     private inner class PreClassRelocatorPluginContextImpl : PreClassRelocatorPluginContext {
         override val reflectionMap: ReflectionMappingContainer get() = relocator.reflectionMap
@@ -293,7 +707,7 @@ internal class RelocatingEnvironment(val relocator: Relocator) {
             SimpleClassRelocator(mapping)
         )
         private val finalizing = mutableListOf<ClassRelocator>(
-            StringClassRelocator(mapping)
+            StringClassRelocator(mapping, relocator.relocateEmbeddedClassNames)
         )
         val fileRelocators = mutableListOf<FileRelocator>(
             SimpleFileRelocator(mapping)
@@ -323,19 +737,55 @@ internal class RelocatingEnvironment(val relocator: Relocator) {
 private class ReferencesCollectContextImpl(
     override val roots: EmbeddableClassPath,
     override val classpath: CombinedClassPath,
-    private val queue: TaskQueue,
     private val addDiagnostic: DiagnosticHandler,
+    val reachability: ReachabilityIndex?,
 ) : ReferencesCollectContext() {
     private val references = Collections.newSetFromMap<Reference>(ConcurrentHashMap())
+    private lateinit var queue: TaskQueue
+
+    // while recording reachability, references from classes or members are collected after
+    // all references at the current depth so the first reference recorded for each node is on a shortest path.
+    @Volatile
+    private var nextDepth = if (reachability != null) ConcurrentLinkedQueue<Pair<Reference, Any>>() else null
+
+    /**
+     * Runs [block] and collects references until all references reachable from collected ones are collected.
+     */
+    suspend fun run(block: TaskQueue.() -> Unit) {
+        TaskQueue {
+            queue = this
+            block()
+        }
+        while (true) {
+            val current = nextDepth?.takeUnless { it.isEmpty() } ?: return
+            nextDepth = ConcurrentLinkedQueue()
+            TaskQueue {
+                queue = this
+                for ((reference, predecessor) in current) startCollecting(reference, predecessor)
+            }
+        }
+    }
 
     override fun runChildThread(run: ReferencesCollector) {
         queue.start { run.run { run() } }
     }
 
-    override fun collectReferencesOf(reference: Reference, location: Location?) {
+    override fun collectReferencesOf(reference: Reference, location: Location?) =
+        collectReferencesOf(reference, location, null)
+
+    /**
+     * @param predecessor The class or member [reference] is from. null for roots.
+     */
+    private fun collectReferencesOf(reference: Reference, location: Location?, predecessor: Any?) {
         if (!references.add(reference)) return
         if (reference.location == null)
             reference.withLocation(location ?: Location.None)
+        val nextDepth = nextDepth
+        if (predecessor != null && nextDepth != null) nextDepth.add(reference to predecessor)
+        else startCollecting(reference, predecessor)
+    }
+
+    private fun startCollecting(reference: Reference, predecessor: Any?) {
         queue.start {
             when (reference) {
                 is ClassReference -> {
@@ -345,26 +795,26 @@ private class ReferencesCollectContextImpl(
                     }
                     collectReferencesOf(classpath.findClass(rootClass)
                         ?: return@start addDiagnostic(UNRESOLVABLE_CLASS(rootClass.name,
-                            rootClass.location ?: Location.None)))
+                            rootClass.location ?: Location.None)), reference, predecessor)
                 }
                 is FieldReference -> {
                     val field = classpath.findField(reference)
                         ?: return@start addDiagnostic(UNRESOLVABLE_FIELD(reference.owner.name,
                             reference.name, reference.descriptor.descriptor, reference.location ?: Location.None))
-                    collectReferencesOf(field)
+                    collectReferencesOf(field, reference, predecessor)
                 }
                 is PartialFieldReference -> {
                     val fields = classpath.findFields(reference)
                     if (fields.isEmpty())
                         return@start addDiagnostic(UNRESOLVABLE_FIELD(reference.owner.name,
                             reference.name, null, reference.location ?: Location.None))
-                    fields.forEach { start { collectReferencesOf(it) } }
+                    fields.forEach { start { collectReferencesOf(it, reference, predecessor) } }
                 }
                 is RecordFieldReference -> {
                     val recordField = classpath.findRecordField(reference)
                         ?: return@start addDiagnostic(UNRESOLVABLE_FIELD(reference.owner.name,
                             reference.name, reference.descriptor.descriptor, reference.location ?: Location.None))
-                    collectReferencesOf(recordField)
+                    collectReferencesOf(recordField, reference, predecessor)
                 }
                 is MethodReference -> {
                     if (reference.owner.isArray() && isArrayMethod(reference))
@@ -373,7 +823,8 @@ private class ReferencesCollectContextImpl(
                         return@start
                     collectReferencesOf(classpath.findMethod(reference)
                         ?: return@start addDiagnostic(UNRESOLVABLE_METHOD(reference.owner.name,
-                            reference.name, reference.descriptor.descriptor, reference.location ?: Location.None)))
+                            reference.name, reference.descriptor.descriptor, reference.location ?: Location.None)),
+                        reference, predecessor)
                 }
                 is PartialMethodReference -> {
                     if (reference.owner.isArray() && isArrayMethod(reference))
@@ -383,7 +834,7 @@ private class ReferencesCollectContextImpl(
                     if (methods.isEmpty())
                         return@start addDiagnostic(UNRESOLVABLE_METHOD(reference.owner.name,
                             reference.name, reference.descriptor.descriptor, reference.location ?: Location.None))
-                    methods.forEach { start { collectReferencesOf(it) } }
+                    methods.forEach { start { collectReferencesOf(it, reference, predecessor) } }
                 }
                 is TypelessMethodReference -> {
                     if (reference.owner.isArray() && isArrayMethod(reference))
@@ -393,7 +844,7 @@ private class ReferencesCollectContextImpl(
                     if (methods.isEmpty())
                         return@start addDiagnostic(UNRESOLVABLE_METHOD(reference.owner.name,
                             reference.name, null, reference.location ?: Location.None))
-                    methods.forEach { start { collectReferencesOf(it) } }
+                    methods.forEach { start { collectReferencesOf(it, reference, predecessor) } }
                 }
             }
         }
@@ -430,35 +881,114 @@ private class ReferencesCollectContextImpl(
         return objectClass.findMethods(reference).isNotEmpty()
     }
 
-    private fun collectReferencesOf(classFile: ClassFile) {
+    private fun collectReferencesOf(classFile: ClassFile, reachedBy: Reference, predecessor: Any?) {
+        reachability?.record(classFile, reachedBy, predecessor)
         classFile.included = true
-        collectReferencesOf(classFile.allReferences, Location.Class(classFile.name))
+        collectReferencesOf(classFile.allReferences, Location.Class(classFile.name), classFile)
     }
 
-    private fun collectReferencesOf(field: ClassField) {
+    private fun collectReferencesOf(field: ClassField, reachedBy: Reference, predecessor: Any?) {
+        reachability?.record(field, reachedBy, predecessor)
         field.included = true
-        collectReferencesOf(field.allReferences, Location.Field(field))
+        collectReferencesOf(field.allReferences, Location.Field(field), field)
     }
 
-    private fun collectReferencesOf(method: ClassMethod) {
+    private fun collectReferencesOf(method: ClassMethod, reachedBy: Reference, predecessor: Any?) {
+        reachability?.record(method, reachedBy, predecessor)
         method.included = true
-        collectReferencesOf(method.allReferences, Location.Method(method))
+        collectReferencesOf(method.allReferences, Location.Method(method), method)
     }
 
-    private fun collectReferencesOf(record: ClassRecordField) {
+    private fun collectReferencesOf(record: ClassRecordField, reachedBy: Reference, predecessor: Any?) {
+        reachability?.record(record, reachedBy, predecessor)
         record.included = true
-        collectReferencesOf(record.allReferences, Location.RecordField(record))
+        collectReferencesOf(record.allReferences, Location.RecordField(record), record)
+    }
+
+    fun collectReferencesOf(refs: Iterable<Reference>, location: Location, predecessor: Any) {
+        for (ref in refs) {
+            collectReferencesOf(ref, location, predecessor)
+        }
     }
 }
 
 private object DefaultCollector : ReferenceCollector {
     override fun ReferencesCollectContext.collect() {
-        for (classFile in roots.classes) {
-            collectReferencesOf(ClassReference(classFile.name))
-            for (method in classFile.methods)
-                collectReferencesOf(MethodReference(method))
-            for (field in classFile.fields)
-                collectReferencesOf(FieldReference(field))
-        }
+        for (classFile in roots.classes) collectRootClass(classFile)
     }
 }
+
+private fun ReferencesCollectContext.collectRootClass(classFile: ClassFile) {
+    collectReferencesOf(ClassReference(classFile.name))
+    for (method in classFile.methods)
+        collectReferencesOf(MethodReference(method))
+    for (field in classFile.fields)
+        collectReferencesOf(FieldReference(field))
+}
+
+/**
+ * The class or member, which is a node of the reference graph.
+ */
+private sealed class Node {
+    abstract val node: Any
+    abstract val location: Location
+    abstract var included: Boolean
+    abstract var reachabilityId: Int
+    abstract val references: Set<Reference>
+    abstract val externalReferences: MutableSet<Reference>
+
+    class OfClass(override val node: ClassFile) : Node() {
+        override val location get() = Location.Class(node.name)
+        override var included by node::included
+        override var reachabilityId by node::reachabilityId
+        override val references by node::references
+        override val externalReferences by node::externalReferences
+    }
+
+    class OfMethod(override val node: ClassMethod) : Node() {
+        override val location get() = Location.Method(node)
+        override var included by node::included
+        override var reachabilityId by node::reachabilityId
+        override val references by node::references
+        override val externalReferences by node::externalReferences
+    }
+
+    class OfField(override val node: ClassField) : Node() {
+        override val location get() = Location.Field(node)
+        override var included by node::included
+        override var reachabilityId by node::reachabilityId
+        override val references by node::references
+        override val externalReferences by node::externalReferences
+    }
+
+    class OfRecordField(override val node: ClassRecordField) : Node() {
+        override val location get() = Location.RecordField(node)
+        override var included by node::included
+        override var reachabilityId by node::reachabilityId
+        override val references: Set<Reference> by node::references
+        override val externalReferences by node::externalReferences
+    }
+}
+
+private fun nodesOf(classFile: ClassFile): List<Node> = buildList {
+    add(Node.OfClass(classFile))
+    classFile.methods.mapTo(this, Node::OfMethod)
+    classFile.fields.mapTo(this, Node::OfField)
+    classFile.recordFields.mapTo(this, Node::OfRecordField)
+}
+
+/**
+ * Returns true if [old] and [new] have the same members in the same order and the same super types,
+ * so that the overriding members and the external references are not changed.
+ */
+private fun hasSameShape(old: ClassFile, new: ClassFile): Boolean {
+    fun shapeOf(classFile: ClassFile) = listOf(
+        classFile.access,
+        classFile.superName,
+        classFile.interfaces,
+        classFile.methods.map { Triple(it.access, it.name, it.descriptor) },
+        classFile.fields.map { Triple(it.access, it.name, it.descriptor) },
+        classFile.recordFields.map { it.name to it.descriptor },
+    )
+    return shapeOf(old) == shapeOf(new)
+}
@@ -0,0 +1,45 @@
+package com.anatawa12.relocator.internal
+
+import java.util.*
+
+/**
+ * The elements requested to be removed by relocators.
+ * Removing an element from a list is linear to the size of the list, so elements are only marked
+ * while relocation and [sweep] removes them with one linear compaction per list.
+ */
+internal class RemovalMarks {
+    // the element to the list which has the element. each element is in only one list.
+    private val marks = ConcurrentIdentityHashMap<Any, MutableCollection<*>>()
+
+    fun <E : Any> mark(list: MutableCollection<E>, element: E) {
+        marks[element] = list
+    }
+
+    val isEmpty: Boolean get() = marks.isEmpty()
+
+    /**
+     * Forgets the mark of [element] so the element is not kept until [sweep].
+     * @return true if [element] was marked.
+     */
+    fun unmark(element: Any): Boolean = marks.remove(element) != null
+
+    /**
+     * Removes the marked elements of [list] only. This is linear to the size of [list]
+     * and used to sweep lists of a class before other classes are relocated.
+     */
+    fun <E : Any> sweep(list: MutableCollection<E>) {
+        if (marks.isEmpty()) return
+        list.removeIf { marks.remove(it) != null }
+    }
+
+    fun sweep() {
+        val byList = IdentityHashMap<MutableCollection<*>, MutableSet<Any>>()
+        for ((element, list) in marks)
+            byList.getOrPut(list) { Collections.newSetFromMap(IdentityHashMap()) }.add(element)
+        for ((list, elements) in byList) {
+            @Suppress("UNCHECKED_CAST")
+            (list as MutableCollection<Any>).removeIf { it in elements }
+        }
+        marks.clear()
+    }
+}
@@ -36,7 +36,6 @@ class SimpleClassRelocator(
     }
 
     private fun relocateCode(code: ClassCode) {
-        code.instructions.onEach(::relocateInsn)
         code.tryCatchBlocks.map { catch ->
             catch.type?.let(mapping::mapClassRef)?.let { catch.type = it }
         }
@@ -46,7 +45,7 @@ class SimpleClassRelocator(
         }
     }
 
-    private fun relocateInsn(insn: Insn) {
+    override fun relocate(insn: Insn, code: ClassCode): RelocateResult {
         when (val frame = insn.frame) {
             is AppendFrame -> mapList(frame.locals, ::mapFrameElement)?.let(::AppendFrame)
             is Same1Frame -> mapFrameElement(frame.stack)?.let(::Same1Frame)
@@ -78,6 +77,7 @@ class SimpleClassRelocator(
             is LookupSwitchInsn -> Unit
             is MultiANewArrayInsn -> mapping.mapClassRef(insn.type)?.let { insn.type = it }
         }
+        return RelocateResult.Continue
     }
 
     private fun mapFrameElement(frameElement: FrameElement): FrameElement? = when (frameElement) {
@@ -10,4 +10,6 @@ class SimpleFileRelocator(
         mapping.mapFilePath(file.path)?.let { file.path = it }
         return RelocateResult.Continue
     }
+
+    override fun needsContent(path: String): Boolean = false
 }
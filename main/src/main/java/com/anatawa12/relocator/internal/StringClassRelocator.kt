@@ -4,20 +4,20 @@ import com.anatawa12.relocator.classes.*
 import com.anatawa12.relocator.plugin.*
 
 class StringClassRelocator(
-    val mapping: RelocationMapping
+    val mapping: RelocationMapping,
+    /**
+     * If true, class names in longer strings like messages or descriptors will also be relocated.
+     */
+    val embeddedClassNames: Boolean = false,
 ) : ClassRelocator() {
     override fun relocate(method: ClassMethod): RelocateResult {
         method.annotationDefault?.let { AnnotationWalkerImpl.walkAnnotationValue(this, it) }
-        method.classCode?.let(::relocateCode)
         return RelocateResult.Continue
     }
 
-    private fun relocateCode(code: ClassCode) {
-        code.instructions.onEach(::relocateInsn)
-    }
-
-    private fun relocateInsn(insn: Insn) {
+    override fun relocate(insn: Insn, code: ClassCode): RelocateResult {
         if (insn is LdcInsn) insn.value = ConstantMapperImpl.mapConstant(this, insn.value)
+        return RelocateResult.Continue
     }
 
     override fun relocate(annotation: ClassAnnotation, visible: Boolean, location: AnnotationLocation): RelocateResult {
@@ -25,14 +25,84 @@ class StringClassRelocator(
         return RelocateResult.Continue
     }
 
-    private fun mapString(string: String): String? {
-        val (pre, name, end) = tryAsDescriptor(string)
+    internal fun mapString(string: String): String? {
+        if (embeddedClassNames) return mapEmbeddedNames(string)
+        var start = 0
+        var end = string.length
+        // descriptor form: "[*L...;"
+        if (string.endsWith(';')) {
+            var i = 0
+            while (i < string.length && string[i] == '[') i++
+            if (i < string.length && string[i] == 'L') {
+                start = i + 1
+                end = string.length - 1
+            }
+        }
+        // most strings are not class names so reject them without allocation
+        if (!mapping.scanner.startsWithPrefix(string, start, end)) return null
+        val name = string.substring(start, end)
         val mapped = when (checkNameKind(name)) {
             NameKind.NonClass -> null
             NameKind.Slashed -> mapping.mapSlashedClass(name)
             NameKind.Dotted -> mapping.mapDottedClass(name)
         } ?: return null
-        return "$pre$mapped$end"
+        if (start == 0 && end == string.length) return mapped
+        return string.substring(0, start) + mapped + string.substring(end)
+    }
+
+    private fun mapEmbeddedNames(string: String): String? {
+        var builder: StringBuilder? = null
+        var copied = 0
+        mapping.scanner.findAll(string) { start, prefixEnd ->
+            if (!isNameStart(string, start)) return@findAll -1
+            if (prefixEnd != string.length && Character.isJavaIdentifierPart(string[prefixEnd])) return@findAll -1
+            val end = endOfName(string, start)
+            val name = string.substring(start, end)
+            val mapped = when (checkNameKind(name)) {
+                NameKind.NonClass -> null
+                NameKind.Slashed -> mapping.mapSlashedClass(name)
+                NameKind.Dotted -> mapping.mapDottedClass(name)
+            }
+            if (mapped != null && mapped != name) {
+                builder = (builder ?: StringBuilder(string.length + mapped.length))
+                    .append(string, copied, start).append(mapped)
+                copied = end
+            }
+            end
+        }
+        return builder?.append(string, copied, string.length)?.toString()
+    }
+
+    private fun isNameStart(string: String, start: Int): Boolean {
+        if (start == 0) return true
+        val prev = string[start - 1]
+        if (prev == '/' || prev == '.') return false
+        if (!Character.isJavaIdentifierPart(prev)) return true
+        // 'L' of descriptors like "(Lcom/example/Foo;)V"
+        if (prev != 'L') return false
+        if (start == 1) return true
+        return when (string[start - 2]) {
+            '(', ')', ';', '[', '<' -> true
+            else -> !Character.isJavaIdentifierPart(string[start - 2])
+        }
+    }
+
+    // the name continues while identifier parts are separated by one kind of separator
+    private fun endOfName(string: String, start: Int): Int {
+        var separator = '\u0000'
+        var i = start
+        while (i < string.length) {
+            val c = string[i]
+            if (c == '/' || c == '.') {
+                if (separator == '\u0000') separator = c
+                if (c != separator) break
+                if (i + 1 == string.length || !Character.isJavaIdentifierStart(string[i + 1])) break
+            } else if (!Character.isJavaIdentifierPart(c)) {
+                break
+            }
+            i++
+        }
+        return i
     }
 
     private enum class NameKind {
@@ -65,18 +135,6 @@ class StringClassRelocator(
         return if (stat == 2) NameKind.Dotted else NameKind.Slashed
     }
 
-    private fun tryAsDescriptor(string: String): Triple<String, String, String> {
-        if (string.endsWith(';')) {
-            var i = 0
-            while (i in string.indices && string[i] == '[') i++
-            if (i in string.indices && string[i] == 'L') {
-                i++
-                return Triple(string.substring(0, i), string.substring(i, string.length - 1), ";")
-            }
-        }
-        return Triple("", string, "")
-    }
-
     private object ConstantMapperImpl : ConstantMapper<StringClassRelocator>() {
         override fun mapConstantString(attachment: StringClassRelocator, value: ConstantString): ConstantString {
             return attachment.mapString(value.value)?.let(::ConstantString) ?: value
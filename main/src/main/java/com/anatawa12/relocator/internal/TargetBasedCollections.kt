@@ -1,6 +1,7 @@
 package com.anatawa12.relocator.internal
 
 import java.util.*
+import java.util.function.Predicate
 
 internal class OwnerBasedSet<E : Any, T : Any>(
     private val owner: T,
@@ -77,6 +78,11 @@ internal class OwnerBasedList<E : Any, T : Any>(
 
     override fun removeAt(index: Int): E = backed.removeAt(index).also { accessor.clear(it) }
 
+    // removing with iterator is quadratic so compact backed at once
+    override fun removeIf(filter: Predicate<in E>): Boolean = backed.removeIf { element ->
+        filter.test(element).also { if (it) accessor.postRemove(element) }
+    }
+
     override fun set(index: Int, element: E): E {
         accessor.preAdd(element, owner, false)
         return backed.set(index, element)
@@ -1,5 +1,6 @@
 package com.anatawa12.relocator.internal
 
+import com.anatawa12.relocator.RelocationPhase
 import com.anatawa12.relocator.classes.KeyValuePair
 import com.anatawa12.relocator.diagnostic.Diagnostic
 import com.anatawa12.relocator.diagnostic.DiagnosticHandler
@@ -90,12 +91,22 @@ fun <S: Any> mapList(types: List<S>, map: (S) -> S?): List<S>? {
     return null
 }
 
-class Timer(val enabled: Boolean) {
-    @JvmField var start = System.currentTimeMillis()
-    fun end(name: String) {
-        if (!enabled) return
-        val now = System.currentTimeMillis()
-        println("$name: ${(now-start).milliseconds}")
+/**
+ * Measures phases of relocation, which are run in order of [RelocationPhase].
+ * [end] finishes the current phase and starts the next one.
+ */
+class Timer internal constructor(val enabled: Boolean, private val metrics: RelocationMetrics) {
+    @JvmField var start = System.nanoTime()
+
+    init {
+        metrics.phaseStarted(RelocationPhase.values().first())
+    }
+
+    fun end(phase: RelocationPhase) {
+        val now = System.nanoTime()
+        if (enabled) println("${phase.displayName}: ${((now - start) / 1_000_000).milliseconds}")
+        metrics.phaseFinished(phase, now - start)
+        RelocationPhase.values().getOrNull(phase.ordinal + 1)?.let(metrics::phaseStarted)
         start = now
     }
 }
@@ -9,7 +9,15 @@ import org.objectweb.asm.Handle as ASMHandle
 import org.objectweb.asm.Label as ASMLabel
 import org.objectweb.asm.TypePath as ASMTypePath
 
-class Writer {
+/**
+ * The writer of [ClassFile] to ASM visitors. This is not thread safe but can be reused for many classes.
+ *
+ * @param hierarchy The hierarchy to recompute frames of the methods whose [ClassCode.framesInvalidated] is true.
+ * If null, frames are always written as is.
+ */
+class Writer internal constructor(private val hierarchy: ClassHierarchy?) {
+    constructor() : this(null)
+
     private val labelMap = LabelMap()
 
     fun writeClass(file: ClassFile, visitor: ClassVisitor) {
@@ -29,9 +37,13 @@ class Writer {
         file.nestMembers.forEach { visitor.visitNestMember(it.name) }
         file.permittedSubclasses.forEach { visitor.visitPermittedSubclass(it.name) }
         file.methods.forEach { method ->
-            visitor.visitMethod(method.access, method.name, method.descriptor.descriptor,
-                method.signature?.signature, method.exceptions.mapToArray { it.name })
-                ?.let { writeMethod(method, it) }
+            if (hierarchy != null && method.classCode?.framesInvalidated == true && file.version and 0xFFFF >= V1_6) {
+                writeMethodComputingFrames(file, method, visitor, hierarchy)
+            } else {
+                visitor.visitMethod(method.access, method.name, method.descriptor.descriptor,
+                    method.signature?.signature, method.exceptions.mapToArray { it.name })
+                    ?.let { writeMethod(method, it) }
+            }
         }
         file.fields.forEach { field ->
             visitor.visitField(field.access, field.name, field.descriptor.descriptor,
@@ -45,7 +57,37 @@ class Writer {
         visitor.visitEnd()
     }
 
+    /**
+     * Writes the method to a class with only the method with [ClassWriter.COMPUTE_FRAMES]
+     * and copies the method to [visitor] so that frames of other methods are kept as is.
+     */
+    private fun writeMethodComputingFrames(
+        file: ClassFile,
+        method: ClassMethod,
+        visitor: ClassVisitor,
+        hierarchy: ClassHierarchy,
+    ) {
+        val writer = ClassHierarchy.HierarchyClassWriter(ClassWriter.COMPUTE_FRAMES, hierarchy)
+        writer.visit(file.version, file.access, file.name, null,
+            file.superName?.name, file.interfaces.mapToArray { it.name })
+        writer.visitMethod(method.access, method.name, method.descriptor.descriptor,
+            method.signature?.signature, method.exceptions.mapToArray { it.name })
+            ?.let { writeMethod(method, it) }
+        writer.visitEnd()
+        ClassReader(writer.toByteArray()).accept(object : ClassVisitor(ASM9) {
+            override fun visitMethod(
+                access: Int,
+                name: String,
+                descriptor: String,
+                signature: String?,
+                exceptions: Array<out String>?,
+            ): MethodVisitor? = visitor.visitMethod(access, name, descriptor, signature, exceptions)
+        }, 0)
+    }
+
     private fun writeMethod(method: ClassMethod, visitor: MethodVisitor) {
+        // labels are local to the method so the map doesn't grow with the class or writer reuse
+        labelMap.clear()
         method.parameters.forEach { visitor.visitParameter(it.name, it.access) }
         method.annotationDefault?.let { value ->
             visitor.visitAnnotationDefault()?.let { writeAnnotationValue(null, value, it) }
@@ -95,8 +137,9 @@ class Writer {
                     visitor.visitLineNumber(insn.lineNumber, label)
                 }
                 when (insn) {
-                    is CastInsn -> visitor.visitInsn(Insns.casts[insn.from to insn.to]!!)
-                    is FieldInsn -> visitor.visitFieldInsn(Insns.fieldInsns.indexOf(insn.insn) + GETSTATIC,
+                    is CastInsn ->
+                        visitor.visitInsn(opcodeOf(Insns.castOpcodes, Insns.castIndex(insn.from, insn.to), insn))
+                    is FieldInsn -> visitor.visitFieldInsn(Insns.fieldOpcodes[insn.insn.ordinal],
                         insn.field.owner.name,
                         insn.field.name,
                         insn.field.descriptor.descriptor)
@@ -106,12 +149,7 @@ class Writer {
                         visitor.visitInvokeDynamicInsn(dynamic.name, dynamic.descriptor, dynamic.bootstrapMethod,
                             *Array(dynamic.bootstrapMethodArgumentCount) { dynamic.getBootstrapMethodArgument(it) })
                     }
-                    is JumpInsn -> when (insn.insn) {
-                        JumpInsnType.IFNULL -> visitor.visitJumpInsn(IFNULL, labelMap.map(insn.target))
-                        JumpInsnType.IFNONNULL -> visitor.visitJumpInsn(IFNONNULL, labelMap.map(insn.target))
-                        else -> visitor.visitJumpInsn(Insns.jumpInsns.indexOf(insn.insn) + IFEQ,
-                            labelMap.map(insn.target))
-                    }
+                    is JumpInsn -> visitor.visitJumpInsn(Insns.jumpOpcodes[insn.insn.ordinal], labelMap.map(insn.target))
                     is LdcInsn -> visitor.visitLdcInsn(insn.value.toASM())
                     is LookupSwitchInsn -> {
                         val entries = insn.labels.entries.toList()
@@ -119,14 +157,14 @@ class Writer {
                             entries.mapToIntArray { it.key },
                             entries.mapToArray { labelMap.map(it.value) })
                     }
-                    is MethodInsn -> visitor.visitMethodInsn(Insns.methodInsns.indexOf(insn.insn) + INVOKEVIRTUAL,
+                    is MethodInsn -> visitor.visitMethodInsn(Insns.methodOpcodes[insn.insn.ordinal],
                         insn.method.owner.name,
                         insn.method.name,
                         insn.method.descriptor.descriptor,
                         insn.isInterface)
                     is MultiANewArrayInsn -> visitor.visitMultiANewArrayInsn(insn.type.name, insn.dimensions)
                     is RetInsn -> visitor.visitVarInsn(RET, insn.variable)
-                    is SimpleInsn -> visitor.visitInsn(Insns.simpleInsns[insn.insn]!!)
+                    is SimpleInsn -> visitor.visitInsn(Insns.simpleOpcodes[insn.insn.ordinal])
                     is TableSwitchInsn -> visitor.visitTableSwitchInsn(insn.min, insn.min + insn.labels.size - 1,
                         labelMap.map(insn.default), *insn.labels.mapToArray { labelMap.map(it) })
                     is TypeInsn -> when(insn.insn) {
@@ -137,19 +175,21 @@ class Writer {
                     }
                     is TypedInsn -> {
                         when (insn.insn) {
-                            TypedInsnType.ALOAD -> visitor.visitInsn(Insns.typedInsnDiffs[insn.type]!! + IALOAD)
-                            TypedInsnType.ASTORE -> visitor.visitInsn(Insns.typedInsnDiffs[insn.type]!! + IASTORE)
-                            TypedInsnType.RETURN -> visitor.visitInsn(Insns.typedInsnDiffs[insn.type]!! + IRETURN)
+                            TypedInsnType.ALOAD -> visitor.visitInsn(typedInsnDiff(insn) + IALOAD)
+                            TypedInsnType.ASTORE -> visitor.visitInsn(typedInsnDiff(insn) + IASTORE)
+                            TypedInsnType.RETURN -> visitor.visitInsn(typedInsnDiff(insn) + IRETURN)
                             TypedInsnType.NEWARRAY ->
-                                visitor.visitIntInsn(NEWARRAY, Insns.newArrayTypeMapping.inverse()[insn.type]!!)
+                                visitor.visitIntInsn(NEWARRAY,
+                                    opcodeOf(Insns.newArrayTypeCodes, insn.type.ordinal, insn))
                             TypedInsnType.ADD, TypedInsnType.SUB, TypedInsnType.MUL, TypedInsnType.DIV,
                             TypedInsnType.REM, TypedInsnType.NEG, TypedInsnType.SHL, TypedInsnType.SHR,
                             TypedInsnType.USHR, TypedInsnType.AND, TypedInsnType.OR, TypedInsnType.XOR ->
-                                visitor.visitInsn(Insns.typedOperatorInsnMapping[insn.insn to insn.type]!!)
+                                visitor.visitInsn(opcodeOf(Insns.typedOperatorOpcodes,
+                                    Insns.typedOperatorIndex(insn.insn, insn.type), insn))
                         }
                     }
                     is VarInsn -> {
-                        val diff = Insns.typedInsnDiffs[insn.type]!!
+                        val diff = opcodeOf(Insns.typedInsnDiffTable, insn.type.ordinal, insn)
                         when (insn.insn) {
                             VarInsnType.LOAD -> visitor.visitVarInsn(ILOAD + diff, insn.variable)
                             VarInsnType.STORE -> visitor.visitVarInsn(ISTORE + diff, insn.variable)
@@ -216,9 +256,18 @@ class Writer {
 
     // utils
 
+    private fun typedInsnDiff(insn: TypedInsn) = opcodeOf(Insns.typedInsnDiffTable, insn.type.ordinal, insn)
+
+    private fun opcodeOf(table: IntArray, index: Int, insn: Insn): Int {
+        val opcode = table[index]
+        if (opcode == -1) error("invalid insn: $insn")
+        return opcode
+    }
+
     private class LabelMap() {
         private val map = mutableMapOf<CodeLabel, ASMLabel>()
         fun map(label: CodeLabel): ASMLabel = map.computeIfAbsent(label) { ASMLabel() }
+        fun clear() = map.clear()
     }
 
     private inline fun writeAnnotations(
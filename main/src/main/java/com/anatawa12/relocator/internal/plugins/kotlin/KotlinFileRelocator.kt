@@ -20,4 +20,6 @@ class KotlinFileRelocator(val parameters: Parameters) : FileRelocator() {
         // TODO: kotlin_builtins
         return RelocateResult.Continue
     }
+
+    override fun needsContent(path: String): Boolean = path.endsWith(".kotlin_module")
 }
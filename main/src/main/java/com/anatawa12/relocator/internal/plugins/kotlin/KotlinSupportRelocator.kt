@@ -1,6 +1,7 @@
 package com.anatawa12.relocator.internal.plugins.kotlin
 
 import com.anatawa12.relocator.classes.*
+import com.anatawa12.relocator.internal.DebugStatisticsReporter
 import com.anatawa12.relocator.internal.component1
 import com.anatawa12.relocator.internal.component2
 import com.anatawa12.relocator.plugin.AnnotationLocation
@@ -8,13 +9,16 @@ import com.anatawa12.relocator.plugin.ClassRelocator
 import com.anatawa12.relocator.plugin.RelocateResult
 import kotlinx.metadata.*
 import kotlinx.metadata.jvm.*
+import java.util.concurrent.atomic.LongAdder
 
 class KotlinSupportRelocator(
     val parameters: Parameters
-) : ClassRelocator() {
+) : ClassRelocator(), DebugStatisticsReporter {
     // TODO: KProperty
     private val keepMapped: Boolean
     private val doMapping: Boolean
+    private val skippedCount = LongAdder()
+    private val rewrittenCount = LongAdder()
 
     init {
         keepMapped = parameters.provideForReflection ||
@@ -48,7 +52,55 @@ class KotlinSupportRelocator(
             (if (visible) classFile.visibleAnnotations else classFile.invisibleAnnotations).remove(annotation)
         if (!doMapping) return
         val header = makeHeader(annotation)
-        val mappedMetadata = when (val metadata = KotlinClassMetadata.read(header)) {
+        // read checks the metadata version. the data is parsed lazily so this is cheap for skipped headers.
+        val metadata = KotlinClassMetadata.read(header)
+            ?: error("un-parsable metadata version: ${header.metadataVersion.contentToString()}")
+        val mappedHeader = if (mayHaveMappedNames(header)) {
+            rewrittenCount.increment()
+            mapHeader(metadata, header) ?: return
+        } else {
+            // same as non-lambda synthetic classes in mapHeader
+            if (metadata is KotlinClassMetadata.SyntheticClass && !metadata.isLambda) return
+            skippedCount.increment()
+            header
+        }
+        val values = makeAnnotationValues(mappedHeader)
+        if (parameters.provideForReflection) {
+            annotation.values.clear()
+            annotation.values.addAll(values)
+            annotation.annotationClass = parameters.mappedKotlinMetadata
+            parameters.excludePlugin.exclude(annotation)
+        }
+        when (parameters.libraryUseMode) {
+            LibraryUseMode.DoNotProvide -> {}
+            LibraryUseMode.Metadata -> {
+                classFile.invisibleAnnotations.add(ClassAnnotation(Parameters.kotlinMetadata, values)
+                    .apply(parameters.excludePlugin::exclude))
+            }
+        }
+    }
+
+    /**
+     * Returns false if no string in the header contains mapped prefixes
+     * so that reading and writing the metadata can be skipped.
+     */
+    private fun mayHaveMappedNames(header: KotlinClassHeader): Boolean {
+        when (header.kind) {
+            KotlinClassHeader.CLASS_KIND,
+            KotlinClassHeader.FILE_FACADE_KIND,
+            KotlinClassHeader.SYNTHETIC_CLASS_KIND,
+            KotlinClassHeader.MULTI_FILE_CLASS_FACADE_KIND,
+            KotlinClassHeader.MULTI_FILE_CLASS_PART_KIND -> {}
+            // let mapHeader report the error
+            else -> return true
+        }
+        val scanner = parameters.visitors.mapping.scanner
+        return header.data1.any(scanner::containsAny) || header.data2.any(scanner::containsAny) ||
+                scanner.containsAny(header.extraString) || scanner.containsAny(header.packageName)
+    }
+
+    private fun mapHeader(metadata: KotlinClassMetadata, header: KotlinClassHeader): KotlinClassHeader? {
+        val mappedMetadata = when (metadata) {
             is KotlinClassMetadata.Class -> {
                 val writer = KotlinClassMetadata.Class.Writer()
                 metadata.accept(parameters.visitors.KmClassVisitorImpl(writer))
@@ -61,7 +113,7 @@ class KotlinSupportRelocator(
             }
             is KotlinClassMetadata.SyntheticClass -> {
                 val writer = KotlinClassMetadata.SyntheticClass.Writer()
-                if (!metadata.isLambda) return
+                if (!metadata.isLambda) return null
                 metadata.accept(parameters.visitors.KmLambdaVisitorImpl(writer))
                 writer.write(header.metadataVersion, header.extraInt)
             }
@@ -78,22 +130,13 @@ class KotlinSupportRelocator(
                 writer.write(metadata.facadeClassName, header.metadataVersion, header.extraInt)
             }
             is KotlinClassMetadata.Unknown -> error("unsupported metadata: ${header.kind}")
-            null -> error("un-parsable metadata version: ${header.metadataVersion.contentToString()}")
-        }
-        val values = makeAnnotationValues(mappedMetadata.header)
-        if (parameters.provideForReflection) {
-            annotation.values.clear()
-            annotation.values.addAll(values)
-            annotation.annotationClass = parameters.mappedKotlinMetadata
-            parameters.excludePlugin.exclude(annotation)
-        }
-        when (parameters.libraryUseMode) {
-            LibraryUseMode.DoNotProvide -> {}
-            LibraryUseMode.Metadata -> {
-                classFile.invisibleAnnotations.add(ClassAnnotation(Parameters.kotlinMetadata, values)
-                    .apply(parameters.excludePlugin::exclude))
-            }
         }
+        return mappedMetadata.header
+    }
+
+    override fun debugStatistics(): String {
+        val skipped = skippedCount.sum()
+        return "KotlinSupportRelocator: skipped rewriting $skipped of ${skipped + rewrittenCount.sum()} metadata"
     }
 
     companion object {
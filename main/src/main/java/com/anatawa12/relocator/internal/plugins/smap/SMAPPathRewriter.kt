@@ -0,0 +1,64 @@
+package com.anatawa12.relocator.internal.plugins.smap
+
+/**
+ * The streaming rewriter of paths in FileSections of SMAP.
+ * This scans lines without building [SMAP] and copies the string only if some path is changed.
+ * The SMAP is not verified so invalid SMAP may not be reported.
+ */
+internal class SMAPPathRewriter(
+    private val string: String,
+    private val mapPath: (String) -> String?,
+) {
+    private var builder: StringBuilder? = null
+    // the index of string which is copied to builder
+    private var copied = 0
+
+    /**
+     * Returns the rewritten SMAP or null if no path is changed.
+     */
+    fun rewrite(): String? {
+        var inFileSection = false
+        var pathLineFollows = false
+        var lineStart = 0
+        while (lineStart < string.length) {
+            var lineEnd = lineStart
+            while (lineEnd < string.length && string[lineEnd] != '\n' && string[lineEnd] != '\r') lineEnd++
+            val start = skipWS(lineStart, lineEnd)
+            if (pathLineFollows) {
+                pathLineFollows = false
+                rewritePath(start, trimEnd(start, lineEnd))
+            } else if (start < lineEnd && string[start] == '*') {
+                inFileSection = start + 1 < lineEnd && string[start + 1] == 'F'
+            } else if (inFileSection && start < lineEnd && string[start] == '+') {
+                pathLineFollows = true
+            }
+            lineStart = lineEnd
+            if (lineStart < string.length && string[lineStart] == '\r') lineStart++
+            if (lineStart < string.length && string[lineStart] == '\n') lineStart++
+        }
+        val builder = builder ?: return null
+        builder.append(string, copied, string.length)
+        return builder.toString()
+    }
+
+    private fun rewritePath(start: Int, end: Int) {
+        val path = string.substring(start, end)
+        val mapped = mapPath(path) ?: return
+        if (mapped == path) return
+        val builder = builder ?: StringBuilder(string.length + mapped.length).also { builder = it }
+        builder.append(string, copied, start).append(mapped)
+        copied = end
+    }
+
+    private fun skipWS(start: Int, end: Int): Int {
+        var i = start
+        while (i < end && (string[i] == ' ' || string[i] == '\t')) i++
+        return i
+    }
+
+    private fun trimEnd(start: Int, end: Int): Int {
+        var i = end
+        while (i > start && string[i - 1].isWhitespace()) i--
+        return i
+    }
+}
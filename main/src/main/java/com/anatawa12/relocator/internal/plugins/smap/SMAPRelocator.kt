@@ -11,24 +11,10 @@ class SMAPRelocator(
     override fun relocate(classFile: ClassFile): RelocateResult {
         classFile.sourceDebug?.let { debug ->
             if (debug.startsWith("SMAP")) {
-                val smap = SMAPParser(debug).readSMAP()
-                relocateSMAP(smap)
-                classFile.sourceDebug = buildString { smap.appendTo(this) }
+                // most SMAPs have no relocated path so rewrite paths in place instead of parsing whole SMAP
+                SMAPPathRewriter(debug, mapping::mapFilePath).rewrite()?.let { classFile.sourceDebug = it }
             }
         }
         return RelocateResult.Continue
     }
-
-    private fun relocateSMAP(smap: SMAP) {
-        for (smapElement in smap.elements) when (smapElement) {
-            is EmbedSMAP -> smapElement.smaps.forEach(::relocateSMAP)
-            is SMAPStratum -> for (element in smapElement.elements) when (element) {
-                is SMAPFileSection -> for (file in element.files) {
-                    file.path?.let { mapping.mapFilePath(it) }?.let { file.path = it }
-                }
-                is SMAPLineSection -> {}
-            }
-            is SMAPVendorSection -> {}
-        }
-    }
 }
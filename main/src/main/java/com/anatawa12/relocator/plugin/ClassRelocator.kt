@@ -8,6 +8,16 @@ abstract class ClassRelocator {
     open fun relocate(method: ClassMethod) = Continue
     open fun relocate(field: ClassField) = Continue
     open fun relocate(recordField: ClassRecordField) = Continue
+
+    /**
+     * Relocates an instruction in [code].
+     * Instructions are traversed once after [relocate] for the method for all relocators,
+     * and this will be called for relocators which [relocate] for the method is called and
+     * returned [Continue] or [Finish]. If [Remove] is returned, the instruction is removed after the traversal
+     * and its labels and line number are moved to the next instruction.
+     */
+    open fun relocate(insn: Insn, code: ClassCode) = Continue
+
     open fun relocate(annotation: ClassAnnotation, visible: Boolean, location: AnnotationLocation) = Continue
 
     open fun relocate(
@@ -4,4 +4,12 @@ import com.anatawa12.relocator.file.FileObject
 
 abstract class FileRelocator {
     open fun relocate(file: FileObject): RelocateResult = RelocateResult.Continue
+
+    /**
+     * Returns false if this relocator doesn't read nor transform the content of the file at [path],
+     * for example, if this relocator only renames files.
+     * The content of a file is loaded before relocation only if some relocator needs it.
+     * Otherwise, it's streamed from the source when it's written.
+     */
+    open fun needsContent(path: String): Boolean = true
 }
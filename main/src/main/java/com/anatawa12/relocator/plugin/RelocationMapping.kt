@@ -2,8 +2,6 @@ package com.anatawa12.relocator.plugin
 
 import com.anatawa12.relocator.classes.*
 import com.anatawa12.relocator.internal.*
-import com.anatawa12.relocator.internal.newClassSignatureInternal
-import com.anatawa12.relocator.internal.newMethodSignatureInternal
 import com.anatawa12.relocator.internal.newTypeDescriptorInternal
 import com.anatawa12.relocator.internal.newTypeParameterInternal
 import com.anatawa12.relocator.reference.ClassReference
@@ -11,7 +9,16 @@ import com.anatawa12.relocator.reference.FieldReference
 import com.anatawa12.relocator.reference.MethodReference
 import java.util.*
 
-class RelocationMapping(private val relocationMap: Map<String, String?>) {
+class RelocationMapping(relocationMap: Map<String, String?>) {
+    private val trie = RelocationTrie(relocationMap)
+    // most names are looked up many times: as class refs, in descriptors, signatures, and so on.
+    private val memo = StringMemo(8192, trie::map)
+    // prefilter for string constants which may be class names
+    internal val scanner = ClassNameScanner(relocationMap.filterValues { it != null }.keys)
+
+    internal val memoHitCount get() = memo.hitCount
+    internal val memoMissCount get() = memo.missCount
+
     fun mapDottedClass(name: String): String? {
         return mapFilePath(name.replace('.', '/'))?.replace('/', '.')
     }
@@ -20,29 +27,37 @@ class RelocationMapping(private val relocationMap: Map<String, String?>) {
         return mapFilePath(name)
     }
 
-    fun mapFilePath(name: String): String? {
-        for ((from, mapTo) in relocationMap) {
-            if (name == from) return mapTo
-            if (name.startsWith(from) && name.getOrElse(from.length) { '\u0000' } == '/')
-                return mapTo + name.substring(from.length)
-        }
-        return null
-    }
+    fun mapFilePath(name: String): String? = memo[name]
 
     private val excludedInstances = Collections.newSetFromMap<RelocationMappingPrimitiveMarker>(ConcurrentIdentityHashMap())
+    // if true, signatures are mapped element by element to check excluded elements.
+    @Volatile
+    private var signatureElementExcluded = false
 
     /**
      * Exclude the instance from mapping the instance (identity based).
      * If this class doesn't support relocating the instance (primitively), 
      * this function will throw [IllegalArgumentException].
+     *
+     * Exclusion is also checked for elements of the instance, e.g. if `reference.descriptor` is excluded,
+     * [mapMethodRef] maps only the owner of the reference, and if a [TypeArgument] of a signature is excluded,
+     * the type argument is kept in the mapped signature.
+     * Elements of descriptors are created on each access so they cannot be excluded.
      */
     fun excludeMapping(instance: Any?) {
         require(instance is RelocationMappingPrimitiveMarker) { "the instance is not RelocationMapping-primitive value" }
         excludedInstances.add(instance)
+        if (instance is TypeSignature || instance is TypeParameter || instance is TypeArgument)
+            signatureElementExcluded = true
     }
 
     fun mapClassSignature(signature: ClassSignature): ClassSignature? {
         if (signature in excludedInstances) return null
+        if (signatureElementExcluded) return mapClassSignatureByElements(signature)
+        return DescriptorRemapper.mapClassSignature(signature.signature, memo)?.let(ClassSignature::parse)
+    }
+
+    private fun mapClassSignatureByElements(signature: ClassSignature): ClassSignature? {
         val mappedTypes = mapList(signature.typeParameters, ::mapTypeParameter)
         val mappedClass = mapTypeSignature(signature.superClass)
         val mappedInterfaces = mapList(signature.superInterfaces, ::mapTypeSignature)
@@ -70,6 +85,11 @@ class RelocationMapping(private val relocationMap: Map<String, String?>) {
 
     fun mapMethodSignature(signature: MethodSignature): MethodSignature? {
         if (signature in excludedInstances) return null
+        if (signatureElementExcluded) return mapMethodSignatureByElements(signature)
+        return DescriptorRemapper.mapMethodSignature(signature.signature, memo)?.let(MethodSignature::parse)
+    }
+
+    private fun mapMethodSignatureByElements(signature: MethodSignature): MethodSignature? {
         val mappedTypes = mapList(signature.typeParameters, ::mapTypeParameter)
         val mappedValues = mapList(signature.valueParameters, ::mapTypeSignature)
         val mappedReturns = mapTypeSignature(signature.returns)
@@ -87,10 +107,7 @@ class RelocationMapping(private val relocationMap: Map<String, String?>) {
 
     fun mapMethodDescriptor(descriptor: MethodDescriptor): MethodDescriptor? {
         if (descriptor in excludedInstances) return null
-        val mappedReturns = mapTypeDescriptor(descriptor.returns)
-        val mappedArguments = mapList(descriptor.arguments, ::mapTypeDescriptor)
-        if (mappedReturns == null && mappedArguments == null) return null
-        return MethodDescriptor(mappedReturns ?: descriptor.returns, mappedArguments ?: descriptor.arguments)
+        return DescriptorRemapper.mapMethodDescriptor(descriptor.descriptor, memo)?.let(::newMethodDescriptorInternal)
     }
 
     fun mapMethodRef(reference: MethodReference): MethodReference? {
@@ -116,19 +133,24 @@ class RelocationMapping(private val relocationMap: Map<String, String?>) {
     fun mapTypeSignature(signature: TypeSignature): TypeSignature? {
         if (signature in excludedInstances) return null
         return when (signature.kind) {
-            TypeSignature.Kind.Array -> mapTypeSignature(signature.arrayComponent)?.array(signature.arrayDimensions)
             TypeSignature.Kind.Primitive -> null
             TypeSignature.Kind.TypeArgument -> null
-            TypeSignature.Kind.Class -> {
-                TypeSignature.ClassBuilder(mapSlashedClass(signature.rootClassName) ?: signature.rootClassName).run {
-                    signature.getTypeArguments(0).forEach { addTypeArgument(mapTypeArgument(it) ?: it) }
-                    for (i in 1..signature.innerClassCount) {
-                        innerClassName(signature.getInnerClassName(i))
-                        signature.getTypeArguments(i).forEach { addTypeArgument(mapTypeArgument(it) ?: it) }
-                    }
-                    build()
-                }.takeUnless { it == signature }
-            }
+            else -> if (signatureElementExcluded) mapTypeSignatureByElements(signature)
+            else DescriptorRemapper.mapTypeSignature(signature.signature, memo)?.let(TypeSignature::parse)
+        }
+    }
+
+    private fun mapTypeSignatureByElements(signature: TypeSignature): TypeSignature? = when (signature.kind) {
+        TypeSignature.Kind.Array -> mapTypeSignature(signature.arrayComponent)?.array(signature.arrayDimensions)
+        else -> {
+            TypeSignature.ClassBuilder(mapSlashedClass(signature.rootClassName) ?: signature.rootClassName).run {
+                signature.getTypeArguments(0).forEach { addTypeArgument(mapTypeArgument(it) ?: it) }
+                for (i in 1..signature.innerClassCount) {
+                    innerClassName(signature.getInnerClassName(i))
+                    signature.getTypeArguments(i).forEach { addTypeArgument(mapTypeArgument(it) ?: it) }
+                }
+                build()
+            }.takeUnless { it == signature }
         }
     }
 
@@ -140,9 +162,8 @@ class RelocationMapping(private val relocationMap: Map<String, String?>) {
     fun mapTypeDescriptor(descriptor: TypeDescriptor): TypeDescriptor? {
         if (descriptor in excludedInstances) return null
         return when (descriptor.kind) {
-            TypeDescriptor.Kind.Array -> mapTypeDescriptor(descriptor.arrayComponent)?.array(descriptor.arrayDimensions)
             TypeDescriptor.Kind.Primitive -> null
-            TypeDescriptor.Kind.Class -> mapSlashedClass(descriptor.internalName)?.let { newTypeDescriptorInternal("L$it;") }
+            else -> DescriptorRemapper.mapTypeDescriptor(descriptor.descriptor, memo)?.let(::newTypeDescriptorInternal)
         }
     }
 
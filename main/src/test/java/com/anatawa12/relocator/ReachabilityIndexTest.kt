@@ -0,0 +1,50 @@
+package com.anatawa12.relocator
+
+import com.anatawa12.relocator.classes.ClassFile
+import com.anatawa12.relocator.diagnostic.Location
+import com.anatawa12.relocator.reference.ClassReference
+import com.anatawa12.relocator.reference.withLocation
+import io.kotest.core.spec.style.DescribeSpec
+import io.kotest.matchers.nulls.shouldBeNull
+import io.kotest.matchers.shouldBe
+import org.objectweb.asm.Opcodes.ACC_PUBLIC
+import org.objectweb.asm.Opcodes.V1_8
+
+internal class ReachabilityIndexTest : DescribeSpec() {
+    init {
+        fun node(name: String) = ClassFile.Builder(V1_8, ACC_PUBLIC, name).build()
+        val root = node("test/Root")
+        val middle = node("test/Middle")
+        val longMiddle = node("test/LongMiddle")
+        val target = node("test/Target")
+        val toRoot = ClassReference("test/Root")
+        val toMiddle = ClassReference("test/Middle").withLocation(Location.Class("test/Root"))
+        val toLongMiddle = ClassReference("test/LongMiddle").withLocation(Location.Class("test/Middle"))
+        val toTargetLong = ClassReference("test/Target").withLocation(Location.Class("test/LongMiddle"))
+        val toTargetShort = ClassReference("test/Target").withLocation(Location.Class("test/Middle"))
+
+        it("keeps first recorded path") {
+            val index = ReachabilityIndex()
+            index.record(root, toRoot, null)
+            index.record(middle, toMiddle, root)
+            index.record(longMiddle, toLongMiddle, middle)
+            index.record(target, toTargetLong, longMiddle)
+            index.record(target, toTargetShort, middle)
+
+            val path = index.getPathInternal(target)!!
+            path.steps.map { it.node } shouldBe listOf(root, middle, longMiddle, target)
+            path.steps.map { it.reachedBy } shouldBe listOf(toRoot, toMiddle, toLongMiddle, toTargetLong)
+            path.toString() shouldBe """
+                test/Root (root)
+                -> test/Middle at class test/Root
+                  -> test/LongMiddle at class test/Middle
+                    -> test/Target at class test/LongMiddle
+                
+            """.trimIndent()
+        }
+
+        it("returns null for not recorded node") {
+            ReachabilityIndex().getPathInternal(node("test/Other")).shouldBeNull()
+        }
+    }
+}
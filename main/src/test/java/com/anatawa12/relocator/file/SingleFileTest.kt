@@ -0,0 +1,50 @@
+package com.anatawa12.relocator.file
+
+import io.kotest.core.spec.style.DescribeSpec
+import io.kotest.matchers.shouldBe
+import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
+import java.nio.channels.Channels
+import java.util.concurrent.Callable
+
+class SingleFileTest : DescribeSpec() {
+    init {
+        describe("SingleFile") {
+            it("loads content lazily") {
+                var opened = 0
+                val file = SingleFile(Callable { opened++; "hello".byteInputStream() })
+                file.isLoaded shouldBe false
+                opened shouldBe 0
+                file.data.decodeToString() shouldBe "hello"
+                file.isLoaded shouldBe true
+                file.data.decodeToString() shouldBe "hello"
+                opened shouldBe 1
+            }
+            it("streams through transforms") {
+                var opened = 0
+                val file = SingleFile(Callable { opened++; "hello".byteInputStream() })
+                file.transform { input, output ->
+                    val bytes = Channels.newInputStream(input).readBytes()
+                    output.write(ByteBuffer.wrap(bytes.decodeToString().uppercase().toByteArray()))
+                }
+                file.transform { input, output ->
+                    val bytes = Channels.newInputStream(input).readBytes()
+                    output.write(ByteBuffer.wrap(bytes + "!".toByteArray()))
+                }
+                opened shouldBe 0
+                val buffer = ByteArrayOutputStream()
+                file.writeTo(Channels.newChannel(buffer))
+                buffer.toString() shouldBe "HELLO!"
+                file.isLoaded shouldBe false
+                file.data.decodeToString() shouldBe "HELLO!"
+                file.isLoaded shouldBe true
+            }
+            it("replaces transforms by setting data") {
+                val file = SingleFile("a".toByteArray())
+                file.transform { _, output -> output.write(ByteBuffer.wrap("b".toByteArray())) }
+                file.data = "c".toByteArray()
+                Channels.newInputStream(file.openChannel()).readBytes().decodeToString() shouldBe "c"
+            }
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.anatawa12.relocator.internal
+
+import io.kotest.assertions.throwables.shouldThrow
+import io.kotest.core.spec.style.DescribeSpec
+import io.kotest.matchers.shouldBe
+import io.kotest.matchers.string.shouldContain
+
+internal class ClassHierarchyTest : DescribeSpec() {
+    init {
+        describe("ClassHierarchy") {
+            val infos = mapOf(
+                "java/lang/Object" to ClassHierarchy.ClassInfo(null, false),
+                "shadow/Base" to ClassHierarchy.ClassInfo("java/lang/Object", false),
+                "shadow/A" to ClassHierarchy.ClassInfo("shadow/Base", false),
+                "shadow/B" to ClassHierarchy.ClassInfo("shadow/Base", false),
+                "shadow/C" to ClassHierarchy.ClassInfo("shadow/A", false),
+                "shadow/I" to ClassHierarchy.ClassInfo("java/lang/Object", true),
+                "shadow/Unknown" to ClassHierarchy.ClassInfo("shadow/NotFound", false),
+            )
+            var lookups = 0
+            val hierarchy = ClassHierarchy { lookups++; infos[it] }
+
+            it("finds common super class") {
+                hierarchy.getCommonSuperClass("shadow/A", "shadow/B") shouldBe "shadow/Base"
+                hierarchy.getCommonSuperClass("shadow/C", "shadow/B") shouldBe "shadow/Base"
+                hierarchy.getCommonSuperClass("shadow/C", "shadow/A") shouldBe "shadow/A"
+                hierarchy.getCommonSuperClass("shadow/A", "shadow/C") shouldBe "shadow/A"
+            }
+            it("merges interfaces to Object") {
+                hierarchy.getCommonSuperClass("shadow/A", "shadow/I") shouldBe "java/lang/Object"
+            }
+            it("fails for unknown classes") {
+                shouldThrow<IllegalStateException> {
+                    hierarchy.getCommonSuperClass("shadow/A", "shadow/Unknown")
+                }.message shouldContain "shadow/NotFound"
+                shouldThrow<IllegalStateException> {
+                    hierarchy.getCommonSuperClass("shadow/A", "shadow/NotFound")
+                }.message shouldContain "shadow/NotFound"
+            }
+            it("caches results") {
+                hierarchy.getCommonSuperClass("shadow/B", "shadow/C")
+                val count = lookups
+                hierarchy.getCommonSuperClass("shadow/C", "shadow/B") shouldBe "shadow/Base"
+                lookups shouldBe count
+            }
+        }
+    }
+}
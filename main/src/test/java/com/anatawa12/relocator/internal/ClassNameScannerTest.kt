@@ -0,0 +1,75 @@
+package com.anatawa12.relocator.internal
+
+import com.anatawa12.relocator.plugin.RelocationMapping
+import io.kotest.core.spec.style.DescribeSpec
+import io.kotest.matchers.nulls.shouldBeNull
+import io.kotest.matchers.shouldBe
+
+internal class ClassNameScannerTest : DescribeSpec() {
+    init {
+        describe("ClassNameScanner") {
+            val scanner = ClassNameScanner(listOf("com/example", "org/lib"))
+
+            it("finds prefix at start") {
+                scanner.startsWithPrefix("com/example/Main", 0, 16) shouldBe true
+                scanner.startsWithPrefix("com.example.Main", 0, 16) shouldBe true
+                scanner.startsWithPrefix("com/example", 0, 11) shouldBe true
+                scanner.startsWithPrefix("Lcom/example/Main;", 1, 17) shouldBe true
+            }
+            it("rejects non-prefix") {
+                scanner.startsWithPrefix("com/examples/Main", 0, 17) shouldBe false
+                scanner.startsWithPrefix("hello, world", 0, 12) shouldBe false
+                scanner.startsWithPrefix("com/exam", 0, 8) shouldBe false
+                scanner.startsWithPrefix("xcom/example", 0, 12) shouldBe false
+            }
+            it("finds prefix anywhere") {
+                scanner.containsAny("(Lcom/example/Main;)V") shouldBe true
+                scanner.containsAny("xorg.lib") shouldBe true
+                scanner.containsAny("kotlin/Unit") shouldBe false
+                ClassNameScanner(listOf()).containsAny("com/example") shouldBe false
+            }
+            it("finds all occurrences") {
+                val found = mutableListOf<Pair<Int, Int>>()
+                scanner.findAll("see com.example and org/lib") { start, end ->
+                    found += start to end
+                    -1
+                }
+                found shouldBe listOf(4 to 15, 20 to 27)
+            }
+        }
+
+        describe("StringClassRelocator") {
+            val mapping = RelocationMapping(mapOf(
+                "com/example" to "shadow/example",
+                "com/example/excluded" to null,
+            ))
+            val relocator = StringClassRelocator(mapping)
+            val embedded = StringClassRelocator(mapping, embeddedClassNames = true)
+
+            it("maps class names and descriptors") {
+                relocator.mapString("com/example/Main") shouldBe "shadow/example/Main"
+                relocator.mapString("com.example.Main") shouldBe "shadow.example.Main"
+                relocator.mapString("[[Lcom/example/Main;") shouldBe "[[Lshadow/example/Main;"
+            }
+            it("does not map other strings") {
+                relocator.mapString("hello").shouldBeNull()
+                relocator.mapString("com/example.Main").shouldBeNull()
+                relocator.mapString("com/example/excluded/Main").shouldBeNull()
+                relocator.mapString("(Lcom/example/Main;)V").shouldBeNull()
+            }
+            it("maps embedded class names if enabled") {
+                embedded.mapString("(Lcom/example/Main;I)Lcom/example/Other;") shouldBe
+                    "(Lshadow/example/Main;I)Lshadow/example/Other;"
+                embedded.mapString("failed to load com.example.Main.") shouldBe
+                    "failed to load shadow.example.Main."
+                embedded.mapString("com/example/Main") shouldBe "shadow/example/Main"
+            }
+            it("does not map embedded partial names") {
+                embedded.mapString("xcom.example.Main").shouldBeNull()
+                embedded.mapString("org.com.example.Main").shouldBeNull()
+                embedded.mapString("com.examples.Main").shouldBeNull()
+                embedded.mapString("see com/example/excluded/Main").shouldBeNull()
+            }
+        }
+    }
+}
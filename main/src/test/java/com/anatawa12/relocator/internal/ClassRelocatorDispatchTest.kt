@@ -0,0 +1,45 @@
+package com.anatawa12.relocator.internal
+
+import com.anatawa12.relocator.classes.ClassAnnotation
+import com.anatawa12.relocator.classes.ClassFile
+import com.anatawa12.relocator.plugin.AnnotationLocation
+import com.anatawa12.relocator.plugin.ClassRelocator
+import com.anatawa12.relocator.plugin.RelocateResult
+import com.anatawa12.relocator.plugin.RelocationMapping
+import io.kotest.core.spec.style.DescribeSpec
+import io.kotest.matchers.shouldBe
+
+internal class ClassRelocatorDispatchTest : DescribeSpec() {
+    init {
+        describe("ClassRelocatorDispatch") {
+            val classOnly = object : ClassRelocator() {
+                override fun relocate(classFile: ClassFile) = RelocateResult.Continue
+            }
+            val annotationOnly = object : ClassRelocator() {
+                override fun relocate(annotation: ClassAnnotation, visible: Boolean, location: AnnotationLocation) =
+                    RelocateResult.Continue
+            }
+            val dispatch = ClassRelocatorDispatch(listOf(classOnly, annotationOnly))
+
+            it("selects overriding relocators") {
+                dispatch.size shouldBe 2
+                dispatch.classes.relocators.toList() shouldBe listOf(classOnly)
+                dispatch.classes.stepIndices.toList() shouldBe listOf(0)
+                dispatch.methods.isEmpty shouldBe true
+                dispatch.insns.isEmpty shouldBe true
+                dispatch.annotations.relocators.toList() shouldBe listOf(annotationOnly)
+                dispatch.annotations.stepIndices.toList() shouldBe listOf(1)
+            }
+            it("passes type annotations to relocators of annotations") {
+                dispatch.typeAnnotations.relocators.toList() shouldBe listOf(annotationOnly)
+                dispatch.localVariableAnnotations.relocators.toList() shouldBe listOf(annotationOnly)
+            }
+            it("selects built-in relocators") {
+                val mapping = RelocationMapping(mapOf())
+                val builtin = ClassRelocatorDispatch(listOf(SimpleClassRelocator(mapping), StringClassRelocator(mapping)))
+                builtin.insns.stepIndices.toList() shouldBe listOf(0, 1)
+                builtin.fields.stepIndices.toList() shouldBe listOf(0)
+            }
+        }
+    }
+}
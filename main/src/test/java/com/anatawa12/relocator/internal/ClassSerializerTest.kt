@@ -0,0 +1,84 @@
+package com.anatawa12.relocator.internal
+
+import com.anatawa12.relocator.file.FileObject
+import com.anatawa12.relocator.file.SingleFile
+import io.kotest.core.spec.style.DescribeSpec
+import io.kotest.matchers.shouldBe
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+import org.objectweb.asm.ClassReader
+import java.io.File
+import java.util.jar.JarFile
+
+internal class ClassSerializerTest : DescribeSpec() {
+    init {
+        describe("ClassSerializer") {
+            val classes = List(50) { readClass(sampleClass("sample/Sample$it", methods = 2)) }
+
+            it("outputs classes in order") {
+                val names = mutableListOf<String>()
+                withContext(Dispatchers.Default) {
+                    ClassSerializer(null, 4).serializeAll(classes) { classFile, bytes ->
+                        ClassReader(bytes).className shouldBe classFile.name
+                        names += classFile.name
+                    }
+                }
+                names shouldBe classes.map { it.name }
+            }
+
+            it("reuses the writer for classes with labels") {
+                val serializer = ClassSerializer(null, 1)
+                for (classFile in classes)
+                    readClass(serializer.serialize(classFile)).methods.size shouldBe 2
+            }
+        }
+
+        describe("OrderedHandoff") {
+            it("spills arrays beyond the limit and outputs them in order") {
+                val arrays = List(20) { i -> ByteArray(100) { i.toByte() } }
+                val outputs = mutableListOf<ByteArray>()
+                val handoff = OrderedHandoff(arrays.size, 500) { i, bytes ->
+                    bytes.size shouldBe 100
+                    outputs += bytes
+                }
+                coroutineScope {
+                    launch { handoff.run() }
+                    // the head is completed last so all others wait for it
+                    for (i in 1 until arrays.size) handoff.complete(i, arrays[i])
+                    while (handoff.spilledCount != 14) delay(1)
+                    outputs.size shouldBe 0
+                    handoff.complete(0, arrays[0])
+                }
+                outputs.map { it.toList() } shouldBe arrays.map { it.toList() }
+                // only arrays beyond the limit are spilled
+                handoff.spilledCount shouldBe 14
+            }
+        }
+
+        describe("JarWriter") {
+            it("writes classes and files with multi release versions") {
+                val file = File.createTempFile("relocator", ".jar")
+                try {
+                    JarWriter(file).use { jar ->
+                        jar.writeClass(readClass(sampleClass("sample/A")), sampleClass("sample/A"))
+                        jar.writeFile(FileObject("data.txt", mutableListOf(
+                            SingleFile("base".toByteArray()),
+                            SingleFile("nine".toByteArray(), 9),
+                            SingleFile("duplicated".toByteArray()),
+                        )))
+                    }
+                    JarFile(file).use { jar ->
+                        jar.entries().toList().map { it.name } shouldBe
+                                listOf("sample/A.class", "data.txt", "META-INF/versions/9/data.txt")
+                        jar.getInputStream(jar.getEntry("data.txt")).readBytes().decodeToString() shouldBe "base"
+                    }
+                } finally {
+                    file.delete()
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.anatawa12.relocator.internal
+
+import io.kotest.core.spec.style.DescribeSpec
+import io.kotest.matchers.nulls.shouldBeNull
+import io.kotest.matchers.shouldBe
+
+internal class DescriptorRemapperTest : DescribeSpec() {
+    init {
+        val memo = StringMemo(16, RelocationTrie(mapOf("com/example" to "shadow/example", "com/same" to "com/same"))::map)
+
+        describe("descriptor") {
+            it("type descriptor") {
+                DescriptorRemapper.mapTypeDescriptor("[[Lcom/example/A;", memo) shouldBe "[[Lshadow/example/A;"
+                DescriptorRemapper.mapTypeDescriptor("Lcom/other/A;", memo).shouldBeNull()
+                DescriptorRemapper.mapTypeDescriptor("Lcom/same/A;", memo).shouldBeNull()
+                DescriptorRemapper.mapTypeDescriptor("I", memo).shouldBeNull()
+            }
+            it("method descriptor") {
+                DescriptorRemapper.mapMethodDescriptor("(ILcom/example/A;[Lcom/other/B;J)Lcom/example/C;", memo) shouldBe
+                        "(ILshadow/example/A;[Lcom/other/B;J)Lshadow/example/C;"
+                DescriptorRemapper.mapMethodDescriptor("(ILjava/lang/String;)V", memo).shouldBeNull()
+            }
+        }
+
+        describe("signature") {
+            it("type signature with type arguments and inner class") {
+                DescriptorRemapper.mapTypeSignature(
+                    "Lcom/example/Outer<TT;*+Lcom/example/A;>.Inner<-[Lcom/example/B;>;", memo) shouldBe
+                        "Lshadow/example/Outer<TT;*+Lshadow/example/A;>.Inner<-[Lshadow/example/B;>;"
+                DescriptorRemapper.mapTypeSignature("Lcom/other/example/Outer<TT;>.example;", memo).shouldBeNull()
+            }
+            it("class signature") {
+                DescriptorRemapper.mapClassSignature(
+                    "<L:Lcom/example/A;T::Lcom/example/B;>Ljava/lang/Object;Lcom/example/I<TL;>;", memo) shouldBe
+                        "<L:Lshadow/example/A;T::Lshadow/example/B;>Ljava/lang/Object;Lshadow/example/I<TL;>;"
+            }
+            it("method signature") {
+                DescriptorRemapper.mapMethodSignature(
+                    "<T:Ljava/lang/Object;>(TT;Lcom/example/A;)Lcom/example/B;^Lcom/example/E;^TT;", memo) shouldBe
+                        "<T:Ljava/lang/Object;>(TT;Lshadow/example/A;)Lshadow/example/B;^Lshadow/example/E;^TT;"
+                DescriptorRemapper.mapMethodSignature("<T:Ljava/lang/Object;>(TT;)V", memo).shouldBeNull()
+            }
+        }
+    }
+}
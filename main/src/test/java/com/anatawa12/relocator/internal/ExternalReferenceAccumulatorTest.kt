@@ -0,0 +1,40 @@
+package com.anatawa12.relocator.internal
+
+import com.anatawa12.relocator.reference.ClassReference
+import com.anatawa12.relocator.reference.Reference
+import io.kotest.core.spec.style.DescribeSpec
+import io.kotest.matchers.collections.shouldBeEmpty
+import io.kotest.matchers.shouldBe
+import kotlin.concurrent.thread
+
+internal class ExternalReferenceAccumulatorTest : DescribeSpec() {
+    init {
+        it("merges references from multiple threads at flush") {
+            val accumulator = ExternalReferenceAccumulator()
+            val targets = List(4) { mutableSetOf<Reference>() }
+            (0 until 8).map { worker ->
+                thread {
+                    for (i in 0 until 1000)
+                        accumulator.add(targets[i % targets.size], ClassReference("test/C${worker}_$i"))
+                }
+            }.forEach { it.join() }
+
+            targets.forEach { it.shouldBeEmpty() }
+            accumulator.flush()
+            targets.sumOf { it.size } shouldBe 8 * 1000
+            targets[1] shouldBe (0 until 8).flatMapTo(mutableSetOf()) { worker ->
+                (1 until 1000 step 4).map { ClassReference("test/C${worker}_$it") }
+            }
+        }
+
+        it("does not add twice after flush") {
+            val accumulator = ExternalReferenceAccumulator()
+            val target = mutableSetOf<Reference>()
+            accumulator.add(target, ClassReference("test/A"))
+            accumulator.flush()
+            target.clear()
+            accumulator.flush()
+            target.shouldBeEmpty()
+        }
+    }
+}
@@ -28,7 +28,50 @@ internal class ExtraReferenceDetectorTest : DescribeSpec() {
         return detector.pop()
     }
 
+    private fun checkOnStackValues(list: List<Insn>, count: Int): List<Any> {
+        val references = mutableSetOf<Reference>()
+        val detector = ExtraReferenceDetector(true, voidMethod, 5,
+            emptyMap(), env, location, list, references, emptySet())
+        detector.collectExtraReferences()
+        return List(count) { detector.pop() }.asReversed()
+    }
+
     init {
+        describe("stack manipulation") {
+            it("swap") {
+                checkOnStackValues(listOf(
+                    LdcInsn(ConstantString("a")),
+                    LdcInsn(ConstantInt(1)),
+                    SimpleInsn(SimpleInsnType.SWAP),
+                ), 2) shouldBe listOf(1, "a")
+            }
+            it("dup_x2 with two word value") {
+                checkOnStackValues(listOf(
+                    LdcInsn(ConstantLong(2)),
+                    LdcInsn(ConstantString("a")),
+                    SimpleInsn(SimpleInsnType.DUP_X2),
+                ), 3) shouldBe listOf("a", 2L, "a")
+            }
+            it("dup2_x1 with one word values") {
+                checkOnStackValues(listOf(
+                    LdcInsn(ConstantString("a")),
+                    LdcInsn(ConstantFloat(1f)),
+                    LdcInsn(ConstantInt(2)),
+                    SimpleInsn(SimpleInsnType.DUP2_X1),
+                ), 5) shouldBe listOf(1f, 2, "a", 1f, 2)
+            }
+            it("store and load local") {
+                checkOnStackValues(listOf(
+                    LdcInsn(ConstantString("a")),
+                    VarInsn(VarInsnType.STORE, VMType.Reference, 1),
+                    LdcInsn(ConstantDouble(1.0)),
+                    VarInsn(VarInsnType.STORE, VMType.Double, 2),
+                    VarInsn(VarInsnType.LOAD, VMType.Reference, 1),
+                    VarInsn(VarInsnType.LOAD, VMType.Double, 2),
+                ), 2) shouldBe listOf("a", 1.0)
+            }
+        }
+
         describe("method reference") {
             it("static string.format") {
                 detectExtraReference(stringFormat) shouldContain PartialMethodReference(
@@ -0,0 +1,35 @@
+package com.anatawa12.relocator.internal
+
+import io.kotest.core.spec.style.DescribeSpec
+import io.kotest.matchers.shouldBe
+import java.io.File
+import java.util.*
+
+internal class JarWriterTest : DescribeSpec() {
+    init {
+        describe("JarWriter") {
+            it("writes the same jar in any time zone") {
+                val default = TimeZone.getDefault()
+                val jars = try {
+                    listOf("America/Los_Angeles", "Asia/Tokyo").map { zone ->
+                        TimeZone.setDefault(TimeZone.getTimeZone(zone))
+                        writeJar()
+                    }
+                } finally {
+                    TimeZone.setDefault(default)
+                }
+                jars[0].contentEquals(jars[1]) shouldBe true
+            }
+        }
+    }
+
+    private fun writeJar(): ByteArray {
+        val file = File.createTempFile("relocator", ".jar")
+        try {
+            JarWriter(file).use { it.writeClass("sample/C", 0, byteArrayOf(1, 2, 3)) }
+            return file.readBytes()
+        } finally {
+            file.delete()
+        }
+    }
+}
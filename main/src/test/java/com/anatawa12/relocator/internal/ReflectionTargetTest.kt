@@ -0,0 +1,29 @@
+package com.anatawa12.relocator.internal
+
+import com.anatawa12.relocator.reference.FieldReference
+import com.anatawa12.relocator.reference.MethodReference
+import com.anatawa12.relocator.reflect.ClassRef
+import io.kotest.core.spec.style.DescribeSpec
+import io.kotest.matchers.shouldBe
+
+internal class ReflectionTargetTest : DescribeSpec() {
+    init {
+        it("default reflection mappings") {
+            val env = newComputeReferenceEnvironment()
+            env.isReflectionTarget(MethodReference("java/lang/Class", "forName",
+                "(Ljava/lang/String;)Ljava/lang/Class;")) shouldBe true
+            env.isReflectionTarget(FieldReference("java/lang/Integer", "TYPE", "Ljava/lang/Class;")) shouldBe true
+            env.isReflectionTarget(MethodReference("java/lang/Class", "getName",
+                "()Ljava/lang/String;")) shouldBe false
+        }
+
+        it("reload added mapping") {
+            val env = newComputeReferenceEnvironment()
+            val method = MethodReference("test/Loader", "load", "()V")
+            env.reflectionMap.addRefClass(method, ClassRef.named("test/Loaded"))
+            env.isReflectionTarget(method) shouldBe false
+            env.reloadReflectionTargets()
+            env.isReflectionTarget(method) shouldBe true
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.anatawa12.relocator.internal
+
+import io.kotest.core.spec.style.DescribeSpec
+import io.kotest.matchers.shouldBe
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.launch
+import java.io.File
+import java.util.jar.JarFile
+
+internal class RelocatedClassOutputTest : DescribeSpec() {
+    init {
+        describe("RelocatedClassOutput") {
+            it("writes classes in order as soon as their tasks are finished") {
+                val classes = List(4) { readClass(sampleClass("sample/C$it")) }
+                val removalMarks = RemovalMarks()
+                val file = File.createTempFile("relocator", ".jar")
+                try {
+                    JarWriter(file).use { jar ->
+                        val output = RelocatedClassOutput(classes, jar, removalMarks, 1)
+                        coroutineScope {
+                            launch { output.run() }
+                            val tasks = ClassTaskCounter(classes.size, output::classRelocated)
+                            tasks.setTaskCount(0, 2)
+                            tasks.setTaskCount(1, 1)
+                            tasks.setTaskCount(2, 1)
+                            tasks.setTaskCount(3, 1)
+
+                            removalMarks.mark(classes[1].methods, classes[1].methods[0])
+                            tasks.taskFinished(1)
+                            // members are removed as soon as the class is relocated
+                            classes[1].methods.size shouldBe 0
+
+                            removalMarks.mark(classes.toMutableList(), classes[2])
+                            tasks.taskFinished(2)
+                            output.holds(2) shouldBe false
+
+                            classes[3].methods.single().classCode!!.framesInvalidated = true
+                            tasks.taskFinished(3)
+
+                            tasks.taskFinished(0)
+                            output.holds(0) shouldBe true
+                            tasks.taskFinished(0)
+                            // the class is released as soon as it's serialized
+                            output.holds(0) shouldBe false
+                            output.holds(1) shouldBe false
+                            output.holds(3) shouldBe true
+                        }
+
+                        output.finish(ClassHierarchy { null })
+                    }
+                    JarFile(file).use { jar ->
+                        jar.entries().toList().map { it.name } shouldBe
+                                listOf("sample/C0.class", "sample/C1.class", "sample/C3.class")
+                    }
+                } finally {
+                    file.delete()
+                }
+            }
+        }
+    }
+}
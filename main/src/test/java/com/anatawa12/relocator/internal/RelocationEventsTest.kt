@@ -0,0 +1,49 @@
+package com.anatawa12.relocator.internal
+
+import io.kotest.core.spec.style.DescribeSpec
+import io.kotest.matchers.shouldBe
+import jdk.jfr.Recording
+import jdk.jfr.consumer.RecordingFile
+import java.io.File
+
+internal class RelocationEventsTest : DescribeSpec() {
+    init {
+        describe("relocation events") {
+            it("are recorded when enabled") {
+                val file = File.createTempFile("relocator", ".jfr")
+                var bytes: ByteArray
+                try {
+                    Recording().use { recording ->
+                        recording.enable("com.anatawa12.relocator.ClassSerialization").withoutThreshold()
+                        recording.enable("com.anatawa12.relocator.HierarchyResolution").withoutThreshold()
+                        recording.start()
+                        bytes = ClassSerializer(null, 1).serialize(readClass(sampleClass("sample/A", methods = 0)))
+                        ClassHierarchy { name ->
+                            if (name == "java/lang/Object") ClassHierarchy.ClassInfo(null, false)
+                            else ClassHierarchy.ClassInfo("java/lang/Object", false)
+                        }.getCommonSuperClass("sample/A", "sample/B")
+                        recording.stop()
+                        recording.dump(file.toPath())
+                    }
+                    val events = RecordingFile.readAllEvents(file.toPath())
+                        .filter { it.eventType.name.startsWith("com.anatawa12.relocator.") }
+                    events.map { it.eventType.name }.toSet() shouldBe setOf(
+                        "com.anatawa12.relocator.ClassSerialization",
+                        "com.anatawa12.relocator.HierarchyResolution",
+                    )
+                    val serialization = events.single { it.eventType.name.endsWith("ClassSerialization") }
+                    serialization.getString("className") shouldBe "sample/A"
+                    serialization.getLong("size") shouldBe bytes.size.toLong()
+                    val resolution = events.single { it.eventType.name.endsWith("HierarchyResolution") }
+                    resolution.getString("result") shouldBe "java/lang/Object"
+                } finally {
+                    file.delete()
+                }
+            }
+
+            it("are not created when not enabled") {
+                classSerializationEvent() shouldBe null
+            }
+        }
+    }
+}
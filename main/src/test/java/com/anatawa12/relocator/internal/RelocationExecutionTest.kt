@@ -0,0 +1,483 @@
+package com.anatawa12.relocator.internal
+
+import com.anatawa12.relocator.ReachabilitySession
+import com.anatawa12.relocator.RelocationListener
+import com.anatawa12.relocator.RelocationPhase
+import com.anatawa12.relocator.RelocationProgress
+import com.anatawa12.relocator.Relocator
+import com.anatawa12.relocator.classes.*
+import com.anatawa12.relocator.plugin.*
+import io.kotest.core.spec.style.DescribeSpec
+import io.kotest.matchers.ints.shouldBeLessThanOrEqual
+import io.kotest.matchers.shouldBe
+import io.kotest.matchers.types.shouldBeInstanceOf
+import io.kotest.matchers.types.shouldBeSameInstanceAs
+import io.kotest.matchers.types.shouldNotBeSameInstanceAs
+import kotlinx.coroutines.withContext
+import org.objectweb.asm.ClassWriter
+import org.objectweb.asm.Label
+import org.objectweb.asm.Opcodes.*
+import org.objectweb.asm.Type
+import java.io.File
+import java.net.URLClassLoader
+import java.nio.channels.CompletionHandler
+import java.nio.file.Files
+import java.time.Duration
+import java.util.concurrent.CancellationException
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.jar.JarFile
+import java.util.jar.JarInputStream
+
+internal class RelocationExecutionTest : DescribeSpec() {
+    init {
+        describe("LimitedExecutor") {
+            it("runs at most parallelism tasks at once") {
+                val pool = Executors.newFixedThreadPool(8)
+                try {
+                    val executor = LimitedExecutor(pool, 2)
+                    val running = AtomicInteger()
+                    val maxRunning = AtomicInteger()
+                    val done = CountDownLatch(100)
+                    repeat(100) {
+                        executor.execute {
+                            val current = running.incrementAndGet()
+                            maxRunning.accumulateAndGet(current, ::maxOf)
+                            Thread.sleep(1)
+                            running.decrementAndGet()
+                            done.countDown()
+                        }
+                    }
+                    done.await(10, TimeUnit.SECONDS) shouldBe true
+                    maxRunning.get() shouldBeLessThanOrEqual 2
+                } finally {
+                    pool.shutdown()
+                }
+            }
+        }
+
+        describe("RelocationExecution") {
+            it("runs I/O on the configured executor") {
+                val pool = Executors.newSingleThreadExecutor { Thread(it, "relocator-io") }
+                try {
+                    val relocator = Relocator()
+                    relocator.ioExecutor = pool
+                    RelocationExecution(relocator).use { execution ->
+                        withContext(execution.context) {
+                            withIOContext { Thread.currentThread().name } shouldBe "relocator-io"
+                        }
+                    }
+                } finally {
+                    pool.shutdown()
+                }
+            }
+        }
+
+        describe("Relocator.run") {
+            it("is cancelled at the deadline") {
+                val relocator = Relocator()
+                relocator.timeout = Duration.ofMillis(1)
+                relocator.addPlugin(BlockingPlugin { Thread.sleep(100) })
+                runAndWait(relocator).shouldBeInstanceOf<CancellationException>()
+            }
+
+            it("is cancelled with the returned future") {
+                val latch = CountDownLatch(1)
+                val relocator = Relocator()
+                relocator.addPlugin(BlockingPlugin { latch.await() })
+                val result = CompletableFuture<Throwable?>()
+                val future = relocator.run(result, Callback)
+                future.cancel(true) shouldBe true
+                // the plugin is still running
+                future.isDone shouldBe false
+                latch.countDown()
+                result.get(10, TimeUnit.SECONDS).shouldBeInstanceOf<CancellationException>()
+                future.isCancelled shouldBe true
+            }
+
+            it("runs relocators for the class before members of large classes") {
+                val dir = Files.createTempDirectory("relocator-test").toFile()
+                try {
+                    val root = dir.resolve("root")
+                    // large enough to be split into some tasks
+                    writeClass(root, "test/Large", methods = 8, instructions = RELOCATION_CHUNK_COST / 2)
+                    repeat(10) { writeClass(root, "test/Small$it", methods = 2, instructions = 10) }
+                    val refer = dir.resolve("refer")
+                    writeClass(refer, "java/lang/Object", methods = 0, instructions = 0)
+
+                    val relocatedClasses = ConcurrentHashMap.newKeySet<String>()
+                    val relocatedMethods = AtomicInteger()
+                    val failures = ConcurrentLinkedQueue<String>()
+                    val relocator = Relocator()
+                    relocator.addRootPath(root)
+                    relocator.addReferPath(refer)
+                    relocator.outputPath = dir.resolve("out.jar")
+                    relocator.maxParallelism = 4
+                    relocator.addPlugin(RelocatorPlugin(object : ClassRelocator() {
+                        override fun relocate(classFile: ClassFile): RelocateResult {
+                            // slow to make members relocated concurrently fail
+                            Thread.sleep(50)
+                            relocatedClasses += classFile.name
+                            return RelocateResult.Continue
+                        }
+
+                        override fun relocate(method: ClassMethod): RelocateResult {
+                            if (method.owner.name !in relocatedClasses)
+                                failures += "${method.owner.name}.${method.name}"
+                            relocatedMethods.incrementAndGet()
+                            return RelocateResult.Continue
+                        }
+                    }))
+                    runAndWait(relocator) shouldBe null
+                    failures.toList() shouldBe emptyList()
+                    relocatedClasses.size shouldBe 11
+                    // including constructors
+                    relocatedMethods.get() shouldBe 9 + 10 * 3
+                } finally {
+                    dir.deleteRecursively()
+                }
+            }
+
+            it("recomputes frames of methods whose instructions are removed") {
+                val dir = Files.createTempDirectory("relocator-test").toFile()
+                try {
+                    val root = dir.resolve("root")
+                    writeClass(root, "test/Base", methods = 0, instructions = 0)
+                    writeClass(root, "test/A", methods = 0, instructions = 0, superName = "test/Base")
+                    writeClass(root, "test/B", methods = 0, instructions = 0, superName = "test/Base")
+                    writeSelectClass(root)
+                    val refer = dir.resolve("refer")
+                    writeClass(refer, "java/lang/Object", methods = 0, instructions = 0)
+
+                    val output = dir.resolve("out.jar")
+                    val relocator = Relocator()
+                    relocator.addRootPath(root)
+                    relocator.addReferPath(refer)
+                    relocator.outputPath = output
+                    relocator.addRelocateMapping("test", "shadow")
+                    relocator.addPlugin(RelocatorPlugin(object : ClassRelocator() {
+                        override fun relocate(insn: Insn, code: ClassCode) =
+                            if (insn is SimpleInsn && insn.insn == SimpleInsnType.NOP) RelocateResult.Remove
+                            else RelocateResult.Continue
+                    }))
+                    runAndWait(relocator) shouldBe null
+
+                    // loading the class verifies the frames: the frame at the merge point must be shadow/Base
+                    URLClassLoader(arrayOf(output.toURI().toURL()), null).use { loader ->
+                        val select = Class.forName("shadow.Main", true, loader)
+                            .getMethod("select", Boolean::class.javaPrimitiveType)
+                        select.invoke(null, true).javaClass.name shouldBe "shadow.A"
+                        select.invoke(null, false).javaClass.name shouldBe "shadow.B"
+                    }
+                } finally {
+                    dir.deleteRecursively()
+                }
+            }
+
+            it("writes the manifest first and the same jar for the same input") {
+                val dir = Files.createTempDirectory("relocator-test").toFile()
+                try {
+                    val root = dir.resolve("root")
+                    repeat(10) { writeClass(root, "test/C$it", methods = 1, instructions = 1) }
+                    root.resolve("META-INF").mkdirs()
+                    root.resolve("META-INF/MANIFEST.MF").writeText("Manifest-Version: 1.0\r\nMain-Class: test.C0\r\n")
+                    val refer = dir.resolve("refer")
+                    writeClass(refer, "java/lang/Object", methods = 0, instructions = 0)
+
+                    val outputs = List(2) { dir.resolve("out$it.jar") }
+                    for (output in outputs) {
+                        val relocator = Relocator()
+                        relocator.addRootPath(root)
+                        relocator.addReferPath(refer)
+                        relocator.outputPath = output
+                        relocator.addRelocateMapping("test", "shadow")
+                        runAndWait(relocator) shouldBe null
+                    }
+
+                    JarInputStream(outputs[0].inputStream()).use { jar ->
+                        jar.manifest.mainAttributes.getValue("Main-Class") shouldBe "test.C0"
+                    }
+                    JarFile(outputs[0]).use { jar ->
+                        jar.entries().toList().map { it.time }.distinct() shouldBe listOf(JarWriter.FIXED_TIME)
+                    }
+                    outputs[0].readBytes().contentEquals(outputs[1].readBytes()) shouldBe true
+                } finally {
+                    dir.deleteRecursively()
+                }
+            }
+
+            it("records a shortest path from the roots") {
+                val dir = Files.createTempDirectory("relocator-test").toFile()
+                try {
+                    val root = dir.resolve("root")
+                    // test/Target is reached via test/Short, or via the field and test/Long1 to test/Long4
+                    writeClass(root, "test/Root", methods = 0, instructions = 0, superName = "test/Short",
+                        fieldTypes = listOf("test/Long1"))
+                    val embed = dir.resolve("embed")
+                    writeClass(embed, "test/Short", methods = 0, instructions = 0, superName = "test/Target")
+                    for (i in 1..4) {
+                        val superName = if (i == 4) "test/Target" else "test/Long${i + 1}"
+                        writeClass(embed, "test/Long$i", methods = 0, instructions = 0, superName = superName)
+                    }
+                    writeClass(embed, "test/Target", methods = 0, instructions = 0)
+                    val refer = dir.resolve("refer")
+                    writeClass(refer, "java/lang/Object", methods = 0, instructions = 0)
+
+                    val target = CompletableFuture<ClassFile>()
+                    val relocator = Relocator()
+                    relocator.addRootPath(root)
+                    relocator.addEmbedPath(embed)
+                    relocator.addReferPath(refer)
+                    relocator.recordReachability = true
+                    relocator.addPlugin(RelocatorPlugin(object : ClassRelocator() {
+                        override fun relocate(classFile: ClassFile): RelocateResult {
+                            if (classFile.name == "test/Target") target.complete(classFile)
+                            return RelocateResult.Continue
+                        }
+                    }))
+                    runAndWait(relocator) shouldBe null
+
+                    relocator.reachabilityIndex!!.getPath(target.get())!!.toString() shouldBe """
+                        test/Root (root)
+                        -> test/Short at class test/Root
+                          -> test/Target at class test/Short
+                        
+                    """.trimIndent()
+                } finally {
+                    dir.deleteRecursively()
+                }
+            }
+
+            it("notifies the listener of each phase in order") {
+                val events = mutableListOf<String>()
+                val relocator = Relocator()
+                relocator.listener = object : RelocationListener() {
+                    override fun phaseStarted(phase: RelocationPhase) {
+                        events += "start ${phase.displayName}"
+                    }
+
+                    override fun phaseFinished(phase: RelocationPhase, elapsedNanos: Long, progress: RelocationProgress) {
+                        progress.phase shouldBe phase
+                        events += "finish ${phase.displayName}"
+                    }
+                }
+                runAndWait(relocator) shouldBe null
+                events shouldBe RelocationPhase.values().flatMap {
+                    listOf("start ${it.displayName}", "finish ${it.displayName}")
+                }
+            }
+        }
+        describe("ReachabilitySession") {
+            /**
+             * Opens the session with test/Root which loads [rootConstants] in the root path,
+             * and test/A, test/B which extends test/C, and test/C in the embed path.
+             */
+            fun openSession(dir: File, rootConstants: List<String>): ReachabilitySession {
+                writeClass(dir.resolve("root"), "test/Root", classBytes("test/Root", constants = rootConstants))
+                val embed = dir.resolve("embed")
+                writeClass(embed, "test/A", methods = 0, instructions = 0)
+                writeClass(embed, "test/B", methods = 0, instructions = 0, superName = "test/C")
+                writeClass(embed, "test/C", methods = 0, instructions = 0)
+                writeClass(dir.resolve("refer"), "java/lang/Object", methods = 0, instructions = 0)
+
+                val relocator = Relocator()
+                relocator.addRootPath(dir.resolve("root"))
+                relocator.addEmbedPath(embed)
+                relocator.addReferPath(dir.resolve("refer"))
+                relocator.recordReachability = true
+                return relocator.openReachabilitySession()
+            }
+
+            fun ReachabilitySession.includedNames() = getIncludedClasses().map { it.name }.sorted()
+
+            it("propagates added roots from the included classes") {
+                val dir = Files.createTempDirectory("relocator-test").toFile()
+                try {
+                    openSession(dir, listOf("test/A")).use { session ->
+                        session.includedNames() shouldBe listOf("test/A", "test/Root")
+                        val index = session.reachabilityIndex
+                        session.addRoots(listOf("test.B"))
+                        session.includedNames() shouldBe listOf("test/A", "test/B", "test/C", "test/Root")
+                        session.reachabilityIndex shouldBeSameInstanceAs index
+                    }
+                } finally {
+                    dir.deleteRecursively()
+                }
+            }
+
+            it("collects references added to the included classes") {
+                val dir = Files.createTempDirectory("relocator-test").toFile()
+                try {
+                    openSession(dir, listOf("test/A")).use { session ->
+                        val index = session.reachabilityIndex!!
+                        session.updateClasses(mapOf("test/Root" to
+                            classBytes("test/Root", constants = listOf("test/A", "test/B"))))
+                        session.includedNames() shouldBe listOf("test/A", "test/B", "test/C", "test/Root")
+                        session.reachabilityIndex shouldBeSameInstanceAs index
+                        val c = session.getIncludedClasses().single { it.name == "test/C" }
+                        index.getPath(c)!!.steps.map { (it.node as? ClassFile)?.name } shouldBe
+                            listOf(null, "test/B", "test/C")
+                    }
+                } finally {
+                    dir.deleteRecursively()
+                }
+            }
+
+            it("collects references from the roots again if references are removed") {
+                val dir = Files.createTempDirectory("relocator-test").toFile()
+                try {
+                    openSession(dir, listOf("test/A", "test/B")).use { session ->
+                        val index = session.reachabilityIndex
+                        session.updateClasses(mapOf("test/Root" to classBytes("test/Root", constants = listOf("test/A"))))
+                        session.includedNames() shouldBe listOf("test/A", "test/Root")
+                        session.reachabilityIndex shouldNotBeSameInstanceAs index
+                    }
+                } finally {
+                    dir.deleteRecursively()
+                }
+            }
+
+            it("collects references from the roots again if super types are changed") {
+                val dir = Files.createTempDirectory("relocator-test").toFile()
+                try {
+                    openSession(dir, listOf("test/A")).use { session ->
+                        session.updateClasses(mapOf("test/A" to classBytes("test/A", superName = "test/C")))
+                        session.includedNames() shouldBe listOf("test/A", "test/C", "test/Root")
+                    }
+                } finally {
+                    dir.deleteRecursively()
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes a class with a constructor, [methods] methods of [instructions] instructions,
+     * and a field for each of [fieldTypes].
+     */
+    private fun writeClass(
+        dir: File,
+        name: String,
+        methods: Int,
+        instructions: Int,
+        superName: String? = if (name == "java/lang/Object") null else "java/lang/Object",
+        fieldTypes: List<String> = emptyList(),
+    ) = writeClass(dir, name, classBytes(name, methods, instructions, superName, fieldTypes))
+
+    /**
+     * Returns a class with a constructor which loads [constants], [methods] methods of [instructions] instructions,
+     * and a field for each of [fieldTypes].
+     */
+    private fun classBytes(
+        name: String,
+        methods: Int = 0,
+        instructions: Int = 0,
+        superName: String? = if (name == "java/lang/Object") null else "java/lang/Object",
+        fieldTypes: List<String> = emptyList(),
+        constants: List<String> = emptyList(),
+    ): ByteArray {
+        val writer = ClassWriter(ClassWriter.COMPUTE_MAXS)
+        writer.visit(V1_8, ACC_PUBLIC, name, null, superName, null)
+        for (type in fieldTypes)
+            writer.visitField(ACC_PUBLIC, type.substringAfterLast('/').lowercase(), "L$type;", null, null).visitEnd()
+        writer.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null).apply {
+            visitCode()
+            for (constant in constants) {
+                visitLdcInsn(Type.getObjectType(constant))
+                visitInsn(POP)
+            }
+            if (superName != null) {
+                visitVarInsn(ALOAD, 0)
+                visitMethodInsn(INVOKESPECIAL, superName, "<init>", "()V", false)
+            }
+            visitInsn(RETURN)
+            visitMaxs(0, 0)
+            visitEnd()
+        }
+        for (i in 0 until methods) {
+            writer.visitMethod(ACC_PUBLIC or ACC_STATIC, "m$i", "()V", null, null).apply {
+                visitCode()
+                repeat(instructions) { visitInsn(NOP) }
+                visitInsn(RETURN)
+                visitMaxs(0, 0)
+                visitEnd()
+            }
+        }
+        writer.visitEnd()
+        return writer.toByteArray()
+    }
+
+    /**
+     * Writes test/Main with `static Base select(boolean)` which returns A or B,
+     * and a NOP at the merge point which has the frame.
+     */
+    private fun writeSelectClass(dir: File) {
+        val writer = ClassWriter(ClassWriter.COMPUTE_MAXS)
+        writer.visit(V1_8, ACC_PUBLIC, "test/Main", null, "java/lang/Object", null)
+        writer.visitMethod(ACC_PUBLIC or ACC_STATIC, "select", "(Z)Ltest/Base;", null, null).apply {
+            val otherwise = Label()
+            val merge = Label()
+            visitCode()
+            visitVarInsn(ILOAD, 0)
+            visitJumpInsn(IFEQ, otherwise)
+            for ((label, name) in listOf(null to "test/A", otherwise to "test/B")) {
+                if (label != null) {
+                    visitLabel(label)
+                    visitFrame(F_FULL, 1, arrayOf(INTEGER), 0, null)
+                }
+                visitTypeInsn(NEW, name)
+                visitInsn(DUP)
+                visitMethodInsn(INVOKESPECIAL, name, "<init>", "()V", false)
+                visitVarInsn(ASTORE, 1)
+                if (label == null) visitJumpInsn(GOTO, merge)
+            }
+            visitLabel(merge)
+            visitFrame(F_FULL, 2, arrayOf(INTEGER, "test/Base"), 0, null)
+            visitInsn(NOP)
+            visitVarInsn(ALOAD, 1)
+            visitInsn(ARETURN)
+            visitMaxs(0, 0)
+            visitEnd()
+        }
+        writer.visitEnd()
+        writeClass(dir, "test/Main", writer.toByteArray())
+    }
+
+    private fun writeClass(dir: File, name: String, bytes: ByteArray) {
+        val file = dir.resolve("$name.class")
+        file.parentFile.mkdirs()
+        file.writeBytes(bytes)
+    }
+
+    private fun runAndWait(relocator: Relocator): Throwable? {
+        val result = CompletableFuture<Throwable?>()
+        relocator.run(result, Callback)
+        return result.get(10, TimeUnit.SECONDS)
+    }
+
+    private object Callback : CompletionHandler<Void?, CompletableFuture<Throwable?>> {
+        override fun completed(result: Void?, attachment: CompletableFuture<Throwable?>) {
+            attachment.complete(null)
+        }
+
+        override fun failed(exc: Throwable, attachment: CompletableFuture<Throwable?>) {
+            attachment.complete(exc)
+        }
+    }
+
+    private class RelocatorPlugin(private val relocator: ClassRelocator) : ClassRelocatorPlugin {
+        override fun getName(): String = "test"
+        override fun apply(context: ClassRelocatorPluginContext) =
+            context.addClassRelocator(ClassRelocatorStep.PreFiltering, relocator)
+    }
+
+    private class BlockingPlugin(private val block: () -> Unit) : ClassRelocatorPlugin {
+        override fun getName(): String = "blocking"
+        override fun preApply(context: PreClassRelocatorPluginContext) = block()
+    }
+}
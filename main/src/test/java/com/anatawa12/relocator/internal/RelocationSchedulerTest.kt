@@ -0,0 +1,49 @@
+package com.anatawa12.relocator.internal
+
+import io.kotest.core.spec.style.DescribeSpec
+import io.kotest.matchers.shouldBe
+
+internal class RelocationSchedulerTest : DescribeSpec() {
+    init {
+        describe("batchByCost") {
+            it("batches consecutive elements up to limit") {
+                batchByCost(intArrayOf(3, 4, 3, 5, 1), 10).map { it.toList() } shouldBe
+                        listOf(listOf(0, 1, 2), listOf(3, 4))
+            }
+
+            it("returns large elements as batches of themselves") {
+                batchByCost(intArrayOf(11, 2, 3, 20, 4), 10).map { it.toList() } shouldBe
+                        listOf(listOf(0), listOf(1, 2), listOf(3), listOf(4))
+            }
+
+            it("returns no batch for no elements") {
+                batchByCost(intArrayOf(), 10) shouldBe emptyList()
+            }
+        }
+
+        describe("chunkByCost") {
+            it("closes chunk when cost exceeds limit") {
+                chunkByCost(listOf(6, 6, 1, 12, 2), 10) { it } shouldBe
+                        listOf(listOf(6, 6), listOf(1, 12), listOf(2))
+            }
+
+            it("returns no chunk for no elements") {
+                chunkByCost(emptyList<Int>(), 10) { it } shouldBe emptyList()
+            }
+        }
+
+        describe("ClassTaskCounter") {
+            it("notifies after tasks added by a running task") {
+                val relocated = mutableListOf<Int>()
+                val counter = ClassTaskCounter(2, relocated::add)
+                counter.setTaskCount(1, 1)
+                counter.addTasks(1, 2)
+                counter.taskFinished(1)
+                counter.taskFinished(1)
+                relocated shouldBe emptyList()
+                counter.taskFinished(1)
+                relocated shouldBe listOf(1)
+            }
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.anatawa12.relocator.internal
+
+import io.kotest.core.spec.style.DescribeSpec
+import io.kotest.matchers.nulls.shouldBeNull
+import io.kotest.matchers.shouldBe
+
+internal class RelocationTrieTest : DescribeSpec() {
+    init {
+        val trie = RelocationTrie(mapOf(
+            "com/example" to "shadow/example",
+            "com/example/lib" to "shadow/lib",
+            "org/excluded" to null,
+        ))
+
+        describe("RelocationTrie") {
+            it("maps exact prefix") {
+                trie.map("com/example") shouldBe "shadow/example"
+            }
+            it("maps with longest prefix") {
+                trie.map("com/example/Main") shouldBe "shadow/example/Main"
+                trie.map("com/example/lib/Lib") shouldBe "shadow/lib/Lib"
+                trie.map("com/example/library/Lib") shouldBe "shadow/example/library/Lib"
+            }
+            it("does not map partial segment") {
+                trie.map("com/examples/Main").shouldBeNull()
+                trie.map("com").shouldBeNull()
+                trie.map("").shouldBeNull()
+            }
+            it("does not map prefix mapped to null") {
+                trie.map("org/excluded/Main").shouldBeNull()
+            }
+        }
+
+        describe("StringMemo") {
+            it("counts hits and misses") {
+                var computed = 0
+                val memo = StringMemo(16) { computed++; trie.map(it) }
+                memo["com/example/Main"] shouldBe "shadow/example/Main"
+                memo["com/example/Main"] shouldBe "shadow/example/Main"
+                memo["org/Main"].shouldBeNull()
+                memo["org/Main"].shouldBeNull()
+                computed shouldBe 2
+                memo.hitCount shouldBe 2
+                memo.missCount shouldBe 2
+            }
+        }
+    }
+}
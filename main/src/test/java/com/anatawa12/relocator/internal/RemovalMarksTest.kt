@@ -0,0 +1,36 @@
+package com.anatawa12.relocator.internal
+
+import io.kotest.core.spec.style.DescribeSpec
+import io.kotest.matchers.shouldBe
+
+internal class RemovalMarksTest : DescribeSpec() {
+    init {
+        describe("RemovalMarks") {
+            it("removes marked elements from each list") {
+                val a = "a"
+                val b = "b"
+                val c = "c"
+                val list1 = mutableListOf(a, b, c)
+                val list2 = mutableListOf<Any>(1, 2, 3)
+                val marks = RemovalMarks()
+                marks.mark(list1, b)
+                marks.mark(list1, c)
+                marks.mark(list2, list2[0])
+                list1 shouldBe listOf(a, b, c)
+                marks.sweep()
+                list1 shouldBe listOf(a)
+                list2 shouldBe listOf(2, 3)
+            }
+            it("removes by identity") {
+                val first = String(charArrayOf('x'))
+                val second = String(charArrayOf('x'))
+                val list = mutableListOf(first, second)
+                val marks = RemovalMarks()
+                marks.mark(list, second)
+                marks.sweep()
+                list.size shouldBe 1
+                (list[0] === first) shouldBe true
+            }
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.anatawa12.relocator.internal
+
+import com.anatawa12.relocator.classes.ClassFile
+import org.objectweb.asm.ClassReader
+import org.objectweb.asm.ClassWriter
+import org.objectweb.asm.Label
+import org.objectweb.asm.Opcodes.*
+
+internal fun readClass(bytes: ByteArray): ClassFile {
+    val builder = Reader.ClassBuilder(0)
+    ClassReader(bytes).accept(builder, 0)
+    return builder.classFile!!
+}
+
+/**
+ * Returns a class with [methods] static methods named `run0`, `run1`, ..., each of which has a jump and a frame.
+ */
+internal fun sampleClass(name: String, methods: Int = 1): ByteArray {
+    val writer = ClassWriter(0)
+    writer.visit(V1_8, ACC_PUBLIC, name, null, "java/lang/Object", null)
+    repeat(methods) { i ->
+        val visitor = writer.visitMethod(ACC_PUBLIC or ACC_STATIC, "run$i", "(I)V", null, null)
+        visitor.visitCode()
+        val label = Label()
+        visitor.visitVarInsn(ILOAD, 0)
+        visitor.visitJumpInsn(IFEQ, label)
+        visitor.visitInsn(NOP)
+        visitor.visitLabel(label)
+        visitor.visitFrame(F_SAME, 0, null, 0, null)
+        visitor.visitInsn(RETURN)
+        visitor.visitMaxs(1, 1)
+        visitor.visitEnd()
+    }
+    writer.visitEnd()
+    return writer.toByteArray()
+}
@@ -0,0 +1,94 @@
+package com.anatawa12.relocator.internal
+
+import com.anatawa12.relocator.classes.*
+import io.kotest.core.spec.style.DescribeSpec
+import io.kotest.matchers.shouldBe
+import org.objectweb.asm.ClassReader
+import org.objectweb.asm.ClassWriter
+import org.objectweb.asm.Label
+import org.objectweb.asm.Opcodes.*
+import org.objectweb.asm.tree.*
+
+internal class WriterTest : DescribeSpec() {
+    init {
+        describe("opcode tables") {
+            it("agree with the mappings") {
+                for ((type, opcode) in Insns.simpleInsns)
+                    Insns.simpleOpcodes[type.ordinal] shouldBe opcode
+                for ((i, type) in Insns.fieldInsns.withIndex())
+                    Insns.fieldOpcodes[type.ordinal] shouldBe GETSTATIC + i
+                for ((i, type) in Insns.methodInsns.withIndex())
+                    Insns.methodOpcodes[type.ordinal] shouldBe INVOKEVIRTUAL + i
+                for ((i, type) in Insns.jumpInsns.withIndex())
+                    Insns.jumpOpcodes[type.ordinal] shouldBe IFEQ + i
+                Insns.jumpOpcodes[JumpInsnType.IFNULL.ordinal] shouldBe IFNULL
+                Insns.jumpOpcodes[JumpInsnType.IFNONNULL.ordinal] shouldBe IFNONNULL
+                for ((code, type) in Insns.newArrayTypeMapping)
+                    Insns.newArrayTypeCodes[type.ordinal] shouldBe code
+                for ((key, opcode) in Insns.typedOperatorInsnMapping)
+                    Insns.typedOperatorOpcodes[Insns.typedOperatorIndex(key.first, key.second)] shouldBe opcode
+                for ((key, opcode) in Insns.casts)
+                    Insns.castOpcodes[Insns.castIndex(key.first, key.second)] shouldBe opcode
+            }
+            it("have no opcode for invalid combinations") {
+                Insns.castOpcodes[Insns.castIndex(VMType.Byte, VMType.Int)] shouldBe -1
+                Insns.typedOperatorOpcodes[Insns.typedOperatorIndex(TypedInsnType.SHL, VMType.Float)] shouldBe -1
+                Insns.newArrayTypeCodes[VMType.Reference.ordinal] shouldBe -1
+            }
+        }
+
+        describe("Writer") {
+            it("writes every instruction as read") {
+                val bytes = allInstructionsClass()
+                describeCode(rewrite(bytes)) shouldBe describeCode(bytes)
+            }
+        }
+    }
+
+    private fun writeClass(file: ClassFile): ByteArray =
+        ClassWriter(0).also { Writer().writeClass(file, it) }.toByteArray()
+
+    private fun rewrite(bytes: ByteArray) = writeClass(readClass(bytes))
+
+    private fun describeCode(bytes: ByteArray): List<String> {
+        val node = ClassNode().also { ClassReader(bytes).accept(it, 0) }
+        val instructions = node.methods.single().instructions
+        return instructions.map { insn ->
+            when (insn) {
+                is IntInsnNode -> "${insn.opcode} ${insn.operand}"
+                is VarInsnNode -> "${insn.opcode} ${insn.`var`}"
+                is FieldInsnNode -> "${insn.opcode} ${insn.owner}.${insn.name}:${insn.desc}"
+                is MethodInsnNode -> "${insn.opcode} ${insn.owner}.${insn.name}${insn.desc} ${insn.itf}"
+                is JumpInsnNode -> "${insn.opcode} ${instructions.indexOf(insn.label)}"
+                is LabelNode -> "label"
+                else -> "${insn.opcode}"
+            }
+        }
+    }
+
+    // constants are not included since they are written with LDC
+    private val insnOpcodes = (Insns.simpleInsns.values + Insns.typedInsnMapping.keys + Insns.casts.values).sorted()
+
+    private fun allInstructionsClass(): ByteArray {
+        val writer = ClassWriter(0)
+        writer.visit(V1_5, ACC_PUBLIC, "sample/Sample", null, "java/lang/Object", null)
+        val visitor = writer.visitMethod(ACC_PUBLIC or ACC_STATIC, "run", "()V", null, null)
+        visitor.visitCode()
+        for (opcode in insnOpcodes) visitor.visitInsn(opcode)
+        for (code in Insns.newArrayTypeMapping.keys) visitor.visitIntInsn(NEWARRAY, code)
+        for (opcode in ILOAD..ALOAD) visitor.visitVarInsn(opcode, 1)
+        for (opcode in ISTORE..ASTORE) visitor.visitVarInsn(opcode, 1)
+        for (opcode in GETSTATIC..PUTFIELD)
+            visitor.visitFieldInsn(opcode, "sample/Sample", "field", "I")
+        for (opcode in INVOKEVIRTUAL..INVOKEINTERFACE)
+            visitor.visitMethodInsn(opcode, "sample/Sample", "method", "()V", opcode == INVOKEINTERFACE)
+        val label = Label()
+        for (opcode in (IFEQ..JSR) + IFNULL + IFNONNULL) visitor.visitJumpInsn(opcode, label)
+        visitor.visitLabel(label)
+        visitor.visitInsn(RETURN)
+        visitor.visitMaxs(16, 16)
+        visitor.visitEnd()
+        writer.visitEnd()
+        return writer.toByteArray()
+    }
+}
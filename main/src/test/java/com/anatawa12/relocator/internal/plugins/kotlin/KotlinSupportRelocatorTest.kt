@@ -0,0 +1,80 @@
+package com.anatawa12.relocator.internal.plugins.kotlin
+
+import com.anatawa12.relocator.classes.ClassAnnotation
+import com.anatawa12.relocator.classes.ClassFile
+import com.anatawa12.relocator.internal.plugins.exclude.ExcludeClassRelocatorPlugin
+import com.anatawa12.relocator.plugin.RelocationMapping
+import io.kotest.assertions.throwables.shouldThrow
+import io.kotest.core.spec.style.DescribeSpec
+import io.kotest.matchers.shouldBe
+import io.kotest.matchers.types.shouldBeInstanceOf
+import kotlinx.metadata.*
+import kotlinx.metadata.jvm.KotlinClassHeader
+import kotlinx.metadata.jvm.KotlinClassMetadata
+import org.objectweb.asm.Opcodes.ACC_PUBLIC
+import org.objectweb.asm.Opcodes.V1_8
+
+internal class KotlinSupportRelocatorTest : DescribeSpec() {
+    init {
+        fun newRelocator() = KotlinSupportRelocator(Parameters(
+            RelocatorVisitors(RelocationMapping(mapOf("com/example" to "shadow/example"))),
+            ExcludeClassRelocatorPlugin(),
+        ))
+
+        describe("relocate") {
+            it("skips rewriting metadata without mapped names") {
+                val relocator = newRelocator()
+                val header = classHeader("org/other/B", "org/other/Super")
+                val classFile = classFileWithMetadata("org/other/B", header)
+
+                relocator.relocate(classFile)
+
+                val mapped = KotlinSupportRelocator.makeHeader(classFile.visibleAnnotations.single())
+                mapped.data1.toList() shouldBe header.data1.toList()
+                mapped.data2.toList() shouldBe header.data2.toList()
+                relocator.debugStatistics() shouldBe "KotlinSupportRelocator: skipped rewriting 1 of 1 metadata"
+            }
+
+            it("rewrites metadata with mapped names") {
+                val relocator = newRelocator()
+                val classFile = classFileWithMetadata("com/example/A", classHeader("com/example/A", "org/other/Super"))
+
+                relocator.relocate(classFile)
+
+                val metadata = KotlinClassMetadata.read(
+                    KotlinSupportRelocator.makeHeader(classFile.visibleAnnotations.single()))
+                metadata.shouldBeInstanceOf<KotlinClassMetadata.Class>()
+                val kmClass = metadata.toKmClass()
+                kmClass.name shouldBe "shadow/example/A"
+                kmClass.supertypes.map { (it.classifier as KmClassifier.Class).name } shouldBe listOf("org/other/Super")
+                relocator.debugStatistics() shouldBe "KotlinSupportRelocator: skipped rewriting 0 of 1 metadata"
+            }
+
+            it("rejects incompatible metadata version even if rewriting is skipped") {
+                val relocator = newRelocator()
+                val header = classHeader("org/other/B", "org/other/Super").run {
+                    KotlinClassHeader(kind, intArrayOf(99, 0, 0), data1, data2, extraString, packageName, extraInt)
+                }
+                val classFile = classFileWithMetadata("org/other/B", header)
+
+                shouldThrow<IllegalStateException> { relocator.relocate(classFile) }.message shouldBe
+                        "un-parsable metadata version: [99, 0, 0]"
+                relocator.debugStatistics() shouldBe "KotlinSupportRelocator: skipped rewriting 0 of 0 metadata"
+            }
+        }
+    }
+
+    private fun classHeader(name: String, superName: String): KotlinClassHeader {
+        val kmClass = KmClass()
+        kmClass.flags = flagsOf(Flag.IS_PUBLIC)
+        kmClass.name = name
+        kmClass.supertypes += KmType(0).apply { classifier = KmClassifier.Class(superName) }
+        return KotlinClassMetadata.Class.Writer().also(kmClass::accept).write().header
+    }
+
+    private fun classFileWithMetadata(name: String, header: KotlinClassHeader): ClassFile =
+        ClassFile.Builder(V1_8, ACC_PUBLIC, name)
+            .addVisibleAnnotation(ClassAnnotation(Parameters.kotlinMetadata,
+                KotlinSupportRelocator.makeAnnotationValues(header)))
+            .build()
+}
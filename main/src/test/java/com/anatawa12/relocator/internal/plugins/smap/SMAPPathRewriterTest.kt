@@ -0,0 +1,52 @@
+package com.anatawa12.relocator.internal.plugins.smap
+
+import io.kotest.core.spec.style.DescribeSpec
+import io.kotest.matchers.nulls.shouldBeNull
+import io.kotest.matchers.shouldBe
+
+class SMAPPathRewriterTest : DescribeSpec({
+    val smap = """
+        SMAP
+        Main.kt
+        Kotlin
+        *S Kotlin
+        *F
+        + 1 Main.kt
+        com/example/MainKt
+        + 2 Lib.kt
+        org/lib/LibKt
+        3 NoPath.kt
+        *L
+        1#1,5:1
+        *S KotlinDebug
+        *F
+        + 1 Main.kt
+        com/example/MainKt
+        *L
+        1#1:1
+        *E
+        
+    """.trimIndent()
+
+    fun mapPath(path: String) = if (path.startsWith("com/example/")) "shadow/" + path else null
+
+    describe("SMAPPathRewriter") {
+        it("rewrites paths in file sections") {
+            SMAPPathRewriter(smap, ::mapPath).rewrite() shouldBe
+                smap.replace("com/example/MainKt", "shadow/com/example/MainKt")
+        }
+        it("returns null if nothing is mapped") {
+            SMAPPathRewriter(smap) { null }.rewrite().shouldBeNull()
+        }
+        it("does not rewrite names or lines out of file sections") {
+            val vendor = "SMAP\ncom/example/Main.kt\nKotlin\n*V vendor\n+ 1 vendor\ncom/example/Vendor\n*E\n"
+            SMAPPathRewriter(vendor, ::mapPath).rewrite().shouldBeNull()
+        }
+        it("rewrites the same as parsing") {
+            val parsed = SMAPParser(smap).readSMAP()
+            for (element in parsed.elements) if (element is SMAPStratum) for (section in element.elements)
+                if (section is SMAPFileSection) for (file in section.files) file.path?.let(::mapPath)?.let { file.path = it }
+            SMAPParser(SMAPPathRewriter(smap, ::mapPath).rewrite()!!).readSMAP() shouldBe parsed
+        }
+    }
+})
@@ -0,0 +1,84 @@
+package com.anatawa12.relocator.plugin
+
+import com.anatawa12.relocator.classes.ClassSignature
+import com.anatawa12.relocator.classes.MethodDescriptor
+import com.anatawa12.relocator.classes.MethodSignature
+import com.anatawa12.relocator.classes.TypeDescriptor
+import com.anatawa12.relocator.reference.ClassReference
+import com.anatawa12.relocator.reference.FieldReference
+import com.anatawa12.relocator.reference.MethodReference
+import io.kotest.core.spec.style.DescribeSpec
+import io.kotest.matchers.nulls.shouldBeNull
+import io.kotest.matchers.shouldBe
+import io.kotest.matchers.types.shouldBeSameInstanceAs
+
+internal class RelocationMappingTest : DescribeSpec() {
+    init {
+        describe("excludeMapping") {
+            it("keeps excluded descriptor of method reference") {
+                val mapping = RelocationMapping(mapOf("com/example" to "shadow/example"))
+                val reference = MethodReference("com/example/A", "m", MethodDescriptor("(Lcom/example/B;)V"))
+                mapping.excludeMapping(reference.descriptor)
+
+                val mapped = mapping.mapMethodRef(reference)!!
+                mapped.owner.name shouldBe "shadow/example/A"
+                mapped.descriptor shouldBeSameInstanceAs reference.descriptor
+                // other instance with same descriptor is mapped
+                mapping.mapMethodDescriptor(MethodDescriptor("(Lcom/example/B;)V")) shouldBe
+                        MethodDescriptor("(Lshadow/example/B;)V")
+            }
+
+            it("keeps excluded owner of field reference") {
+                val mapping = RelocationMapping(mapOf("com/example" to "shadow/example"))
+                val reference = FieldReference("com/example/A", "f", TypeDescriptor("Lcom/example/B;"))
+                mapping.excludeMapping(reference.owner)
+
+                val mapped = mapping.mapFieldRef(reference)!!
+                mapped.owner shouldBeSameInstanceAs reference.owner
+                mapped.descriptor shouldBe TypeDescriptor("Lshadow/example/B;")
+            }
+
+            it("keeps excluded reference with mapped elements") {
+                val mapping = RelocationMapping(mapOf("com/example" to "shadow/example"))
+                val reference = ClassReference("com/example/A")
+                mapping.excludeMapping(reference)
+
+                mapping.mapClassRef(reference).shouldBeNull()
+                mapping.mapClassRef(ClassReference("com/example/A")) shouldBe ClassReference("shadow/example/A")
+            }
+
+            it("keeps excluded element of signature") {
+                val mapping = RelocationMapping(mapOf("com/example" to "shadow/example"))
+                val source = "<T:Lcom/example/A;>Ljava/lang/Object;Lcom/example/I<Lcom/example/B;>;"
+                val signature = ClassSignature.parse(source)
+                mapping.excludeMapping(signature.superInterfaces[0].getTypeArguments(0)[0])
+
+                mapping.mapClassSignature(signature)!!.signature shouldBe
+                        "<T:Lshadow/example/A;>Ljava/lang/Object;Lshadow/example/I<Lcom/example/B;>;"
+                // other instance with same signature is mapped
+                mapping.mapClassSignature(ClassSignature.parse(source))!!.signature shouldBe
+                        "<T:Lshadow/example/A;>Ljava/lang/Object;Lshadow/example/I<Lshadow/example/B;>;"
+            }
+
+            it("keeps excluded type parameter of method signature") {
+                val mapping = RelocationMapping(mapOf("com/example" to "shadow/example"))
+                val signature = MethodSignature.parse("<T:Lcom/example/A;>(TT;Lcom/example/B;)V")
+                mapping.excludeMapping(signature.typeParameters[0])
+
+                mapping.mapMethodSignature(signature)!!.signature shouldBe
+                        "<T:Lcom/example/A;>(TT;Lshadow/example/B;)V"
+            }
+        }
+
+        describe("memo") {
+            it("is used for class names in descriptors") {
+                val mapping = RelocationMapping(mapOf("com/example" to "shadow/example"))
+                mapping.mapSlashedClass("com/example/A")
+                mapping.mapTypeDescriptor(TypeDescriptor("[Lcom/example/A;")) shouldBe
+                        TypeDescriptor("[Lshadow/example/A;")
+                mapping.memoHitCount shouldBe 1
+                mapping.memoMissCount shouldBe 1
+            }
+        }
+    }
+}